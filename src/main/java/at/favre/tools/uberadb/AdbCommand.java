@@ -0,0 +1,112 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.util.CmdUtil;
+
+import java.util.Arrays;
+
+/**
+ * A tokenized adb client command line split into the global options, the command and its parameters
+ */
+public final class AdbCommand {
+    public final String serial;
+    public final String host;
+    public final int port;
+    public final String command;
+    public final String[] params;
+    /**
+     * true if there were global options other than '-s', '-H' and '-P'
+     */
+    public final boolean hasOtherOptions;
+
+    private AdbCommand(String serial, String host, int port, String command, String[] params, boolean hasOtherOptions) {
+        this.serial = serial;
+        this.host = host;
+        this.port = port;
+        this.command = command;
+        this.params = params;
+        this.hasOtherOptions = hasOtherOptions;
+    }
+
+    /**
+     * @param args full adb client command line, first element is the adb executable
+     * @return the parsed command or null if args contain no command
+     */
+    public static AdbCommand parse(String[] args) {
+        if (args == null || args.length < 2) {
+            return null;
+        }
+
+        String serial = null, host = null;
+        int port = -1;
+        boolean otherOptions = false;
+        int i = 1;
+
+        while (i < args.length && args[i].startsWith("-")) {
+            if ((args[i].equals("-s") || args[i].equals("-H") || args[i].equals("-P")) && i + 1 < args.length) {
+                if (args[i].equals("-s")) {
+                    serial = args[i + 1];
+                } else if (args[i].equals("-H")) {
+                    host = args[i + 1];
+                } else {
+                    try {
+                        port = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException e) {
+                        otherOptions = true;
+                    }
+                }
+                i += 2;
+            } else {
+                otherOptions = true;
+                i++;
+            }
+        }
+
+        if (i >= args.length) {
+            return null;
+        }
+
+        return new AdbCommand(serial, host, port, args[i], Arrays.copyOfRange(args, i + 1, args.length), otherOptions);
+    }
+
+    /**
+     * @return the serial, suffixed with '@host:port' if the command goes to an adb server given with '-H' or '-P',
+     * since serials are only unique per server; null if there is no serial. Same as {@link AdbDevice#getName()}.
+     */
+    public String getDeviceName() {
+        if (serial == null || (host == null && port <= 0)) {
+            return serial;
+        }
+        return serial + "@" + (host != null ? host : AdbServerCmdProvider.DEFAULT_HOST) + ":"
+                + (port > 0 ? port : AdbServerCmdProvider.DEFAULT_PORT);
+    }
+
+    public boolean isShell() {
+        return "shell".equals(command) || "exec-out".equals(command);
+    }
+
+    /**
+     * @return the parameters joined the same way the adb client does it for shell commands
+     */
+    public String paramsLine() {
+        return CmdUtil.concat(params, " ");
+    }
+}
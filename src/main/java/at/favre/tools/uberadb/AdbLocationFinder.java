@@ -18,6 +18,8 @@
 
 package at.favre.tools.uberadb;
 
+import at.favre.tools.uberadb.util.CmdUtil;
+
 /**
  * Determines the location of the adb tool
  */
@@ -38,10 +40,26 @@ public interface AdbLocationFinder {
     class LocationResult {
         public final AdbLocationFinder.Location location;
         public final String[] args;
+        /**
+         * first line of 'adb version' or null if unknown
+         */
+        public final String version;
 
         public LocationResult(AdbLocationFinder.Location location, String[] args) {
+            this(location, args, null);
+        }
+
+        public LocationResult(AdbLocationFinder.Location location, String[] args, String version) {
             this.location = location;
             this.args = args;
+            this.version = version;
+        }
+
+        /**
+         * @return a copy whose commands are sent to the given adb server instead of the default one
+         */
+        public LocationResult forServer(AdbServerAddress server) {
+            return new LocationResult(location, CmdUtil.concat(args, server.toArgs()), version);
         }
 
         public String arg() {
@@ -21,70 +21,200 @@ package at.favre.tools.uberadb;
 import at.favre.tools.uberadb.util.CmdUtil;
 
 import java.io.File;
-
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the custom path, every PATH entry, the OS default locations and ANDROID_HOME in this order of precedence.
+ * The checks run concurrently since each of them may spawn a process or stat a slow (network) mount; the highest
+ * priority candidate that works wins and the remaining checks are cancelled.
+ */
 public class AdbLocationFinderImpl implements AdbLocationFinder {
 
+    private static final int MAX_PARALLEL_PROBES = 16;
+    private static final String ADB = "adb";
+
     private static final String WIN_DEFAULT_SDK = "\\AppData\\Local\\Android\\sdk\\platform-tools\\adb.exe";
     private static final String WIN_DEFAULT_ANDROID_HOME = "\\platform-tools\\adb.exe";
 
-    private static final String[] MAC_DEFAULT = new String[]{"/usr/local/opt/android-sdk/platform-tools/adb"};
+    private static final String MAC_DEFAULT = "/usr/local/opt/android-sdk/platform-tools/adb";
     private static final String MAC_DEFAULT_HOME = "/Library/Android/sdk/platform-tools/adb";
     private static final String MAC_DEFAULT_ANDROID_HOME = "/platform-tools/adb";
 
-    private static final String[] LINUX_DEFAULT = MAC_DEFAULT;
+    private static final String LINUX_DEFAULT = MAC_DEFAULT;
     private static final String LINUX_DEFAULT_ANDROID_HOME = MAC_DEFAULT_ANDROID_HOME;
     private static final String LINUX_DEFAULT_2 = "/Android/Sdk/platform-tools/adb";
 
     @Override
     public LocationResult find(CmdProvider cmdProvider, String customPath) {
-        String osName = System.getProperty("os.name").toLowerCase();
+        LocationResult result = probe(cmdProvider, createCandidates(customPath));
 
-        if (customPath != null && new File(customPath).exists() && cmdProvider.canRunCmd(new String[]{customPath})) {
-            return new LocationResult(Location.CUSTOM, new String[]{customPath});
+        if (result == null) {
+            throw new IllegalStateException("Could not find adb. Not found in PATH or the usual default locations. Did you install " +
+                    "the Android SDK and set adb to PATH? As alternative you could use the '-adbPath' argument. See: http://stackoverflow.com/questions/20564514");
         }
+        return result;
+    }
 
-        File pathAdbExe = CmdUtil.checkAndGetFromPATHEnvVar(cmdProvider, "adb");
+    /**
+     * @return all possible locations, highest priority first
+     */
+    static List<Candidate> createCandidates(String customPath) {
+        CandidateList candidates = new CandidateList();
 
-        if (pathAdbExe != null) {
-            return new LocationResult(Location.PATH, new String[]{pathAdbExe.getAbsolutePath()});
+        if (customPath != null) {
+            candidates.add(Location.CUSTOM, customPath, true);
+        }
+
+        String pathEnv = System.getenv("PATH");
+        if (pathEnv != null) {
+            String[] extensions = CmdUtil.getExecutableExtensions();
+            for (String pathPart : pathEnv.split(File.pathSeparator)) {
+                if (pathPart.isEmpty()) {
+                    continue;
+                }
+                if (new File(pathPart).getName().toLowerCase().contains(ADB)) {
+                    // PATH entry pointing directly to the executable
+                    candidates.add(Location.PATH, new File(pathPart).getAbsolutePath(), false);
+                }
+                for (String extension : extensions) {
+                    candidates.add(Location.PATH, new File(pathPart, ADB + extension).getAbsolutePath(), true);
+                }
+            }
         }
 
         String androidHome = System.getenv().get("ANDROID_HOME");
         String userPath = System.getProperty("user.home");
 
-        if (osName.contains("win")) {
-            userPath = System.getenv().get("USERPROFILE");
+        switch (CmdUtil.getOsType()) {
+            case WIN:
+                userPath = System.getenv().get("USERPROFILE");
+                if (userPath != null) {
+                    candidates.add(Location.WIN_DEFAULT, userPath + WIN_DEFAULT_SDK, true);
+                }
+                if (androidHome != null) {
+                    candidates.add(Location.ANDROID_HOME, androidHome + WIN_DEFAULT_ANDROID_HOME, true);
+                }
+                break;
+            case MAC:
+                candidates.add(Location.MAC_DEFAULT, MAC_DEFAULT, true);
+                if (userPath != null) {
+                    candidates.add(Location.MAC_DEFAULT, userPath + MAC_DEFAULT_HOME, true);
+                }
+                if (androidHome != null) {
+                    candidates.add(Location.ANDROID_HOME, androidHome + MAC_DEFAULT_ANDROID_HOME, true);
+                }
+                break;
+            default:
+                candidates.add(Location.LINUX_DEFAULT, LINUX_DEFAULT, true);
+                if (userPath != null) {
+                    candidates.add(Location.LINUX_DEFAULT, userPath + LINUX_DEFAULT_2, true);
+                }
+                if (androidHome != null) {
+                    candidates.add(Location.ANDROID_HOME, androidHome + LINUX_DEFAULT_ANDROID_HOME, true);
+                }
+                break;
+        }
+        return candidates.list;
+    }
+
+    /**
+     * Checks all candidates concurrently
+     *
+     * @param candidates highest priority first
+     * @return the first candidate in list order that works or null if none does
+     */
+    static LocationResult probe(final CmdProvider cmdProvider, List<Candidate> candidates) {
+        if (candidates.isEmpty()) {
+            return null;
+        }
 
-            if (userPath != null && cmdProvider.canRunCmd(new String[]{userPath + WIN_DEFAULT_SDK})) {
-                return new LocationResult(Location.WIN_DEFAULT, new String[]{userPath + WIN_DEFAULT_SDK});
-            }
-            if (androidHome != null && cmdProvider.canRunCmd(new String[]{androidHome + WIN_DEFAULT_ANDROID_HOME})) {
-                return new LocationResult(Location.ANDROID_HOME, new String[]{userPath + WIN_DEFAULT_ANDROID_HOME});
-            }
-        } else if (osName.contains("mac")) {
-            if (cmdProvider.canRunCmd(MAC_DEFAULT)) {
-                return new LocationResult(Location.MAC_DEFAULT, MAC_DEFAULT);
-            }
-            if (userPath != null && cmdProvider.canRunCmd(new String[]{userPath + MAC_DEFAULT_HOME})) {
-                return new LocationResult(Location.MAC_DEFAULT, new String[]{userPath + MAC_DEFAULT_HOME});
-            }
-            if (androidHome != null && cmdProvider.canRunCmd(new String[]{androidHome + MAC_DEFAULT_ANDROID_HOME})) {
-                return new LocationResult(Location.ANDROID_HOME, new String[]{androidHome + MAC_DEFAULT_ANDROID_HOME});
-            }
-        } else if (osName.contains("nix")) {
-            if (cmdProvider.canRunCmd(LINUX_DEFAULT)) {
-                return new LocationResult(Location.LINUX_DEFAULT, LINUX_DEFAULT);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(candidates.size(), MAX_PARALLEL_PROBES), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "adb-probe-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
             }
-            if (userPath != null && cmdProvider.canRunCmd(new String[]{userPath + LINUX_DEFAULT_2})) {
-                return new LocationResult(Location.LINUX_DEFAULT, new String[]{userPath + LINUX_DEFAULT_2});
+        });
+
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>(candidates.size());
+            for (final Candidate candidate : candidates) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return candidate.check(cmdProvider);
+                    }
+                }));
             }
-            if (androidHome != null && cmdProvider.canRunCmd(new String[]{androidHome + LINUX_DEFAULT_ANDROID_HOME})) {
-                return new LocationResult(Location.ANDROID_HOME, new String[]{androidHome + LINUX_DEFAULT_ANDROID_HOME});
+
+            for (int i = 0; i < candidates.size(); i++) {
+                if (isSuccessful(futures.get(i))) {
+                    return new LocationResult(candidates.get(i).location, new String[]{candidates.get(i).path});
+                }
             }
+            return null;
+        } finally {
+            // interrupts checks of lower priority candidates still running
+            executor.shutdownNow();
+        }
+    }
+
+    private static boolean isSuccessful(Future<Boolean> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while looking for adb", e);
+        }
+    }
+
+    static final class Candidate {
+        final Location location;
+        final String path;
+        final boolean mustRun;
+
+        Candidate(Location location, String path, boolean mustRun) {
+            this.location = location;
+            this.path = path;
+            this.mustRun = mustRun;
+        }
+
+        boolean check(CmdProvider cmdProvider) {
+            return new File(path).isFile() && (!mustRun || cmdProvider.canRunCmd(new String[]{path}));
         }
 
-        throw new IllegalStateException("Could not find adb. Not found in PATH or the usual default locations. Did you install " +
-                "the Android SDK and set adb to PATH? As alternative you could use the '-adbPath' argument. See: http://stackoverflow.com/questions/20564514");
+        @Override
+        public String toString() {
+            return location + ": " + path;
+        }
     }
 
+    /**
+     * Keeps the first occurrence if the same executable is listed multiple times (e.g. duplicate PATH entries)
+     */
+    private static final class CandidateList {
+        final List<Candidate> list = new ArrayList<>();
+        final Set<String> paths = new HashSet<>();
+
+        void add(Location location, String path, boolean mustRun) {
+            if (paths.add(path)) {
+                list.add(new Candidate(location, path, mustRun));
+            }
+        }
+    }
 }
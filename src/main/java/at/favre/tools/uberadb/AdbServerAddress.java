@@ -0,0 +1,100 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+package at.favre.tools.uberadb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Host and port of an adb server, e.g. a remote machine with attached devices
+ */
+public final class AdbServerAddress {
+    public final String host;
+    public final int port;
+
+    public AdbServerAddress(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @param definition 'host:port' or just 'host' for the default port
+     * @return the address
+     */
+    public static AdbServerAddress parse(String definition) {
+        int separator = definition.lastIndexOf(':');
+        String host = separator >= 0 ? definition.substring(0, separator).trim() : definition.trim();
+        int port = AdbServerCmdProvider.DEFAULT_PORT;
+
+        if (separator >= 0) {
+            try {
+                port = Integer.parseInt(definition.substring(separator + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("unexpected adb server '" + definition + "', expected e.g. 'localhost:5037'", e);
+            }
+        }
+        if (host.isEmpty() || port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("unexpected adb server '" + definition + "', expected e.g. 'localhost:5037'");
+        }
+        return new AdbServerAddress(host, port);
+    }
+
+    /**
+     * @param definitions may be null
+     * @return parsed addresses, empty if none are defined
+     */
+    public static List<AdbServerAddress> parse(String[] definitions) {
+        List<AdbServerAddress> addresses = new ArrayList<>();
+        if (definitions != null) {
+            for (String definition : definitions) {
+                addresses.add(parse(definition));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * @return the adb client options to talk to this server
+     */
+    public String[] toArgs() {
+        return new String[]{"-H", host, "-P", String.valueOf(port)};
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        AdbServerAddress that = (AdbServerAddress) o;
+
+        if (port != that.port) return false;
+        return host.equals(that.host);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = host.hashCode();
+        result = 31 * result + port;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.util.CmdUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Talks directly to the adb server over its host protocol (see SERVICES.TXT in the adb sources) instead of
+ * starting a new adb client process for every command. Supports 'devices', 'shell' and 'exec-out'; every other
+ * command, and any command if the server can not be reached, is delegated to the fallback provider. Shell commands
+ * use the shell v2 protocol which reports the exit code of the command; devices without shell v2 are handled by the
+ * fallback (the adb client) as well. 'start-server'
+ * only checks if the server answers and starts the adb client only if it does not. 'track-devices' is only
+ * supported with an output stream, which receives the messages exactly like the adb client prints them.
+ */
+public class AdbServerCmdProvider implements CmdProvider {
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_PORT = 5037;
+
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final String OKAY = "OKAY";
+    private static final String FAIL = "FAIL";
+    private static final String DEVICES_HEADER = "List of devices attached\n";
+    private static final String HOST_VERSION = "host:version";
+    private static final String SHELL_V2 = "shell,v2,raw:";
+    private static final int SHELL_V2_STDOUT = 1;
+    private static final int SHELL_V2_STDERR = 2;
+    private static final int SHELL_V2_EXIT = 3;
+
+    private final String host;
+    private final int port;
+    private final CmdProvider fallback;
+    private final CmdTimeouts timeouts;
+    private final CancellationToken cancellationToken;
+    private final CmdHistory history;
+    /**
+     * true if the fallback keeps its own history, so its results have to be recorded here too
+     */
+    private final boolean recordFallback;
+
+    public AdbServerCmdProvider(CmdProvider fallback) {
+        this(DEFAULT_HOST, DEFAULT_PORT, fallback);
+    }
+
+    public AdbServerCmdProvider(String host, int port, CmdProvider fallback) {
+        this(host, port, fallback, new CmdTimeouts(), new CancellationToken());
+    }
+
+    public AdbServerCmdProvider(CmdProvider fallback, CmdTimeouts timeouts, CancellationToken cancellationToken) {
+        this(DEFAULT_HOST, DEFAULT_PORT, fallback, timeouts, cancellationToken);
+    }
+
+    public AdbServerCmdProvider(String host, int port, CmdProvider fallback, CmdTimeouts timeouts, CancellationToken cancellationToken) {
+        this(host, port, fallback, timeouts, cancellationToken, null);
+    }
+
+    /**
+     * @param sharedHistory history the fallback records its commands to as well, so they are not recorded twice;
+     *                      null to keep an own history with the commands of both
+     */
+    public AdbServerCmdProvider(String host, int port, CmdProvider fallback, CmdTimeouts timeouts, CancellationToken cancellationToken, CmdHistory sharedHistory) {
+        this.host = host;
+        this.port = port;
+        this.fallback = fallback;
+        this.timeouts = timeouts;
+        this.cancellationToken = cancellationToken;
+        this.history = sharedHistory != null ? sharedHistory : new CmdHistory();
+        this.recordFallback = sharedHistory == null;
+    }
+
+    @Override
+    public Result runCmd(String[] args) {
+        return run(args, null);
+    }
+
+    @Override
+    public Result runCmd(String[] args, OutputStream outputStream) {
+        return run(args, outputStream);
+    }
+
+    @Override
+    public boolean canRunCmd(String[] cmd) {
+        return fallback.canRunCmd(cmd);
+    }
+
+    @Override
+    public List<Result> getHistory() {
+        return history.getResults();
+    }
+
+    private Result run(String[] args, OutputStream outputStream) {
+        Request request = Request.parse(args);
+        Result r = null;
+
+        if (request != null && request.supports(outputStream != null)) {
+            if (cancellationToken.isCancelled()) {
+                r = new Result("", null, args, -1, Result.State.CANCELLED);
+            } else {
+                Socket socket = connect(request);
+                if (socket != null) {
+                    r = execute(request, socket, args, outputStream);
+                }
+            }
+        }
+
+        if (r == null) {
+            // server not reachable - let the adb client deal with it
+            r = outputStream != null ? fallback.runCmd(args, outputStream) : fallback.runCmd(args);
+            if (recordFallback) {
+                history.add(r);
+            }
+        } else {
+            history.add(r);
+        }
+        return r;
+    }
+
+    /**
+     * @return connected socket or null if the server is not reachable
+     */
+    private Socket connect(Request request) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(request.host != null ? request.host : host,
+                    request.port > 0 ? request.port : port), CONNECT_TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            CancellationToken.closeQuietly(socket);
+            return null;
+        }
+    }
+
+    private Result execute(Request request, Socket socket, String[] args, OutputStream outputStream) {
+        cancellationToken.register(socket);
+        Watchdog watchdog = new Watchdog(timeouts.getTimeoutMs(args), socket);
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            if (request.hostService != null) {
+                String error = send(request.hostService, in, out);
+                if (error != null) {
+                    return errorResult(error, args);
+                }
+                if (request.isTracking()) {
+                    CmdUtil.copy(in, outputStream);
+                    return new Result("", null, args, 0);
+                }
+                if (request.hostService.equals(HOST_VERSION)) {
+                    readLengthPrefixed(in);
+                    return new Result("", null, args, 0);
+                }
+                return new Result(DEVICES_HEADER + Result.normalize(new String(readLengthPrefixed(in), StandardCharsets.UTF_8)), null, args, 0);
+            }
+
+            String error = send(request.serial != null ? "host:transport:" + request.serial : "host:transport-any", in, out);
+            if (error != null) {
+                return errorResult(error, args);
+            }
+            error = send(request.deviceService, in, out);
+            if (error != null) {
+                // the device does not support shell v2, the adb client knows how to get the exit code
+                return request.isShell() ? null : errorResult(error, args);
+            }
+
+            if (request.isShell()) {
+                return readShellV2(in, outputStream, args);
+            }
+            // 'exec' has no exit code, the same is true for 'adb exec-out'
+            if (outputStream != null) {
+                CmdUtil.copy(in, outputStream);
+                return new Result("", null, args, 0);
+            }
+            return new Result(CmdUtil.readFully(in), null, args, 0, Result.State.FINISHED);
+        } catch (IOException e) {
+            Result.State state = Result.State.FINISHED;
+            if (watchdog.hasFired()) {
+                state = Result.State.TIMED_OUT;
+            } else if (cancellationToken.isCancelled()) {
+                state = Result.State.CANCELLED;
+            }
+            return new Result("", e, args, -1, state);
+        } finally {
+            watchdog.close();
+            cancellationToken.unregister(socket);
+            CancellationToken.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Reads shell v2 packets (1 byte id, 4 byte little endian length, payload) until the exit packet. Stdout and
+     * stderr are merged like the output of the adb client process.
+     */
+    private static Result readShellV2(InputStream in, OutputStream outputStream, String[] args) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        ByteArrayOutputStream collected = outputStream == null ? new ByteArrayOutputStream() : null;
+        OutputStream target = outputStream != null ? outputStream : collected;
+        byte[] header = new byte[5];
+        byte[] buffer = new byte[8192];
+        int exitValue;
+
+        while (true) {
+            try {
+                data.readFully(header);
+            } catch (EOFException e) {
+                return shellResult(collected, new IOException("shell ended without exit code", e), args, -1);
+            }
+            int id = header[0];
+            int length = ByteBuffer.wrap(header, 1, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+
+            if (id == SHELL_V2_EXIT) {
+                byte[] payload = readFully(data, length);
+                exitValue = payload.length > 0 ? payload[0] & 0xff : -1;
+                break;
+            }
+            while (length > 0) {
+                int read = data.read(buffer, 0, Math.min(buffer.length, length));
+                if (read < 0) {
+                    throw new EOFException("shell packet ended early");
+                }
+                if (id == SHELL_V2_STDOUT || id == SHELL_V2_STDERR) {
+                    target.write(buffer, 0, read);
+                }
+                length -= read;
+            }
+        }
+        if (outputStream != null) {
+            outputStream.flush();
+        }
+        return shellResult(collected, null, args, exitValue);
+    }
+
+    private static Result shellResult(ByteArrayOutputStream collected, Exception exception, String[] args, int exitValue) {
+        if (collected == null) {
+            return new Result("", exception, args, exitValue);
+        }
+        return new Result(ByteBuffer.wrap(collected.toByteArray()), exception, args, exitValue, Result.State.FINISHED);
+    }
+
+    private static Result errorResult(String error, String[] args) {
+        return new Result("error: " + error + "\n", null, args, 1);
+    }
+
+    /**
+     * Sends a single request and reads the status
+     *
+     * @return null if server replied with OKAY, otherwise the error message
+     */
+    static String send(String service, InputStream in, OutputStream out) throws IOException {
+        byte[] payload = service.getBytes(StandardCharsets.UTF_8);
+        out.write(String.format(Locale.US, "%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+        out.flush();
+
+        String status = new String(readFully(in, 4), StandardCharsets.US_ASCII);
+        if (OKAY.equals(status)) {
+            return null;
+        } else if (FAIL.equals(status)) {
+            return new String(readLengthPrefixed(in), StandardCharsets.UTF_8);
+        }
+        throw new IOException("unexpected adb server response '" + status + "' for " + service);
+    }
+
+    static byte[] readLengthPrefixed(InputStream in) throws IOException {
+        int length = Integer.parseInt(new String(readFully(in, 4), StandardCharsets.US_ASCII), 16);
+        return readFully(in, length);
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        new DataInputStream(in).readFully(buffer);
+        return buffer;
+    }
+
+    /**
+     * An adb client command line translated to host protocol services
+     */
+    static final class Request {
+        final String serial;
+        final String host;
+        final int port;
+        final String hostService;
+        final String deviceService;
+
+        private Request(AdbCommand command, String hostService, String deviceService) {
+            this.serial = command.serial;
+            this.host = command.host;
+            this.port = command.port;
+            this.hostService = hostService;
+            this.deviceService = deviceService;
+        }
+
+        /**
+         * @return true for services which send messages until the connection is closed
+         */
+        boolean isShell() {
+            return deviceService != null && deviceService.startsWith(SHELL_V2);
+        }
+
+        boolean isTracking() {
+            return hostService != null && hostService.startsWith("host:track-devices");
+        }
+
+        /**
+         * Device services can be streamed or collected; tracking must be streamed, other host services are collected
+         */
+        boolean supports(boolean streaming) {
+            return deviceService != null || streaming == isTracking();
+        }
+
+        /**
+         * @param args full adb client command line, first element is the adb executable
+         * @return the request or null if the command is not supported by this provider
+         */
+        static Request parse(String[] args) {
+            AdbCommand command = AdbCommand.parse(args);
+
+            if (command == null || command.hasOtherOptions) {
+                return null;
+            }
+
+            if (command.command.equals("devices") && command.serial == null) {
+                if (command.params.length == 0) {
+                    return new Request(command, "host:devices", null);
+                } else if (command.params.length == 1 && command.params[0].equals("-l")) {
+                    return new Request(command, "host:devices-l", null);
+                }
+            } else if (command.command.equals("track-devices") && command.serial == null) {
+                if (command.params.length == 0) {
+                    return new Request(command, "host:track-devices", null);
+                } else if (command.params.length == 1 && command.params[0].equals("-l")) {
+                    return new Request(command, "host:track-devices-l", null);
+                }
+            } else if (command.command.equals("start-server") && command.serial == null && command.params.length == 0) {
+                return new Request(command, HOST_VERSION, null);
+            } else if (command.command.equals("shell") && command.params.length > 0 && !command.params[0].startsWith("-")) {
+                return new Request(command, null, SHELL_V2 + command.paramsLine());
+            } else if (command.command.equals("exec-out") && command.params.length > 0) {
+                return new Request(command, null, "exec:" + command.paramsLine());
+            }
+            return null;
+        }
+    }
+}
@@ -24,19 +24,45 @@ import at.favre.tools.uberadb.actions.Install;
 import at.favre.tools.uberadb.actions.PackageDependentAction;
 import at.favre.tools.uberadb.parser.AdbDevice;
 import at.favre.tools.uberadb.parser.AdbDevicesParser;
+import at.favre.tools.uberadb.parser.GetPropParser;
 import at.favre.tools.uberadb.parser.InstalledPackagesParser;
+import at.favre.tools.uberadb.parser.PackageUniverse;
 import at.favre.tools.uberadb.ui.Arg;
 import at.favre.tools.uberadb.ui.CLIParser;
+import at.favre.tools.uberadb.util.ChecksumCache;
 import at.favre.tools.uberadb.util.CmdUtil;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class AdbTool {
 
@@ -51,16 +77,59 @@ public final class AdbTool {
         }
 
         if (arguments != null) {
-            Commons.ActionResult result = execute(arguments, new CmdProvider.DefaultCmdProvider(), new AdbLocationFinderImpl(), new CliUserPromptHandler());
+            final CancellationToken cancellationToken = new CancellationToken();
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    cancellationToken.cancel();
+                }
+            }));
+
+            CmdTimeouts timeouts = CmdTimeouts.parse(arguments.cmdTimeouts);
+            CmdHistory.setSpillByDefault(arguments.debug);
+            // one history with one budget for the whole chain, every provider records the commands it ran itself
+            CmdHistory history = new CmdHistory();
+            CmdProvider cmdProvider = new AdbServerCmdProvider(AdbServerCmdProvider.DEFAULT_HOST, AdbServerCmdProvider.DEFAULT_PORT,
+                    new CmdProvider.DefaultCmdProvider(history, timeouts, cancellationToken), timeouts, cancellationToken, history);
+            SessionCmdProvider sessionCmdProvider = null;
+            if (arguments.shellSession) {
+                cmdProvider = sessionCmdProvider = new SessionCmdProvider(cmdProvider, timeouts, cancellationToken, history);
+            }
+            MetricsCmdProvider metricsCmdProvider = null;
+            if (arguments.metricsFile != null) {
+                cmdProvider = metricsCmdProvider = new MetricsCmdProvider(cmdProvider);
+            }
+            DeviceHealthCmdProvider deviceHealthCmdProvider = new DeviceHealthCmdProvider(cmdProvider, arguments.deviceConcurrency,
+                    DeviceHealthCmdProvider.DEFAULT_QUARANTINE_TIMEOUTS);
+            cmdProvider = new CachingCmdProvider(deviceHealthCmdProvider);
+            Commons.setChecksumCache(new ChecksumCache(ChecksumCache.defaultCacheFile()));
+
+            Commons.ActionResult result = execute(arguments, cmdProvider, metricsCmdProvider, deviceHealthCmdProvider,
+                    new CachingAdbLocationFinder(new AdbLocationFinderImpl()), new CliUserPromptHandler());
+
+            if (sessionCmdProvider != null) {
+                sessionCmdProvider.close();
+            }
 
-            if (result == null) {
-                System.exit(1);
-            } else if (result.failureCount > 0) {
-                System.exit(2);
+            int exitCode = getExitCode(result);
+            if (exitCode != 0) {
+                System.exit(exitCode);
             }
         }
     }
 
+    /**
+     * @return 1 if the run was aborted, 2 if there were failures or all apks were skipped (nothing installed), else 0
+     */
+    static int getExitCode(Commons.ActionResult result) {
+        if (result == null) {
+            return 1;
+        } else if (result.failureCount > 0 || (result.successCount == 0 && result.skipCount > 0)) {
+            return 2;
+        }
+        return 0;
+    }
+
     static Arg checkIfIsQuickInstall(String[] args) {
         Arg arguments = null;
         if (args.length == 1 && args[0].toLowerCase().endsWith(".apk") && (new File(args[0])).isFile()) {
@@ -75,91 +144,389 @@ public final class AdbTool {
     }
 
     static Commons.ActionResult execute(Arg arguments, CmdProvider cmdProvider, AdbLocationFinder locationFinder, UserPromptHandler promptHandler) {
+        return execute(arguments, cmdProvider, null, locationFinder, promptHandler);
+    }
+
+    static Commons.ActionResult execute(Arg arguments, CmdProvider cmdProvider, MetricsCmdProvider metricsCmdProvider, AdbLocationFinder locationFinder, UserPromptHandler promptHandler) {
+        return execute(arguments, cmdProvider, metricsCmdProvider, null, locationFinder, promptHandler);
+    }
+
+    /**
+     * @param metricsCmdProvider      part of the cmdProvider chain; if not null its metrics are written to {@link Arg#metricsFile} at the end
+     * @param deviceHealthCmdProvider part of the cmdProvider chain, below any caching; if null the cmdProvider is wrapped with a new one
+     */
+    static Commons.ActionResult execute(Arg arguments, CmdProvider cmdProvider, MetricsCmdProvider metricsCmdProvider, DeviceHealthCmdProvider deviceHealthCmdProvider,
+                                        AdbLocationFinder locationFinder, UserPromptHandler promptHandler) {
+        if (deviceHealthCmdProvider == null) {
+            cmdProvider = deviceHealthCmdProvider = new DeviceHealthCmdProvider(cmdProvider);
+        }
         Commons.ActionResult result = null;
+        TraceRecorder traceRecorder = arguments.traceFile != null ? new TraceRecorder() : null;
+        Commons.setTraceRecorder(traceRecorder);
 
         try {
-            AdbLocationFinder.LocationResult adbLocation = locationFinder.find(cmdProvider, arguments.adbPath);
+            long startupStart = System.nanoTime();
+            AdbLocationFinder.LocationResult adbLocation;
+            try (TraceRecorder.Span ignored = Commons.traceSpan("find adb", null)) {
+                adbLocation = locationFinder.find(cmdProvider, arguments.adbPath);
+            }
+            long findAdbNanos = System.nanoTime() - startupStart;
+            List<AdbServerAddress> servers = AdbServerAddress.parse(arguments.adbServers);
 
-            Commons.runAdbCommand(new String[]{"start-server"}, cmdProvider, adbLocation);
+            long startServerStart = System.nanoTime();
+            if (servers.isEmpty()) {
+                Commons.runAdbCommand(new String[]{"start-server"}, cmdProvider, adbLocation);
+            }
+            long startServerNanos = System.nanoTime() - startServerStart;
 
-            if (arguments.waitForDevice) {
-                Commons.log("waiting for device...", arguments);
-                Commons.runAdbCommand(new String[]{"wait-for-device"}, cmdProvider, adbLocation);
+            if (arguments.debug) {
+                Commons.log(String.format(Locale.US, "startup took %d ms (find adb %d ms%s, start server %d ms), using %s%s",
+                        (System.nanoTime() - startupStart) / 1_000_000L, findAdbNanos / 1_000_000L,
+                        locationFinder instanceof CachingAdbLocationFinder && ((CachingAdbLocationFinder) locationFinder).wasCacheHit() ? " cached" : "",
+                        startServerNanos / 1_000_000L, adbLocation.arg().trim(), adbLocation.version != null ? " (" + adbLocation.version + ")" : ""), arguments);
             }
 
-            CmdProvider.Result devicesCmdResult = Commons.runAdbCommand(new String[]{"devices", "-l"}, cmdProvider, adbLocation);
-            List<AdbDevice> devices = new AdbDevicesParser().parse(devicesCmdResult.out);
+            if (arguments.expectDevices > 0) {
+                try (TraceRecorder.Span ignored = Commons.traceSpan("watch devices", null)) {
+                    result = watchDevices(adbLocation, servers, arguments, cmdProvider, deviceHealthCmdProvider, new PackageUniverse());
+                }
+            } else {
+                result = processAttachedDevices(adbLocation, servers, arguments, cmdProvider, deviceHealthCmdProvider, new PackageUniverse(), promptHandler);
+            }
 
-            if (!devices.isEmpty()) {
-                Commons.checkSpecificDevice(devices, arguments);
+            if (arguments.debug) {
+                printCommandHistory(cmdProvider, System.out);
+            }
+        } catch (Exception e) {
+            Commons.logErr(e.getClass().getName() + ": " + e.getMessage());
 
-                StringBuilder statusLog = new StringBuilder("Found " + devices.size() + " device(s).");
+            if (arguments.debug) {
+                printCommandHistory(cmdProvider, System.err);
+                e.printStackTrace();
+            } else {
+                Commons.logErr("Run with '-debug' parameter to get additional information.");
+            }
+            return null;
+        } finally {
+            Commons.getChecksumCache().save();
+            if (metricsCmdProvider != null && arguments.metricsFile != null) {
+                writeMetrics(metricsCmdProvider, new File(arguments.metricsFile));
+            }
+            if (traceRecorder != null) {
+                Commons.setTraceRecorder(null);
+                writeTrace(traceRecorder, new File(arguments.traceFile));
+            }
+        }
+        return result;
+    }
 
-                if (arguments.mode == Arg.Mode.INSTALL) {
-                    statusLog.append(" Installing '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
-                    if (arguments.grantPermissions) {
-                        statusLog.append(" Grant permissions.");
-                    }
-                    if (arguments.keepData) {
-                        statusLog.append(" Reinstall.");
-                    }
-                } else if (arguments.mode == Arg.Mode.UNINSTALL) {
-                    statusLog.append(" Uninstalling with filter '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
-                    if (arguments.keepData) {
-                        statusLog.append(" Keep data/caches.");
-                    }
-                } else if (arguments.mode == Arg.Mode.FORCE_STOP) {
-                    statusLog.append(" Force stopping packages '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
-                } else if (arguments.mode == Arg.Mode.CLEAR) {
-                    statusLog.append(" Clear data for packages '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
-                } else if (arguments.mode == Arg.Mode.BUGREPORT && arguments.mainArgument != null && arguments.mainArgument.length == 1) {
-                    statusLog.append(" Creating bugreport and save to '").append(arguments.mainArgument[0]).append("'.");
-                    if (arguments.reportFilterIntent != null) {
-                        statusLog.append(" Use activity manager command ").append(Arrays.toString(arguments.reportFilterIntent));
+    /**
+     * Runs the action on all devices attached right now (after waiting for the first one if requested)
+     *
+     * @param servers adb servers to use instead of the default one, may be empty
+     * @return the result or null if the user did not want to proceed
+     */
+    private static Commons.ActionResult processAttachedDevices(AdbLocationFinder.LocationResult adbLocation, List<AdbServerAddress> servers, Arg arguments,
+                                                               CmdProvider cmdProvider, DeviceHealthCmdProvider deviceHealth, PackageUniverse packageUniverse,
+                                                               UserPromptHandler promptHandler) throws Exception {
+        if (arguments.waitForDevice) {
+            Commons.log("waiting for device...", arguments);
+            waitForDevice(adbLocation, servers, cmdProvider);
+        }
+
+        DeviceSelector selector = DeviceSelector.create(arguments);
+        List<AdbDevice> devices = findDevices(adbLocation, servers, cmdProvider);
+        try (TraceRecorder.Span ignored = Commons.traceSpan("read properties", null)) {
+            devices = readProperties(devices, adbLocation, selector, arguments, cmdProvider);
+        }
+
+        if (!devices.isEmpty()) {
+            Commons.checkSpecificDevice(devices, selector);
+
+            StringBuilder statusLog = new StringBuilder("Found " + devices.size() + " device(s)");
+            statusLog.append(servers.isEmpty() ? "." : " on " + servers.size() + " adb server(s).");
+            if (selector.isRestricted()) {
+                int selectedCount = 0;
+                for (AdbDevice device : devices) {
+                    if (selector.matches(device)) {
+                        selectedCount++;
                     }
-                } else if (arguments.mode == Arg.Mode.START_ACTIVITY) {
-                    statusLog.append(" Start apps matching packages '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
-                    statusLog.append(" Activity start delay is ").append(arguments.delayStartActivitySec).append(" sec.");
                 }
+                statusLog.append(" Selected ").append(selectedCount).append(" by ").append(selector).append(".");
+            }
 
-                if (arguments.force) {
-                    statusLog.append(" Skips user prompt.");
+            if (arguments.mode == Arg.Mode.INSTALL) {
+                statusLog.append(" Installing '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
+                if (arguments.grantPermissions) {
+                    statusLog.append(" Grant permissions.");
                 }
-
-                if (adbLocation.location == AdbLocationFinder.Location.WIN_DEFAULT ||
-                        adbLocation.location == AdbLocationFinder.Location.MAC_DEFAULT ||
-                        adbLocation.location == AdbLocationFinder.Location.LINUX_DEFAULT) {
-                    statusLog.append(" Adb not found in PATH, use default location: ").append(adbLocation.arg()).append(".");
+                if (arguments.keepData) {
+                    statusLog.append(" Reinstall.");
+                }
+            } else if (arguments.mode == Arg.Mode.UNINSTALL) {
+                statusLog.append(" Uninstalling with filter '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
+                if (arguments.keepData) {
+                    statusLog.append(" Keep data/caches.");
                 }
+            } else if (arguments.mode == Arg.Mode.FORCE_STOP) {
+                statusLog.append(" Force stopping packages '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
+            } else if (arguments.mode == Arg.Mode.CLEAR) {
+                statusLog.append(" Clear data for packages '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
+            } else if (arguments.mode == Arg.Mode.BUGREPORT && arguments.mainArgument != null && arguments.mainArgument.length == 1) {
+                statusLog.append(" Creating bugreport and save to '").append(arguments.mainArgument[0]).append("'.");
+                if (arguments.reportFilterIntent != null) {
+                    statusLog.append(" Use activity manager command ").append(Arrays.toString(arguments.reportFilterIntent));
+                }
+            } else if (arguments.mode == Arg.Mode.START_ACTIVITY) {
+                statusLog.append(" Start apps matching packages '").append(CmdUtil.concat(arguments.mainArgument, ", ")).append("'.");
+                statusLog.append(" Activity start delay is ").append(arguments.delayStartActivitySec).append(" sec.");
+            }
 
-                statusLog.append("\n");
+            if (arguments.force) {
+                statusLog.append(" Skips user prompt.");
+            }
 
-                Commons.logLoud(statusLog.toString());
+            if (adbLocation.location == AdbLocationFinder.Location.WIN_DEFAULT ||
+                    adbLocation.location == AdbLocationFinder.Location.MAC_DEFAULT ||
+                    adbLocation.location == AdbLocationFinder.Location.LINUX_DEFAULT) {
+                statusLog.append(" Adb not found in PATH, use default location: ").append(adbLocation.arg()).append(".");
             }
 
-            if (iterateDevices(devices, adbLocation, arguments, cmdProvider, promptHandler, true).proceed) {
-                result = iterateDevices(devices, adbLocation, arguments, cmdProvider, promptHandler, false).result;
+            statusLog.append("\n");
+
+            Commons.logLoud(statusLog.toString());
+        }
+
+        boolean proceed;
+        try (TraceRecorder.Span ignored = Commons.traceSpan("preview", null)) {
+            proceed = iterateDevices(devices, selector, adbLocation, arguments, cmdProvider, deviceHealth, packageUniverse, promptHandler, true).proceed;
+        }
+        if (proceed) {
+            try (TraceRecorder.Span ignored = Commons.traceSpan("execute", null)) {
+                return iterateDevices(devices, selector, adbLocation, arguments, cmdProvider, deviceHealth, packageUniverse, promptHandler, false).result;
             }
+        }
+        return null;
+    }
 
-            if (arguments.debug) {
-                Commons.logLoud(getCommandHistory(cmdProvider));
+    /**
+     * Lists the devices of the default adb server or, if given, of all servers in parallel. Servers which
+     * can not be reached are skipped.
+     */
+    private static List<AdbDevice> findDevices(AdbLocationFinder.LocationResult adbLocation, List<AdbServerAddress> servers, CmdProvider cmdProvider) {
+        if (servers.isEmpty()) {
+            CmdProvider.Result devicesCmdResult = Commons.runAdbCommand(new String[]{"devices", "-l"}, cmdProvider, adbLocation);
+            return new AdbDevicesParser().parse(devicesCmdResult.getOut());
+        }
+
+        List<CompletableFuture<CmdProvider.Result>> futures = new ArrayList<>();
+        for (AdbServerAddress server : servers) {
+            futures.add(Commons.runAdbCommandAsync(new String[]{"devices", "-l"}, cmdProvider, adbLocation.forServer(server)));
+        }
+
+        List<AdbDevice> devices = new ArrayList<>();
+        for (int i = 0; i < servers.size(); i++) {
+            CmdProvider.Result devicesCmdResult = Commons.await(futures.get(i));
+            if (devicesCmdResult.exitValue != 0) {
+                Commons.logErr("adb server " + servers.get(i) + " not reachable: " + devicesCmdResult.getOut().trim());
+                continue;
             }
-        } catch (Exception e) {
-            Commons.logErr(e.getClass().getName() + ": " + e.getMessage());
+            for (AdbDevice device : new AdbDevicesParser().parse(devicesCmdResult.getOut())) {
+                devices.add(device.withServer(servers.get(i).toString()));
+            }
+        }
+        return devices;
+    }
 
-            if (arguments.debug) {
-                Commons.logErr(getCommandHistory(cmdProvider));
-                e.printStackTrace();
+    /**
+     * Reads the properties of all devices which will be processed in parallel, one 'getprop' per device
+     *
+     * @return the devices in the same order, processed ones with their property snapshot
+     */
+    private static List<AdbDevice> readProperties(List<AdbDevice> devices, AdbLocationFinder.LocationResult adbLocation, DeviceSelector selector,
+                                                  Arg arguments, CmdProvider cmdProvider) {
+        List<CompletableFuture<AdbDevice>> futures = new ArrayList<>();
+        for (AdbDevice device : devices) {
+            if (selector.mayMatch(device) && (!arguments.skipEmulators || !device.isEmulator)) {
+                futures.add(readPropertiesAsync(device, locationFor(device, adbLocation), cmdProvider));
             } else {
-                Commons.logErr("Run with '-debug' parameter to get additional information.");
+                futures.add(CompletableFuture.completedFuture(device));
             }
-            return null;
         }
-        return result;
+
+        List<AdbDevice> devicesWithProperties = new ArrayList<>();
+        for (CompletableFuture<AdbDevice> future : futures) {
+            devicesWithProperties.add(Commons.await(future));
+        }
+        return devicesWithProperties;
+    }
+
+    /**
+     * @param deviceLocation location of the adb server the device is attached to
+     * @return the device with its property snapshot, unchanged if it is not ready
+     */
+    private static CompletableFuture<AdbDevice> readPropertiesAsync(final AdbDevice device, AdbLocationFinder.LocationResult deviceLocation, CmdProvider cmdProvider) {
+        if (device.status != AdbDevice.Status.OK) {
+            return CompletableFuture.completedFuture(device);
+        }
+        return Commons.runAdbCommandAsync(new String[]{"-s", device.serial, "shell", "getprop"}, cmdProvider, deviceLocation)
+                .thenApply(result -> result.exitValue == 0 ? device.withProperties(new GetPropParser().parse(result.getOut())) : device);
     }
 
-    private static Commons.IterationResult iterateDevices(List<AdbDevice> devices, AdbLocationFinder.LocationResult adbLocation, Arg arguments,
-                                                          CmdProvider cmdProvider, UserPromptHandler promptHandler, boolean preview) throws Exception {
+    /**
+     * Blocks until a device is ready; with multiple adb servers on any of them
+     */
+    private static void waitForDevice(AdbLocationFinder.LocationResult adbLocation, List<AdbServerAddress> servers, CmdProvider cmdProvider) throws InterruptedException {
+        if (servers.isEmpty()) {
+            Commons.runAdbCommand(new String[]{"wait-for-device"}, cmdProvider, adbLocation);
+            return;
+        }
+
+        BlockingQueue<AdbDevice> changedDevices = new LinkedBlockingQueue<>();
+        List<DeviceTrackingStream> trackingStreams = trackDevices(adbLocation, servers, cmdProvider, changedDevices);
+        try {
+            AdbDevice device;
+            do {
+                device = changedDevices.take();
+            } while (device != DeviceTrackingStream.END_OF_STREAM && device.status != AdbDevice.Status.OK);
+        } finally {
+            stopTracking(trackingStreams);
+        }
+    }
+
+    /**
+     * Follows 'adb track-devices -l' on the default adb server or on all given servers and queues every changed
+     * device. {@link DeviceTrackingStream#END_OF_STREAM} is queued after all tracking commands ended.
+     */
+    private static List<DeviceTrackingStream> trackDevices(AdbLocationFinder.LocationResult adbLocation, List<AdbServerAddress> servers,
+                                                           CmdProvider cmdProvider, final BlockingQueue<AdbDevice> changedDevices) {
+        List<AdbServerAddress> trackedServers = servers.isEmpty() ? Collections.<AdbServerAddress>singletonList(null) : servers;
+        final AtomicInteger runningCount = new AtomicInteger(trackedServers.size());
+        List<DeviceTrackingStream> trackingStreams = new ArrayList<>();
+
+        for (AdbServerAddress server : trackedServers) {
+            DeviceTrackingStream trackingStream = new DeviceTrackingStream(changedDevices, server != null ? server.toString() : null);
+            trackingStreams.add(trackingStream);
+            Commons.runAdbCommandAsync(new String[]{"track-devices", "-l"}, trackingStream, cmdProvider, server != null ? adbLocation.forServer(server) : adbLocation)
+                    .whenComplete((r, e) -> {
+                        if (runningCount.decrementAndGet() == 0) {
+                            changedDevices.add(DeviceTrackingStream.END_OF_STREAM);
+                        }
+                    });
+        }
+        return trackingStreams;
+    }
+
+    private static void stopTracking(List<DeviceTrackingStream> trackingStreams) {
+        for (DeviceTrackingStream trackingStream : trackingStreams) {
+            trackingStream.stop();
+        }
+    }
+
+    /**
+     * Watch mode: follows 'adb track-devices -l' and runs the action on every device as soon as it is ready, each
+     * device only once. Ends after {@link Arg#expectDevices} devices or when tracking stops (e.g. 'wait' timeout);
+     * devices which never showed up are counted as failures.
+     */
+    private static Commons.ActionResult watchDevices(AdbLocationFinder.LocationResult adbLocation, List<AdbServerAddress> servers, Arg arguments,
+                                                     CmdProvider cmdProvider, DeviceHealthCmdProvider deviceHealth, PackageUniverse packageUniverse) throws Exception {
+        Commons.logLoud("Waiting for " + arguments.expectDevices + " device(s)...");
+        long startDuration = System.currentTimeMillis();
+
+        DeviceSelector selector = DeviceSelector.create(arguments);
+        final BlockingQueue<AdbDevice> readyDevices = new LinkedBlockingQueue<>();
+        List<DeviceTrackingStream> trackingStreams = trackDevices(adbLocation, servers, cmdProvider, readyDevices);
+
+        Commons.ActionResult actionResult = new Commons.ActionResult();
+        ExecutorService executor = Executors.newFixedThreadPool(arguments.parallel > 0 ? Math.min(arguments.parallel, arguments.expectDevices) : arguments.expectDevices);
+        CompletionService<DeviceResult> completionService = new ExecutorCompletionService<>(executor);
+        Set<String> handledDevices = new HashSet<>();
+        int submitted = 0;
+        int completed = 0;
+        try {
+            while (submitted < arguments.expectDevices) {
+                AdbDevice device = readyDevices.poll(100, TimeUnit.MILLISECONDS);
+                if (device == DeviceTrackingStream.END_OF_STREAM) {
+                    break;
+                }
+                if (device != null && device.status == AdbDevice.Status.OK && selector.mayMatch(device) && !handledDevices.contains(device.getName())) {
+                    boolean readProperties = true;
+                    if (selector.needsProperties()) {
+                        // predicates on properties decide if the device counts, so read them before submitting
+                        device = Commons.await(readPropertiesAsync(device, locationFor(device, adbLocation), cmdProvider));
+                        readProperties = false;
+                    }
+                    if (selector.matches(device)) {
+                        handledDevices.add(device.getName());
+                        Commons.log("device " + device.getName() + " ready", arguments);
+                        completionService.submit(new DeviceTask(device, locationFor(device, adbLocation), arguments, cmdProvider, packageUniverse, false, readProperties));
+                        submitted++;
+                    }
+                }
+
+                Future<DeviceResult> done;
+                while ((done = completionService.poll()) != null) {
+                    addDeviceResult(done, actionResult);
+                    completed++;
+                }
+            }
+            stopTracking(trackingStreams);
+
+            for (; completed < submitted; completed++) {
+                addDeviceResult(completionService.take(), actionResult);
+            }
+        } finally {
+            stopTracking(trackingStreams);
+            executor.shutdownNow();
+        }
+
+        if (submitted < arguments.expectDevices) {
+            Commons.logLoud(String.format(Locale.US, "Only %d of %d expected device(s) were ready.", submitted, arguments.expectDevices));
+            actionResult.failureCount += arguments.expectDevices - submitted;
+        }
+        Commons.logLoud(generateReport(arguments.mode, actionResult.deviceCount, actionResult.successCount, actionResult.failureCount, actionResult.skipCount,
+                System.currentTimeMillis() - startDuration, actionResult.deviceDurationMs, deviceHealth.getSlowDeviceReport()));
+        return actionResult;
+    }
+
+    private static void addDeviceResult(Future<DeviceResult> future, Commons.ActionResult actionResult) throws Exception {
+        DeviceResult deviceResult;
+        try {
+            deviceResult = future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+        System.out.print(deviceResult.log);
+        actionResult.add(deviceResult.actionResult);
+    }
+
+    private static void writeTrace(TraceRecorder traceRecorder, File file) {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            traceRecorder.writeJson(writer);
+        } catch (IOException e) {
+            Commons.logErr("could not write trace to " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void writeMetrics(MetricsCmdProvider metricsCmdProvider, File jsonFile) {
+        String name = jsonFile.getName();
+        File promFile = new File(jsonFile.getAbsoluteFile().getParentFile(),
+                (name.toLowerCase(Locale.US).endsWith(".json") ? name.substring(0, name.length() - 5) : name) + ".prom");
+        try (Writer jsonWriter = new OutputStreamWriter(new FileOutputStream(jsonFile), StandardCharsets.UTF_8);
+             Writer promWriter = new OutputStreamWriter(new FileOutputStream(promFile), StandardCharsets.UTF_8)) {
+            metricsCmdProvider.writeJson(jsonWriter);
+            metricsCmdProvider.writePrometheus(promWriter);
+        } catch (IOException e) {
+            Commons.logErr("could not write metrics to " + jsonFile + ": " + e.getMessage());
+        }
+    }
+
+    private static Commons.IterationResult iterateDevices(List<AdbDevice> devices, DeviceSelector selector, AdbLocationFinder.LocationResult adbLocation,
+                                                          Arg arguments, CmdProvider cmdProvider, DeviceHealthCmdProvider deviceHealth,
+                                                          PackageUniverse packageUniverse, UserPromptHandler promptHandler, boolean preview) throws Exception {
         Commons.ActionResult actionResult = new Commons.ActionResult();
 
         if (preview && (arguments.dryRun || arguments.force || arguments.mode == Arg.Mode.BUGREPORT || arguments.mode == Arg.Mode.FORCE_STOP
@@ -170,40 +537,31 @@ public final class AdbTool {
 
         long startDuration = System.currentTimeMillis();
 
+        List<AdbDevice> selectedDevices = new ArrayList<>();
         for (AdbDevice device : devices) {
-            if (arguments.device == null || arguments.device.equals(device.serial)) {
-                CmdProvider.Result packagesCmdResult = Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "pm list packages -f"}, cmdProvider, adbLocation);
-
-                String modelName = "Device";
-                if (device.model != null) {
-                    modelName = device.model;
-                }
+            if (selector.matches(device)) {
+                selectedDevices.add(device);
+            }
+        }
 
-                String deviceLog = modelName + " [" + device.serial + "]";
+        int parallelDeviceCount = getParallelDeviceCount(selectedDevices, arguments);
+        if (!preview && parallelDeviceCount < selectedDevices.size()) {
+            sortByPriority(selectedDevices, deviceHealth);
+        }
 
-                if (device.status != AdbDevice.Status.OK) {
-                    deviceLog += ": " + device.status;
+        if (!selectedDevices.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(selectedDevices.size(), parallelDeviceCount));
+            try {
+                List<Future<DeviceResult>> futures = new ArrayList<>();
+                for (AdbDevice device : selectedDevices) {
+                    futures.add(executor.submit(new DeviceTask(device, locationFor(device, adbLocation), arguments, cmdProvider, packageUniverse, preview, false)));
                 }
 
-                if (arguments.skipEmulators && device.isEmulator) {
-                    deviceLog += " (skip)";
+                for (Future<DeviceResult> future : futures) {
+                    addDeviceResult(future, actionResult);
                 }
-
-                Commons.log(deviceLog, arguments);
-
-                if (device.status == AdbDevice.Status.OK && (!arguments.skipEmulators || !device.isEmulator)) {
-                    actionResult.deviceCount++;
-                    List<String> allPackages = new InstalledPackagesParser().parse(packagesCmdResult.out);
-
-                    if (arguments.mode == Arg.Mode.BUGREPORT) {
-                        BugReport.create(adbLocation, arguments, cmdProvider, device, allPackages);
-                    } else if (arguments.mode == Arg.Mode.INSTALL) {
-                        Install.execute(adbLocation, arguments, cmdProvider, preview, actionResult, device);
-                    } else if (arguments.mode == Arg.Mode.UNINSTALL || arguments.mode == Arg.Mode.FORCE_STOP || arguments.mode == Arg.Mode.CLEAR || arguments.mode == Arg.Mode.INFO || arguments.mode == Arg.Mode.START_ACTIVITY) {
-                        PackageDependentAction.execute(adbLocation, arguments, cmdProvider, preview, actionResult, device, allPackages);
-                    }
-                }
-                Commons.log("", arguments);
+            } finally {
+                executor.shutdownNow();
             }
         }
 
@@ -224,13 +582,93 @@ public final class AdbTool {
             }
         } else {
             if (actionResult.deviceCount > 0) {
-                Commons.logLoud(generateReport(arguments.mode, actionResult.deviceCount, actionResult.successCount, actionResult.failureCount, System.currentTimeMillis() - startDuration));
+                Commons.logLoud(generateReport(arguments.mode, actionResult.deviceCount, actionResult.successCount, actionResult.failureCount, actionResult.skipCount,
+                        System.currentTimeMillis() - startDuration, actionResult.deviceDurationMs, deviceHealth.getSlowDeviceReport()));
             }
         }
 
         return new Commons.IterationResult(actionResult, true);
     }
 
+    private static void processDevice(AdbDevice device, AdbLocationFinder.LocationResult adbLocation, Arg arguments, CmdProvider cmdProvider,
+                                      PackageUniverse packageUniverse, boolean preview, Commons.ActionResult actionResult) throws Exception {
+        CmdProvider.Result packagesCmdResult;
+        try (TraceRecorder.Span ignored = Commons.traceSpan("package listing", device)) {
+            packagesCmdResult = Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "pm list packages -f"}, cmdProvider, adbLocation);
+        }
+
+        String modelName = "Device";
+        if (device.model != null) {
+            modelName = device.model;
+        }
+
+        String deviceLog = modelName + " [" + device.getName() + "]";
+
+        if (device.status != AdbDevice.Status.OK) {
+            deviceLog += ": " + device.status;
+        }
+
+        if (arguments.skipEmulators && device.isEmulator) {
+            deviceLog += " (skip)";
+        }
+
+        Commons.log(deviceLog, arguments);
+
+        if (device.status == AdbDevice.Status.OK && (!arguments.skipEmulators || !device.isEmulator)) {
+            actionResult.deviceCount++;
+            PackageUniverse.PackageSet installedPackages = packageUniverse.add(packagesCmdResult.hasRawOut()
+                    ? new InstalledPackagesParser().parse(packagesCmdResult.getRawOut())
+                    : new InstalledPackagesParser().parse(packagesCmdResult.getOut()));
+
+            if (arguments.mode == Arg.Mode.BUGREPORT) {
+                BugReport.create(adbLocation, arguments, cmdProvider, device, installedPackages);
+            } else if (arguments.mode == Arg.Mode.INSTALL) {
+                Install.execute(adbLocation, arguments, cmdProvider, preview, actionResult, device);
+            } else if (arguments.mode == Arg.Mode.UNINSTALL || arguments.mode == Arg.Mode.FORCE_STOP || arguments.mode == Arg.Mode.CLEAR || arguments.mode == Arg.Mode.INFO || arguments.mode == Arg.Mode.START_ACTIVITY) {
+                PackageDependentAction.execute(adbLocation, arguments, cmdProvider, preview, actionResult, device, installedPackages);
+            }
+        }
+        Commons.log("", arguments);
+    }
+
+    /**
+     * @return the location which sends commands to the adb server the device is attached to
+     */
+    private static AdbLocationFinder.LocationResult locationFor(AdbDevice device, AdbLocationFinder.LocationResult adbLocation) {
+        return device.server != null ? adbLocation.forServer(AdbServerAddress.parse(device.server)) : adbLocation;
+    }
+
+    /**
+     * Not all devices run at once, so start with the ones which took longest in the preview and leave devices
+     * which failed or timed out for the end
+     */
+    private static void sortByPriority(List<AdbDevice> devices, DeviceHealthCmdProvider deviceHealth) {
+        List<String> names = new ArrayList<>();
+        for (AdbDevice device : devices) {
+            names.add(device.getName());
+        }
+        final Comparator<String> priority = deviceHealth.createPriorityComparator(names);
+        Collections.sort(devices, new Comparator<AdbDevice>() {
+            @Override
+            public int compare(AdbDevice o1, AdbDevice o2) {
+                return priority.compare(o1.getName(), o2.getName());
+            }
+        });
+    }
+
+    static int getParallelDeviceCount(List<AdbDevice> devices, Arg arguments) {
+        if (arguments.parallel > 0) {
+            return arguments.parallel;
+        }
+        int readyCount = 0;
+        for (AdbDevice device : devices) {
+            if (device.status == AdbDevice.Status.OK) {
+                readyCount++;
+            }
+        }
+        return Math.max(1, readyCount);
+    }
+
     private static boolean hasUnauthorizedDevices(List<AdbDevice> devices) {
         for (AdbDevice device : devices) {
             if (device.status == AdbDevice.Status.UNAUTHORIZED) {
@@ -240,15 +678,18 @@ public final class AdbTool {
         return false;
     }
 
-    private static String getCommandHistory(CmdProvider cmdProvider) {
-        StringBuilder sb = new StringBuilder("\nCmd history for debugging purpose:\n-----------------------\n");
+    private static void printCommandHistory(CmdProvider cmdProvider, PrintStream out) {
+        out.println("\nCmd history for debugging purpose:\n-----------------------");
         for (CmdProvider.Result executedCommand : cmdProvider.getHistory()) {
-            sb.append(executedCommand.toString());
+            out.print(executedCommand.toString());
+        }
+        if (cmdProvider instanceof CachingCmdProvider) {
+            out.println(((CachingCmdProvider) cmdProvider).getStats());
         }
-        return sb.toString();
     }
 
-    private static String generateReport(Arg.Mode mode, int deviceCount, int successUninstallCount, int failureUninstallCount, long executionDurationMs) {
+    private static String generateReport(Arg.Mode mode, int deviceCount, int successUninstallCount, int failureUninstallCount, int skipCount, long executionDurationMs,
+                                         long summedDeviceDurationMs, List<String> slowDevices) {
         String report = "[" + new Date().toString() + "][v" + CmdUtil.jarVersion() + "]\n";
         if (mode == Arg.Mode.BUGREPORT) {
             report += String.format(Locale.US, "Bug reports generated from %d device(s).", deviceCount);
@@ -257,11 +698,111 @@ public final class AdbTool {
             if (failureUninstallCount > 0) {
                 report += String.format(Locale.US, " %d apps could not be " + Commons.getCorrectAction(mode, "installed", "uninstalled", "used for creating bug reports", "stopped", "cleared", "found", "started") + " due to errors.", failureUninstallCount);
             }
+            if (skipCount > 0) {
+                report += String.format(Locale.US, " %d apps were skipped since they have no native code for the device's ABI.", skipCount);
+            }
+        }
+        report += " Took " + String.format(Locale.US, "%.2f", (double) executionDurationMs / 1000.0) + " seconds";
+        report += " (" + String.format(Locale.US, "%.2f", (double) summedDeviceDurationMs / 1000.0) + " seconds summed over all devices).";
+        if (!slowDevices.isEmpty()) {
+            report += "\nSlow devices: " + CmdUtil.concat(slowDevices.toArray(new String[slowDevices.size()]), ", ") + ".";
         }
-        report += " Took " + String.format(Locale.US, "%.2f", (double) executionDurationMs / 1000.0) + " seconds.";
         return report;
     }
 
+    /**
+     * Runs the action for a single device, buffering its log so it can be printed as one block
+     */
+    private static class DeviceTask implements Callable<DeviceResult> {
+        private final AdbDevice device;
+        private final AdbLocationFinder.LocationResult adbLocation;
+        private final Arg arguments;
+        private final CmdProvider cmdProvider;
+        private final PackageUniverse packageUniverse;
+        private final boolean preview;
+        private final boolean readProperties;
+
+        /**
+         * @param readProperties true if the device was just found and its properties are not read yet
+         */
+        DeviceTask(AdbDevice device, AdbLocationFinder.LocationResult adbLocation, Arg arguments, CmdProvider cmdProvider, PackageUniverse packageUniverse,
+                   boolean preview, boolean readProperties) {
+            this.device = device;
+            this.adbLocation = adbLocation;
+            this.arguments = arguments;
+            this.cmdProvider = cmdProvider;
+            this.packageUniverse = packageUniverse;
+            this.preview = preview;
+            this.readProperties = readProperties;
+        }
+
+        @Override
+        public DeviceResult call() throws Exception {
+            Commons.ActionResult actionResult = new Commons.ActionResult();
+            long start = System.currentTimeMillis();
+            Commons.startBufferedLog();
+            try (TraceRecorder.Span ignored = Commons.traceSpan(preview ? "preview" : "execute", device)) {
+                AdbDevice device = readProperties ? Commons.await(readPropertiesAsync(this.device, adbLocation, cmdProvider)) : this.device;
+                processDevice(device, adbLocation, arguments, cmdProvider, packageUniverse, preview, actionResult);
+            } catch (Exception e) {
+                System.out.print(Commons.endBufferedLog());
+                throw e;
+            }
+            actionResult.deviceDurationMs = System.currentTimeMillis() - start;
+            return new DeviceResult(actionResult, Commons.endBufferedLog());
+        }
+    }
+
+    /**
+     * Receives the 'track-devices' output and queues every device which is new or changed its state.
+     * Once stopped the next write fails, which aborts the tracking command.
+     */
+    private static class DeviceTrackingStream extends OutputStream {
+        static final AdbDevice END_OF_STREAM = new AdbDevice("", AdbDevice.Status.UNKNOWN, null, null, false);
+
+        private final AdbDevicesParser.TrackingParser parser = new AdbDevicesParser.TrackingParser();
+        private final BlockingQueue<AdbDevice> changedDevices;
+        private final String server;
+        private volatile boolean stopped;
+
+        /**
+         * @param server 'host:port' set on every queued device or null for the default adb server
+         */
+        DeviceTrackingStream(BlockingQueue<AdbDevice> changedDevices, String server) {
+            this.changedDevices = changedDevices;
+            this.server = server;
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (stopped) {
+                throw new IOException("device tracking stopped");
+            }
+            for (AdbDevice device : parser.feed(b, off, len)) {
+                changedDevices.add(server != null ? device.withServer(server) : device);
+            }
+        }
+    }
+
+    private static class DeviceResult {
+        final Commons.ActionResult actionResult;
+        final String log;
+
+        DeviceResult(Commons.ActionResult actionResult, String log) {
+            this.actionResult = actionResult;
+            this.log = log;
+        }
+    }
+
     private static class CliUserPromptHandler implements UserPromptHandler {
         @Override
         public boolean promptUser(Commons.ActionResult actionResult, Arg arguments) {
@@ -0,0 +1,144 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+
+/**
+ * Remembers the adb executable found by the delegate, together with its 'adb version' output, in a small per user
+ * file. Later runs only need a single stat of the executable to check the entry is still valid, instead of scanning
+ * PATH and running candidates. The entry is dropped if the executable changed (mtime, size), the custom path differs
+ * or PATH/ANDROID_HOME changed.
+ */
+public class CachingAdbLocationFinder implements AdbLocationFinder {
+    private static final String KEY_LOCATION = "location";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_CUSTOM_PATH = "customPath";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_ENV = "env";
+    private static final String KEY_VERSION = "version";
+
+    private final AdbLocationFinder delegate;
+    private final File cacheFile;
+    private boolean hit;
+
+    public CachingAdbLocationFinder(AdbLocationFinder delegate) {
+        this(delegate, defaultCacheFile());
+    }
+
+    public CachingAdbLocationFinder(AdbLocationFinder delegate, File cacheFile) {
+        this.delegate = delegate;
+        this.cacheFile = cacheFile;
+    }
+
+    public static File defaultCacheFile() {
+        return new File(new File(System.getProperty("user.home"), ".uber-adb-tools"), "adb-location.properties");
+    }
+
+    @Override
+    public LocationResult find(CmdProvider cmdProvider, String customPath) {
+        LocationResult cached = readCache(customPath);
+        hit = cached != null;
+        if (cached != null) {
+            return cached;
+        }
+
+        LocationResult result = delegate.find(cmdProvider, customPath);
+        CmdProvider.Result versionResult = cmdProvider.runCmd(new String[]{result.args[0], "version"});
+        String version = versionResult.isSuccess() ? firstLine(versionResult.getOut()) : null;
+        result = new LocationResult(result.location, result.args, version);
+        writeCache(result, customPath);
+        return result;
+    }
+
+    /**
+     * @return true if the last {@link #find(CmdProvider, String)} was answered from the cache file
+     */
+    public boolean wasCacheHit() {
+        return hit;
+    }
+
+    private LocationResult readCache(String customPath) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(cacheFile.toPath())) {
+            properties.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+
+        String path = properties.getProperty(KEY_PATH);
+        String location = properties.getProperty(KEY_LOCATION);
+        if (path == null || location == null
+                || !env().equals(properties.getProperty(KEY_ENV))
+                || !String.valueOf(customPath).equals(properties.getProperty(KEY_CUSTOM_PATH))) {
+            return null;
+        }
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(new File(path).toPath(), BasicFileAttributes.class);
+            if (!attributes.isRegularFile()
+                    || !String.valueOf(attributes.lastModifiedTime().toMillis()).equals(properties.getProperty(KEY_LAST_MODIFIED))
+                    || !String.valueOf(attributes.size()).equals(properties.getProperty(KEY_SIZE))) {
+                return null;
+            }
+            return new LocationResult(Location.valueOf(location), new String[]{path}, properties.getProperty(KEY_VERSION));
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void writeCache(LocationResult result, String customPath) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(new File(result.args[0]).toPath(), BasicFileAttributes.class);
+            Properties properties = new Properties();
+            properties.setProperty(KEY_LOCATION, result.location.name());
+            properties.setProperty(KEY_PATH, result.args[0]);
+            properties.setProperty(KEY_CUSTOM_PATH, String.valueOf(customPath));
+            properties.setProperty(KEY_LAST_MODIFIED, String.valueOf(attributes.lastModifiedTime().toMillis()));
+            properties.setProperty(KEY_SIZE, String.valueOf(attributes.size()));
+            properties.setProperty(KEY_ENV, env());
+            if (result.version != null) {
+                properties.setProperty(KEY_VERSION, result.version);
+            }
+            FileUtil.storeAtomically(properties, "uber-adb-tools adb location cache", cacheFile);
+        } catch (IOException | RuntimeException e) {
+            // the cache is only an optimization
+        }
+    }
+
+    private static String env() {
+        return System.getenv("PATH") + File.pathSeparator + System.getenv("ANDROID_HOME");
+    }
+
+    private static String firstLine(String out) {
+        int index = out.indexOf('\n');
+        return index >= 0 ? out.substring(0, index) : out;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.actions.ShellCommandBatch;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers the successful results of read-only queries (package listing, 'dumpsys package', getprop, 'devices')
+ * for a limited time, so e.g. the preview and the execute pass of a run do not ask the device twice. Commands that
+ * change installed packages on a device (install, uninstall, clear, ...) remove all remembered results of
+ * this device before and after they run; queries that overlap such a command are not remembered. Concurrent runs
+ * of the same query share one execution. Scripts of a {@link ShellCommandBatch} are identified by their commands.
+ */
+public class CachingCmdProvider implements CmdProvider {
+    public static final long DEFAULT_TTL_MS = 60 * 1000;
+
+    private static final Pattern IDEMPOTENT_SEGMENT = Pattern.compile("^(pm list packages|dumpsys package|getprop)(\\s.*)?$");
+    private static final Pattern MUTATING_SEGMENT = Pattern.compile("^(pm (?!list|path)\\S+|cmd package (?!list|path)\\S+|am force-stop)(\\s.*)?$");
+
+    private final CmdProvider delegate;
+    private final long ttlMs;
+    private final ConcurrentMap<List<String>, Entry> cache = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final AtomicLong globalGeneration = new AtomicLong();
+
+    public CachingCmdProvider(CmdProvider delegate) {
+        this(delegate, DEFAULT_TTL_MS);
+    }
+
+    public CachingCmdProvider(CmdProvider delegate, long ttlMs) {
+        this.delegate = delegate;
+        this.ttlMs = ttlMs;
+    }
+
+    @Override
+    public Result runCmd(String[] args) {
+        AdbCommand command = AdbCommand.parse(args);
+        if (command == null) {
+            return delegate.runCmd(args);
+        } else if (!isIdempotent(command)) {
+            if (isMutating(command)) {
+                invalidate(command.getDeviceName());
+                try {
+                    return delegate.runCmd(args);
+                } finally {
+                    invalidate(command.getDeviceName());
+                }
+            }
+            return delegate.runCmd(args);
+        }
+
+        ShellCommandBatch.Script script = command.isShell() ? ShellCommandBatch.parseScript(command.paramsLine()) : null;
+        List<String> key = createKey(args, script);
+        long generation = getGeneration(command.getDeviceName());
+        Entry newEntry = new Entry(command.getDeviceName(), script != null ? script.sentinel : null, System.currentTimeMillis());
+        Entry entry;
+        while ((entry = cache.putIfAbsent(key, newEntry)) != null && entry.isExpired(ttlMs)) {
+            cache.remove(key, entry);
+        }
+
+        if (entry != null) {
+            hits.incrementAndGet();
+            Result result = entry.result.join();
+            if (script != null && !script.sentinel.equals(entry.sentinel)) {
+                result = result.withOut(result.getOut().replace(entry.sentinel + ":", script.sentinel + ":"));
+            }
+            return result;
+        }
+
+        misses.incrementAndGet();
+        Result result;
+        try {
+            result = delegate.runCmd(args);
+        } catch (RuntimeException e) {
+            cache.remove(key, newEntry);
+            newEntry.result.completeExceptionally(e);
+            throw e;
+        }
+        if (!result.isSuccess() || result.exception != null
+                || (script != null && !script.allSucceeded(result.getOut()))
+                || generation != getGeneration(command.getDeviceName())) {
+            // do not remember failures or results that may have been changed by a concurrent mutating command
+            cache.remove(key, newEntry);
+        }
+        newEntry.result.complete(result);
+        return result;
+    }
+
+    @Override
+    public Result runCmd(String[] args, OutputStream outputStream) {
+        AdbCommand command = AdbCommand.parse(args);
+        if (command != null && isMutating(command)) {
+            invalidate(command.getDeviceName());
+            try {
+                return delegate.runCmd(args, outputStream);
+            } finally {
+                invalidate(command.getDeviceName());
+            }
+        }
+        return delegate.runCmd(args, outputStream);
+    }
+
+    @Override
+    public boolean canRunCmd(String[] cmd) {
+        return delegate.canRunCmd(cmd);
+    }
+
+    @Override
+    public List<Result> getHistory() {
+        return delegate.getHistory();
+    }
+
+    /**
+     * Removes all remembered results of given device
+     *
+     * @param device name as by {@link AdbCommand#getDeviceName()}, i.e. with the adb server if not the default one;
+     *               if null all devices are affected
+     */
+    public void invalidate(String device) {
+        if (device == null) {
+            globalGeneration.incrementAndGet();
+        } else {
+            generations.computeIfAbsent(device, s -> new AtomicLong()).incrementAndGet();
+        }
+        for (Iterator<Map.Entry<List<String>, Entry>> iterator = cache.entrySet().iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next().getValue();
+            if (device == null || entry.device == null || device.equals(entry.device)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private long getGeneration(String device) {
+        AtomicLong generation = device != null ? generations.get(device) : null;
+        return globalGeneration.get() + (generation != null ? generation.get() : 0);
+    }
+
+    /**
+     * Batch scripts contain a sentinel that changes between batches, so they are identified by their commands
+     */
+    private static List<String> createKey(String[] args, ShellCommandBatch.Script script) {
+        if (script == null) {
+            return Arrays.asList(args);
+        }
+        List<String> key = new ArrayList<>(args.length + script.commands.size());
+        key.addAll(Arrays.asList(args).subList(0, args.length - 1));
+        key.add("batch:");
+        key.addAll(script.commands);
+        return key;
+    }
+
+    public int getHitCount() {
+        return hits.get();
+    }
+
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "query cache: %d hits, %d misses", hits.get(), misses.get());
+    }
+
+    static boolean isIdempotent(AdbCommand command) {
+        if (command.hasOtherOptions) {
+            return false;
+        } else if (command.command.equals("devices")) {
+            return true;
+        } else if (command.command.equals("shell") && command.params.length > 0) {
+            String line = command.paramsLine();
+            ShellCommandBatch.Script script = ShellCommandBatch.parseScript(line);
+            if (script == null) {
+                return isIdempotentShellLine(line);
+            }
+            for (String batchedCommand : script.commands) {
+                if (!isIdempotentShellLine(batchedCommand)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isIdempotentShellLine(String line) {
+        if (line.contains(">") || line.contains("|") || line.contains("&") || line.contains("`") || line.contains("$(")) {
+            return false;
+        }
+        for (String segment : line.split(";")) {
+            if (!IDEMPOTENT_SEGMENT.matcher(segment.trim()).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isMutating(AdbCommand command) {
+        if (command.command.startsWith("install") || command.command.equals("uninstall")) {
+            return true;
+        } else if (command.isShell()) {
+            for (String segment : command.paramsLine().split("[;&|]")) {
+                if (MUTATING_SEGMENT.matcher(segment.trim()).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final class Entry {
+        final String device;
+        final String sentinel;
+        final long createdMs;
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        Entry(String device, String sentinel, long createdMs) {
+            this.device = device;
+            this.sentinel = sentinel;
+            this.createdMs = createdMs;
+        }
+
+        boolean isExpired(long ttlMs) {
+            return System.currentTimeMillis() - createdMs > ttlMs;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared by all command providers of a run; cancelling it aborts every command in flight and
+ * lets all following commands fail immediately.
+ */
+public class CancellationToken {
+    private final Set<Closeable> running = Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+    private volatile boolean cancelled = false;
+
+    public void cancel() {
+        cancelled = true;
+        for (Closeable closeable : running) {
+            closeQuietly(closeable);
+        }
+        running.clear();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Registers a running command which will be closed on cancellation
+     *
+     * @param closeable aborts the command if closed
+     * @return false if already cancelled, in this case the closeable was closed immediately
+     */
+    public boolean register(Closeable closeable) {
+        running.add(closeable);
+        if (cancelled) {
+            running.remove(closeable);
+            closeQuietly(closeable);
+            return false;
+        }
+        return true;
+    }
+
+    public void unregister(Closeable closeable) {
+        running.remove(closeable);
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
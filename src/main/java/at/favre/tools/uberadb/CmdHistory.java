@@ -0,0 +1,253 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Bounded history of executed commands used for debugging output.
+ * <p>
+ * At most maxMemoryBytes of command output are kept on the heap; sizes are heap bytes, i.e. one byte per byte of a
+ * raw output and two bytes per char of a string output; text decoded from a raw output is never retained. One
+ * history can be shared by the providers of a chain so they all count against the same budget. Outputs bigger than the spill threshold are truncated to
+ * their head, or, if there is a disk budget (only by default with '-debug', where the history is printed), moved to
+ * a temp file and only read back when accessed through {@link #getResults()}. If either the memory or the disk
+ * budget is exceeded the oldest entries are dropped. Of binary outputs ({@link CmdProvider.Result#isBinary()}) only
+ * the length is kept.
+ */
+public class CmdHistory {
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 2 * 1024 * 1024;
+    public static final long DEFAULT_MAX_DISK_BYTES = 64 * 1024 * 1024;
+    public static final int DEFAULT_SPILL_THRESHOLD = 16 * 1024;
+
+    private static volatile boolean spillByDefault;
+
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final int spillThreshold;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+
+    private long memoryBytes;
+    private long diskBytes;
+    private int droppedCount;
+    private File spillDir;
+
+    /**
+     * Creates a history that only moves big outputs to disk if {@link #setSpillByDefault(boolean)} was enabled
+     */
+    public CmdHistory() {
+        this(DEFAULT_MAX_MEMORY_BYTES, spillByDefault ? DEFAULT_MAX_DISK_BYTES : 0, DEFAULT_SPILL_THRESHOLD);
+    }
+
+    /**
+     * @param maxMemoryBytes budget for command output kept on the heap
+     * @param maxDiskBytes   budget for command output moved to temp files; 0 to truncate instead of spilling
+     * @param spillThreshold outputs bigger than this many bytes are moved to disk (or truncated)
+     */
+    public CmdHistory(long maxMemoryBytes, long maxDiskBytes, int spillThreshold) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * @param spill if true histories created with the default constructor keep big outputs in temp files instead of
+     *              truncating them; set if the history will be printed
+     */
+    public static void setSpillByDefault(boolean spill) {
+        spillByDefault = spill;
+    }
+
+    public void add(CmdProvider.Result result) {
+        if (result.isBinary()) {
+            result = result.withOut("<" + result.getOutLength() + " bytes binary output>\n");
+        } else if (result.hasRawOut()) {
+            // do not keep the text the caller may have decoded already, only the raw output is counted
+            result = result.withRawOut(result.getRawOut());
+        }
+
+        Entry entry;
+        long size = heapSize(result);
+        if (size > spillThreshold) {
+            // write outside the lock so concurrent commands are not blocked by the disk
+            ByteBuffer out = maxDiskBytes > 0 ? result.getRawOut() : null;
+            long diskSize = out != null ? out.remaining() : 0;
+            File spillFile = out != null ? spill(out) : null;
+            if (spillFile != null) {
+                entry = new Entry(result.withOut(""), spillFile, result.hasRawOut(), diskSize, false);
+            } else {
+                CmdProvider.Result truncated = truncate(result);
+                entry = new Entry(truncated, null, false, heapSize(truncated), true);
+            }
+        } else {
+            entry = new Entry(result, null, false, size, false);
+        }
+
+        synchronized (this) {
+            if (entry.spillFile != null) {
+                diskBytes += entry.size;
+            } else {
+                memoryBytes += entry.size;
+            }
+            entries.addLast(entry);
+
+            while (entries.size() > 1 && (memoryBytes > maxMemoryBytes || diskBytes > maxDiskBytes)) {
+                evict(entries.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of all retained commands. Spilled outputs are read back from disk only when
+     * the element is accessed.
+     *
+     * @return the retained results, oldest first
+     */
+    public synchronized List<CmdProvider.Result> getResults() {
+        final List<Entry> snapshot = new ArrayList<>(entries);
+        return new AbstractList<CmdProvider.Result>() {
+            @Override
+            public CmdProvider.Result get(int index) {
+                return snapshot.get(index).load();
+            }
+
+            @Override
+            public int size() {
+                return snapshot.size();
+            }
+        };
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of commands dropped because the budget was exceeded
+     */
+    public synchronized int getDroppedCount() {
+        return droppedCount;
+    }
+
+    synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    private void evict(Entry entry) {
+        droppedCount++;
+        if (entry.spillFile != null) {
+            diskBytes -= entry.size;
+            if (!entry.spillFile.delete()) {
+                entry.spillFile.deleteOnExit();
+            }
+        } else {
+            memoryBytes -= entry.size;
+        }
+    }
+
+    private static long heapSize(CmdProvider.Result result) {
+        return result.hasRawOut() ? result.getOutLength() : 2L * result.getOutLength();
+    }
+
+    private CmdProvider.Result truncate(CmdProvider.Result result) {
+        if (result.hasRawOut()) {
+            ByteBuffer rawOut = result.getRawOut();
+            return result.withRawOut(ByteBuffer.wrap(Arrays.copyOfRange(rawOut.array(),
+                    rawOut.arrayOffset() + rawOut.position(), rawOut.arrayOffset() + rawOut.position() + spillThreshold)));
+        }
+        return result.withOut(result.getOut().substring(0, spillThreshold / 2));
+    }
+
+    private File spill(ByteBuffer out) {
+        try {
+            File file = File.createTempFile("cmd-", ".txt", getSpillDir());
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            }
+            return file;
+        } catch (IOException | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    private synchronized File getSpillDir() throws IOException {
+        if (spillDir == null) {
+            spillDir = Files.createTempDirectory("adbtools-history-").toFile();
+            final File dir = spillDir;
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if (dir.exists()) {
+                        FileUtil.removeRecursive(dir.toPath());
+                    }
+                }
+            }));
+        }
+        return spillDir;
+    }
+
+    private static final class Entry {
+        final CmdProvider.Result result;
+        final File spillFile;
+        final boolean raw;
+        final long size;
+        final boolean truncated;
+
+        Entry(CmdProvider.Result result, File spillFile, boolean raw, long size, boolean truncated) {
+            this.result = result;
+            this.spillFile = spillFile;
+            this.raw = raw;
+            this.size = size;
+            this.truncated = truncated;
+        }
+
+        CmdProvider.Result load() {
+            if (spillFile != null) {
+                try {
+                    byte[] spilled = Files.readAllBytes(spillFile.toPath());
+                    return raw ? result.withRawOut(ByteBuffer.wrap(spilled)) : result.withOut(new String(spilled, StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    return result.withOut("<output not available: " + e.getMessage() + ">\n");
+                }
+            } else if (truncated) {
+                return result.withOut(result.getOut() + "\n<output truncated>\n");
+            } else if (result.hasRawOut()) {
+                // a fresh copy, so text decoded by the reader is not cached in the retained entry
+                return result.withRawOut(result.getRawOut());
+            }
+            return result;
+        }
+    }
+}
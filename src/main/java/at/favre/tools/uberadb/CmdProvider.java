@@ -20,10 +20,14 @@ package at.favre.tools.uberadb;
 
 import at.favre.tools.uberadb.util.CmdUtil;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface CmdProvider {
     /**
@@ -34,6 +38,49 @@ public interface CmdProvider {
      */
     Result runCmd(String[] args);
 
+    /**
+     * Runs the provided command and writes its output to given stream as it arrives, without keeping
+     * it in memory. Use this for potentially big outputs which are not parsed. The default implementation
+     * buffers the whole output with {@link #runCmd(String[])} and writes it to the stream afterwards.
+     *
+     * @param args         tokenized
+     * @param outputStream receives stdout and stderr of the command; will not be closed
+     * @return the result, its output is always empty since it was written to the stream
+     */
+    default Result runCmd(String[] args, OutputStream outputStream) {
+        Result result = runCmd(args);
+        try {
+            ByteBuffer rawOut = result.getRawOut();
+            outputStream.write(rawOut.array(), rawOut.arrayOffset() + rawOut.position(), rawOut.remaining());
+            return result.withRawOut(ByteBuffer.allocate(0));
+        } catch (IOException e) {
+            return new Result("", e, args, result.exitValue, result.state);
+        }
+    }
+
+    /**
+     * Runs the provided command without blocking the caller. Independent commands can be started together and
+     * composed with the returned future. The default implementation runs {@link #runCmd(String[])} on a shared
+     * thread pool.
+     *
+     * @param args tokenized
+     * @return future completing with the result
+     */
+    default CompletableFuture<Result> runCmdAsync(final String[] args) {
+        return CompletableFuture.supplyAsync(() -> runCmd(args), CmdExecutors.ASYNC);
+    }
+
+    /**
+     * Async variant of {@link #runCmd(String[], OutputStream)}
+     *
+     * @param args         tokenized
+     * @param outputStream receives stdout and stderr of the command; will not be closed
+     * @return future completing with the result
+     */
+    default CompletableFuture<Result> runCmdAsync(final String[] args, final OutputStream outputStream) {
+        return CompletableFuture.supplyAsync(() -> runCmd(args, outputStream), CmdExecutors.ASYNC);
+    }
+
     /**
      * @param cmd tokenized
      * @return true if the command could be run without exceptions
@@ -41,74 +88,275 @@ public interface CmdProvider {
     boolean canRunCmd(String[] cmd);
 
     /**
-     * @return all previous run commands
+     * @return previous run commands, may be limited to the most recent ones
      */
     List<Result> getHistory();
 
     class DefaultCmdProvider implements CmdProvider {
 
-        List<Result> history = new ArrayList<>();
+        private final CmdHistory history;
+        private final CmdTimeouts timeouts;
+        private final CancellationToken cancellationToken;
+
+        public DefaultCmdProvider() {
+            this(new CmdHistory());
+        }
+
+        public DefaultCmdProvider(CmdHistory history) {
+            this(history, new CmdTimeouts(), new CancellationToken());
+        }
+
+        public DefaultCmdProvider(CmdTimeouts timeouts, CancellationToken cancellationToken) {
+            this(new CmdHistory(), timeouts, cancellationToken);
+        }
+
+        public DefaultCmdProvider(CmdHistory history, CmdTimeouts timeouts, CancellationToken cancellationToken) {
+            this.history = history;
+            this.timeouts = timeouts;
+            this.cancellationToken = cancellationToken;
+        }
 
         @Override
         public Result runCmd(String[] args) {
-            StringBuilder logStringBuilder = new StringBuilder();
+            return execute(args, null);
+        }
+
+        @Override
+        public Result runCmd(String[] args, OutputStream outputStream) {
+            return execute(args, outputStream);
+        }
+
+        /**
+         * Runs the process and kills it if the deadline passes or the run gets cancelled. Java 8 has no API
+         * to reach child processes, but killing the adb client closes its connection to the adb server which
+         * in turn ends the service (e.g. the shell) on the device.
+         */
+        private Result execute(String[] args, OutputStream outputStream) {
+            ByteBuffer rawOut = ByteBuffer.allocate(0);
             Exception exception = null;
             int exitValue = -1;
-            try {
-                ProcessBuilder pb = new ProcessBuilder(args);
-                pb.redirectErrorStream(true);
-                Process process = pb.start();
-                try (BufferedReader inStreamReader = new BufferedReader(
-                        new InputStreamReader(process.getInputStream()))) {
-                    String s;
-                    while ((s = inStreamReader.readLine()) != null) {
-                        if (!s.isEmpty()) logStringBuilder.append(s).append("\n");
+            Result.State state = Result.State.FINISHED;
+
+            if (cancellationToken.isCancelled()) {
+                state = Result.State.CANCELLED;
+            } else {
+                Process process = null;
+                Closeable processKiller = null;
+                Watchdog watchdog = null;
+                try {
+                    ProcessBuilder pb = new ProcessBuilder(args);
+                    pb.redirectErrorStream(true);
+                    process = pb.start();
+                    processKiller = createProcessKiller(process);
+                    cancellationToken.register(processKiller);
+                    watchdog = new Watchdog(timeouts.getTimeoutMs(args), processKiller);
+
+                    try (InputStream in = process.getInputStream()) {
+                        if (outputStream != null) {
+                            CmdUtil.copy(in, outputStream);
+                        } else {
+                            rawOut = CmdUtil.readFully(in);
+                        }
+                    }
+                    process.waitFor();
+                    exitValue = process.exitValue();
+                } catch (Exception e) {
+                    exception = e;
+                } finally {
+                    if (watchdog != null) {
+                        watchdog.close();
+                        if (watchdog.hasFired()) {
+                            state = Result.State.TIMED_OUT;
+                        }
+                    }
+                    if (processKiller != null) {
+                        cancellationToken.unregister(processKiller);
+                    }
+                    if (process != null && process.isAlive()) {
+                        process.destroyForcibly();
                     }
                 }
-                process.waitFor();
-                exitValue = process.exitValue();
-            } catch (Exception e) {
-                exception = e;
+                if (state == Result.State.FINISHED && cancellationToken.isCancelled()) {
+                    state = Result.State.CANCELLED;
+                }
             }
-            Result r = new Result(logStringBuilder.toString(), exception, args, exitValue);
+            Result r = new Result(rawOut, exception, args, exitValue, state);
             history.add(r);
             return r;
         }
 
+        private static Closeable createProcessKiller(final Process process) {
+            return new Closeable() {
+                @Override
+                public void close() {
+                    process.destroyForcibly();
+                }
+            };
+        }
+
         @Override
         public boolean canRunCmd(String[] cmd) {
-            Result result = runCmd(cmd);
-            history.add(result);
-
-            return result.exception == null;
+            return runCmd(cmd).exception == null;
         }
 
         @Override
         public List<Result> getHistory() {
-            return history;
+            return history.getResults();
         }
     }
 
+    /**
+     * Output of a finished command. Providers reading from a process or socket keep the unmodified bytes
+     * ({@link #getRawOut()}), which is what binary commands like 'exec-out screencap -p' need. The text
+     * representation ({@link #getOut()}) is decoded as UTF-8 with empty lines removed, only when it is first read.
+     * Raw outputs of 'exec-out' are marked as binary ({@link #isBinary()}) and never decoded for debugging output.
+     */
     class Result {
+        public enum State {
+            FINISHED, TIMED_OUT, CANCELLED,
+            /**
+             * not run because the device stopped responding earlier in this run, see {@link DeviceHealthCmdProvider}
+             */
+            QUARANTINED
+        }
+
         public final Exception exception;
-        public final String out;
         public final String cmd;
         public final int exitValue;
+        public final State state;
+        private final ByteBuffer rawOut;
+        private final boolean binary;
+        private volatile String out;
 
         public Result(String out, Exception exception, String[] cmd, int exitValue) {
+            this(out, exception, cmd, exitValue, State.FINISHED);
+        }
+
+        public Result(String out, Exception exception, String[] cmd, int exitValue, State state) {
+            this(CmdUtil.concat(cmd, " "), null, false, out, exception, exitValue, state);
+        }
+
+        /**
+         * @param rawOut unmodified output of the command, must not be modified afterwards
+         */
+        public Result(ByteBuffer rawOut, Exception exception, String[] cmd, int exitValue, State state) {
+            this(CmdUtil.concat(cmd, " "), rawOut, isExecOut(cmd), null, exception, exitValue, state);
+        }
+
+        private Result(String cmd, ByteBuffer rawOut, boolean binary, String out, Exception exception, int exitValue, State state) {
+            this.rawOut = rawOut;
+            this.binary = binary;
             this.out = out;
             this.exception = exception;
-            this.cmd = CmdUtil.concat(cmd, " ");
+            this.cmd = cmd;
             this.exitValue = exitValue;
+            this.state = state;
+        }
+
+        /**
+         * @return the output as text without empty lines, every line terminated by '\n'
+         */
+        public String getOut() {
+            String result = out;
+            if (result == null) {
+                result = normalize(StandardCharsets.UTF_8.decode(rawOut.duplicate()));
+                out = result;
+            }
+            return result;
+        }
+
+        /**
+         * @return true if the unmodified output of the command is available
+         */
+        public boolean hasRawOut() {
+            return rawOut != null;
+        }
+
+        /**
+         * @return true if the output is the unmodified output of 'exec-out', e.g. an image, and should not be shown as text
+         */
+        public boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * @return the unmodified output or the UTF-8 encoded text if there is none; always backed by an array, do not modify
+         */
+        public ByteBuffer getRawOut() {
+            if (rawOut != null) {
+                return rawOut.duplicate();
+            }
+            return ByteBuffer.wrap(getOut().getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return size of the output in bytes (raw) or chars (text), does not decode the output
+         */
+        public int getOutLength() {
+            return rawOut != null ? rawOut.remaining() : out.length();
+        }
+
+        /**
+         * @return a copy of this result with different output
+         */
+        public Result withOut(String out) {
+            return new Result(cmd, null, false, out, exception, exitValue, state);
+        }
+
+        /**
+         * @return a copy of this result with different unmodified output
+         */
+        public Result withRawOut(ByteBuffer rawOut) {
+            return new Result(cmd, rawOut, binary, null, exception, exitValue, state);
+        }
+
+        /**
+         * @return the line {@link #toString()} ends with, e.g. to close output that was streamed after a header
+         */
+        public String getExitValueLine() {
+            return "exit value (" + exitValue + ")" + (state != State.FINISHED ? " " + state : "") + "\n";
         }
 
         @Override
         public String toString() {
-            return "command: " + cmd + "\n" + out + "\nexit value (" + exitValue + ")\n";
+            return "command: " + cmd + "\n" + (binary ? "<" + getOutLength() + " bytes binary output>\n" : getOut()) + "\n" + getExitValueLine();
         }
 
         public boolean isSuccess() {
-            return exitValue == 0;
+            return exitValue == 0 && state == State.FINISHED;
+        }
+
+        public boolean isTimedOut() {
+            return state == State.TIMED_OUT;
+        }
+
+        private static boolean isExecOut(String[] cmd) {
+            AdbCommand command = AdbCommand.parse(cmd);
+            return command != null && command.command.equals("exec-out");
+        }
+
+        /**
+         * Same as reading with {@link java.io.BufferedReader#readLine()} and dropping empty lines, but in a single pass
+         */
+        static String normalize(CharSequence raw) {
+            StringBuilder sb = new StringBuilder(raw.length() + 1);
+            boolean lineStarted = false;
+            for (int i = 0; i < raw.length(); i++) {
+                char c = raw.charAt(i);
+                if (c == '\n' || c == '\r') {
+                    if (lineStarted) {
+                        sb.append('\n');
+                        lineStarted = false;
+                    }
+                } else {
+                    sb.append(c);
+                    lineStarted = true;
+                }
+            }
+            if (lineStarted) {
+                sb.append('\n');
+            }
+            return sb.toString();
         }
     }
 }
@@ -0,0 +1,104 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Deadlines for adb commands, configurable per type of command
+ */
+public class CmdTimeouts {
+    public enum Type {
+        INSTALL, DUMPSYS, SHELL, WAIT, OTHER
+    }
+
+    private final Map<Type, Long> timeoutsMs = new EnumMap<>(Type.class);
+
+    /**
+     * Creates the default timeouts; waiting for a device never times out
+     */
+    public CmdTimeouts() {
+        timeoutsMs.put(Type.INSTALL, 10 * 60 * 1000L);
+        timeoutsMs.put(Type.DUMPSYS, 2 * 60 * 1000L);
+        timeoutsMs.put(Type.SHELL, 2 * 60 * 1000L);
+        timeoutsMs.put(Type.WAIT, 0L);
+        timeoutsMs.put(Type.OTHER, 5 * 60 * 1000L);
+    }
+
+    /**
+     * Creates timeouts from definitions like 'install=300' (in seconds) overriding the defaults.
+     * 0 disables the timeout for this type.
+     *
+     * @param definitions may be null
+     * @return timeouts
+     */
+    public static CmdTimeouts parse(String[] definitions) {
+        CmdTimeouts timeouts = new CmdTimeouts();
+        if (definitions != null) {
+            for (String definition : definitions) {
+                String[] keyValue = definition.split("=");
+                if (keyValue.length != 2) {
+                    throw new IllegalArgumentException("unexpected timeout definition '" + definition + "', expected e.g. 'dumpsys=60'");
+                }
+                Type type;
+                long seconds;
+                try {
+                    type = Type.valueOf(keyValue[0].trim().toUpperCase(Locale.US));
+                    seconds = Long.parseLong(keyValue[1].trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("unexpected timeout definition '" + definition + "', type must be one of install, dumpsys, shell, wait, other and value in seconds", e);
+                }
+                if (seconds < 0) {
+                    throw new IllegalArgumentException("timeout must not be negative: " + definition);
+                }
+                timeouts.set(type, seconds * 1000L);
+            }
+        }
+        return timeouts;
+    }
+
+    public CmdTimeouts set(Type type, long timeoutMs) {
+        timeoutsMs.put(type, timeoutMs);
+        return this;
+    }
+
+    /**
+     * @param args full adb command line
+     * @return timeout in ms, 0 if none
+     */
+    public long getTimeoutMs(String[] args) {
+        return timeoutsMs.get(classify(args));
+    }
+
+    static Type classify(String[] args) {
+        AdbCommand command = AdbCommand.parse(args);
+        if (command == null) {
+            return Type.OTHER;
+        } else if (command.command.startsWith("install")) {
+            return Type.INSTALL;
+        } else if (command.command.startsWith("wait-for-") || command.command.equals("track-devices")) {
+            return Type.WAIT;
+        } else if (command.isShell()) {
+            return command.params.length > 0 && command.params[0].startsWith("dumpsys") ? Type.DUMPSYS : Type.SHELL;
+        }
+        return Type.OTHER;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+package at.favre.tools.uberadb;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks latency (as exponentially weighted moving average per type of command) and error rate of every device
+ * during a run and uses it to
+ * <ul>
+ * <li>optionally limit the commands running on a device at once: the limit grows by one per round of successful
+ * commands and is halved on a timeout or a latency spike, so a slow device gets fewer concurrent commands</li>
+ * <li>quarantine a device after consecutive timeouts: its further commands fail immediately with
+ * {@link Result.State#QUARANTINED} instead of waiting for the timeout again</li>
+ * <li>find devices which are much slower than the rest of the fleet</li>
+ * </ul>
+ * Commands without a device serial and commands waiting for a device are passed through unchanged. Devices are
+ * identified by serial, suffixed with '@host:port' if the command goes to another adb server.
+ */
+public class DeviceHealthCmdProvider implements CmdProvider {
+    public static final int DEFAULT_QUARANTINE_TIMEOUTS = 3;
+    /**
+     * weight of a new sample in the moving averages
+     */
+    static final double ALPHA = 0.2;
+    /**
+     * a device or a single command is slow if it takes this many times longer than expected
+     */
+    static final double SLOW_FACTOR = 2.0;
+    private static final int MIN_SAMPLES = 3;
+    /**
+     * commands faster than this are never a latency spike, their duration is mostly noise
+     */
+    private static final double MIN_SPIKE_MS = 100;
+
+    private final CmdProvider delegate;
+    private final int maxConcurrency;
+    private final int quarantineTimeouts;
+    private final Map<String, DeviceHealth> devices = new ConcurrentHashMap<>();
+
+    /**
+     * Does not limit the commands running on a device at once
+     */
+    public DeviceHealthCmdProvider(CmdProvider delegate) {
+        this(delegate, 0, DEFAULT_QUARANTINE_TIMEOUTS);
+    }
+
+    /**
+     * @param maxConcurrency     upper bound of commands running on one device at once; 0 for no limit
+     * @param quarantineTimeouts consecutive timeouts after which a device is quarantined; 0 to never quarantine
+     */
+    public DeviceHealthCmdProvider(CmdProvider delegate, int maxConcurrency, int quarantineTimeouts) {
+        this.delegate = delegate;
+        this.maxConcurrency = maxConcurrency;
+        this.quarantineTimeouts = quarantineTimeouts;
+    }
+
+    @Override
+    public Result runCmd(String[] args) {
+        return run(args, null);
+    }
+
+    @Override
+    public Result runCmd(String[] args, OutputStream outputStream) {
+        return run(args, outputStream);
+    }
+
+    @Override
+    public boolean canRunCmd(String[] cmd) {
+        return delegate.canRunCmd(cmd);
+    }
+
+    @Override
+    public List<Result> getHistory() {
+        return delegate.getHistory();
+    }
+
+    private Result run(String[] args, OutputStream outputStream) {
+        AdbCommand command = AdbCommand.parse(args);
+        if (command == null || command.serial == null || CmdTimeouts.classify(args) == CmdTimeouts.Type.WAIT) {
+            return outputStream != null ? delegate.runCmd(args, outputStream) : delegate.runCmd(args);
+        }
+
+        DeviceHealth health = getHealth(command);
+        if (health.isQuarantined()) {
+            return new Result("", new IllegalStateException("device " + health.name + " is quarantined after " + quarantineTimeouts
+                    + " timeouts in a row, command not run"), args, -1, Result.State.QUARANTINED);
+        }
+
+        if (maxConcurrency > 0) {
+            try {
+                health.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Result("", e, args, -1, Result.State.CANCELLED);
+            }
+        }
+
+        Result result;
+        long start = System.nanoTime();
+        try {
+            result = outputStream != null ? delegate.runCmd(args, outputStream) : delegate.runCmd(args);
+        } finally {
+            if (maxConcurrency > 0) {
+                health.release();
+            }
+        }
+        health.record(MetricsCmdProvider.classify(command), (System.nanoTime() - start) / 1_000_000.0, result);
+        return result;
+    }
+
+    private DeviceHealth getHealth(AdbCommand command) {
+        String name = command.getDeviceName();
+        DeviceHealth health = devices.get(name);
+        if (health == null) {
+            DeviceHealth newHealth = new DeviceHealth(name, maxConcurrency);
+            health = devices.putIfAbsent(name, newHealth);
+            if (health == null) {
+                health = newHealth;
+            }
+        }
+        return health;
+    }
+
+    /**
+     * @param serial device serial
+     * @return true if further commands for this device fail immediately
+     */
+    public boolean isQuarantined(String serial) {
+        DeviceHealth health = devices.get(serial);
+        return health != null && health.isQuarantined();
+    }
+
+    /**
+     * @param serial device serial
+     * @return current number of commands allowed at once on this device; 0 if not limited
+     */
+    public int getConcurrencyLimit(String serial) {
+        DeviceHealth health = devices.get(serial);
+        return health != null ? health.getLimit() : maxConcurrency;
+    }
+
+    /**
+     * @param serial device serial
+     * @return latency of the device divided by the median of all devices, averaged over types of commands run on
+     * at least two devices; 1 if unknown
+     */
+    public double getSlowness(String serial) {
+        Double slowness = getSlowness().get(serial);
+        return slowness != null ? slowness : 1.0;
+    }
+
+    /**
+     * @param serial device serial
+     * @return moving average of failed commands between 0 and 1
+     */
+    public double getErrorRate(String serial) {
+        DeviceHealth health = devices.get(serial);
+        return health != null ? health.getErrorRate() : 0;
+    }
+
+    /**
+     * Orders devices so the run ends early: devices which keep failing or timing out last, the others slowest
+     * first, so that with limited parallelism the long running devices do not start at the end.
+     *
+     * @param serials serials of the devices
+     * @return comparator of serials
+     */
+    public Comparator<String> createPriorityComparator(List<String> serials) {
+        final Map<String, Double> slowness = getSlowness();
+        final Map<String, Boolean> unhealthy = new HashMap<>();
+        for (String serial : serials) {
+            unhealthy.put(serial, isQuarantined(serial) || getErrorRate(serial) >= 0.5);
+        }
+        return new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                int health = Boolean.compare(unhealthy.get(o1), unhealthy.get(o2));
+                if (health != 0) {
+                    return health;
+                }
+                return Double.compare(slowness.containsKey(o2) ? slowness.get(o2) : 1.0, slowness.containsKey(o1) ? slowness.get(o1) : 1.0);
+            }
+        };
+    }
+
+    /**
+     * @return short description of every quarantined device and every device at least {@link #SLOW_FACTOR} times
+     * slower than the median, slowest first
+     */
+    public List<String> getSlowDeviceReport() {
+        final Map<String, Double> slowness = getSlowness();
+        List<String> names = new ArrayList<>();
+        for (DeviceHealth health : devices.values()) {
+            if (health.isQuarantined() || (slowness.containsKey(health.name) && slowness.get(health.name) >= SLOW_FACTOR)) {
+                names.add(health.name);
+            }
+        }
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                return Double.compare(slowness.containsKey(o2) ? slowness.get(o2) : 0, slowness.containsKey(o1) ? slowness.get(o1) : 0);
+            }
+        });
+
+        List<String> report = new ArrayList<>();
+        for (String name : names) {
+            DeviceHealth health = devices.get(name);
+            StringBuilder sb = new StringBuilder(name);
+            List<String> details = new ArrayList<>();
+            if (slowness.containsKey(name)) {
+                details.add(String.format(Locale.US, "%.1fx median latency", slowness.get(name)));
+            }
+            if (health.getTimeoutCount() > 0) {
+                details.add(health.getTimeoutCount() + " timeouts");
+            }
+            if (health.isQuarantined()) {
+                details.add("quarantined");
+            }
+            sb.append(" (").append(String.join(", ", details)).append(")");
+            report.add(sb.toString());
+        }
+        return report;
+    }
+
+    private Map<String, Double> getSlowness() {
+        Map<String, Map<String, Double>> latencyByType = new HashMap<>();
+        for (DeviceHealth health : devices.values()) {
+            for (Map.Entry<String, Double> entry : health.getLatencies().entrySet()) {
+                Map<String, Double> byDevice = latencyByType.get(entry.getKey());
+                if (byDevice == null) {
+                    byDevice = new HashMap<>();
+                    latencyByType.put(entry.getKey(), byDevice);
+                }
+                byDevice.put(health.name, entry.getValue());
+            }
+        }
+
+        Map<String, Double> ratioSum = new HashMap<>();
+        Map<String, Integer> ratioCount = new HashMap<>();
+        for (Map<String, Double> byDevice : latencyByType.values()) {
+            if (byDevice.size() < 2) {
+                continue;
+            }
+            List<Double> latencies = new ArrayList<>(byDevice.values());
+            Collections.sort(latencies);
+            double median = latencies.size() % 2 == 1 ? latencies.get(latencies.size() / 2)
+                    : (latencies.get(latencies.size() / 2 - 1) + latencies.get(latencies.size() / 2)) / 2.0;
+            for (Map.Entry<String, Double> entry : byDevice.entrySet()) {
+                double ratio = entry.getValue() / Math.max(1.0, median);
+                ratioSum.put(entry.getKey(), (ratioSum.containsKey(entry.getKey()) ? ratioSum.get(entry.getKey()) : 0) + ratio);
+                ratioCount.put(entry.getKey(), (ratioCount.containsKey(entry.getKey()) ? ratioCount.get(entry.getKey()) : 0) + 1);
+            }
+        }
+
+        Map<String, Double> slowness = new HashMap<>();
+        for (Map.Entry<String, Double> entry : ratioSum.entrySet()) {
+            slowness.put(entry.getKey(), entry.getValue() / ratioCount.get(entry.getKey()));
+        }
+        return slowness;
+    }
+
+    private final class DeviceHealth {
+        final String name;
+        private final int maxLimit;
+        private final Map<String, Double> latencyMs = new HashMap<>();
+        private final Map<String, Integer> samples = new HashMap<>();
+        private double limit;
+        private int inFlight;
+        private double errorRate;
+        private int consecutiveTimeouts;
+        private int timeoutCount;
+        private boolean quarantined;
+
+        DeviceHealth(String name, int maxLimit) {
+            this.name = name;
+            this.maxLimit = maxLimit;
+            this.limit = maxLimit;
+        }
+
+        synchronized void acquire() throws InterruptedException {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+            inFlight++;
+        }
+
+        synchronized void release() {
+            inFlight--;
+            notifyAll();
+        }
+
+        synchronized void record(String type, double durationMs, Result result) {
+            Double average = latencyMs.get(type);
+            int count = samples.containsKey(type) ? samples.get(type) : 0;
+            boolean spike = average != null && count >= MIN_SAMPLES && durationMs > SLOW_FACTOR * Math.max(average, MIN_SPIKE_MS);
+
+            latencyMs.put(type, average == null ? durationMs : average + ALPHA * (durationMs - average));
+            samples.put(type, count + 1);
+            errorRate += ALPHA * ((result.isSuccess() ? 0 : 1) - errorRate);
+
+            if (result.isTimedOut()) {
+                timeoutCount++;
+                consecutiveTimeouts++;
+                if (quarantineTimeouts > 0 && consecutiveTimeouts >= quarantineTimeouts) {
+                    quarantined = true;
+                }
+            } else {
+                consecutiveTimeouts = 0;
+            }
+
+            if (result.isTimedOut() || spike) {
+                limit = Math.max(1, limit / 2);
+            } else {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            notifyAll();
+        }
+
+        synchronized boolean isQuarantined() {
+            return quarantined;
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        synchronized int getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        synchronized Map<String, Double> getLatencies() {
+            return new HashMap<>(latencyMs);
+        }
+    }
+}
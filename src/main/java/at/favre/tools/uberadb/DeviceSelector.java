@@ -0,0 +1,317 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.ui.Arg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which devices are processed: an optional serial, predicates on device attributes and properties like
+ * 'model=Pixel*,sdk>=29,abi=arm64*' and a shard like '3/8'.
+ * <p>
+ * Shards use rendezvous hashing of the serial: the shard of a device only depends on its serial and the shard count,
+ * so devices coming and going do not move other devices, and changing the count from n to n+1 moves only about
+ * 1/(n+1) of them.
+ */
+public final class DeviceSelector {
+    private static final Pattern CONDITION = Pattern.compile("^\\s*([\\w.\\-]+)\\s*(!=|>=|<=|=|>|<)\\s*(.*?)\\s*$");
+    private static final Pattern SHARD = Pattern.compile("^\\s*(\\d+)\\s*/\\s*(\\d+)\\s*$");
+
+    private final String serial;
+    private final String select;
+    private final List<Condition> conditions;
+    private final int shardIndex;
+    private final int shardCount;
+
+    private DeviceSelector(String serial, String select, List<Condition> conditions, int shardIndex, int shardCount) {
+        this.serial = serial;
+        this.select = select;
+        this.conditions = conditions;
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    public static DeviceSelector create(Arg arguments) {
+        return parse(arguments.device, arguments.select, arguments.shard);
+    }
+
+    /**
+     * @param serial only this device if not null
+     * @param select comma separated conditions 'key op value' or null. Keys are serial, model, product, server, emulator,
+     *               sdk, abi (matches any supported ABI) or any property name; ops are =, != (both with '*' wildcards,
+     *               ignoring case), &gt;, &gt;=, &lt;, &lt;= (numeric)
+     * @param shard  'index/count' with index starting at 1 or null
+     * @return the selector
+     */
+    public static DeviceSelector parse(String serial, String select, String shard) {
+        List<Condition> conditions = new ArrayList<>();
+        if (select != null) {
+            for (String definition : select.split(",")) {
+                Matcher matcher = CONDITION.matcher(definition);
+                if (!matcher.matches()) {
+                    throw new IllegalArgumentException("unexpected device condition '" + definition + "', expected e.g. 'model=Pixel*' or 'sdk>=29'");
+                }
+                conditions.add(new Condition(matcher.group(1).toLowerCase(Locale.US), matcher.group(2), matcher.group(3)));
+            }
+        }
+
+        int shardIndex = 0, shardCount = 1;
+        if (shard != null) {
+            Matcher matcher = SHARD.matcher(shard);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("unexpected shard '" + shard + "', expected 'index/count' e.g. '3/8'");
+            }
+            shardIndex = Integer.parseInt(matcher.group(1)) - 1;
+            shardCount = Integer.parseInt(matcher.group(2));
+            if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+                throw new IllegalArgumentException("shard index must be between 1 and the shard count: " + shard);
+            }
+        }
+        return new DeviceSelector(serial, select, Collections.unmodifiableList(conditions), shardIndex, shardCount);
+    }
+
+    /**
+     * @return true if the device should be processed; predicates on properties need the property snapshot
+     */
+    public boolean matches(AdbDevice device) {
+        return matchesIgnoringShard(device) && isInShard(device.serial);
+    }
+
+    /**
+     * @return true if the device matches serial and predicates, used to tell an empty shard from a wrong selection
+     */
+    public boolean matchesIgnoringShard(AdbDevice device) {
+        if (serial != null && !serial.equals(device.serial)) {
+            return false;
+        }
+        for (Condition condition : conditions) {
+            if (!condition.matches(device)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the device may match, checking only what is known without its property snapshot
+     */
+    public boolean mayMatch(AdbDevice device) {
+        if ((serial != null && !serial.equals(device.serial)) || !isInShard(device.serial)) {
+            return false;
+        }
+        for (Condition condition : conditions) {
+            if (!condition.needsProperties() && !condition.matches(device)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if any predicate needs the property snapshot of the device
+     */
+    public boolean needsProperties() {
+        for (Condition condition : conditions) {
+            if (condition.needsProperties()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if any device is filtered out by predicates or serial, not only by shard
+     */
+    public boolean hasFilter() {
+        return serial != null || !conditions.isEmpty();
+    }
+
+    /**
+     * @return true if not all devices are processed
+     */
+    public boolean isRestricted() {
+        return hasFilter() || shardCount > 1;
+    }
+
+    @Override
+    public String toString() {
+        List<String> parts = new ArrayList<>();
+        if (serial != null) {
+            parts.add("id '" + serial + "'");
+        }
+        if (!conditions.isEmpty()) {
+            parts.add("'" + select + "'");
+        }
+        if (shardCount > 1) {
+            parts.add("shard " + (shardIndex + 1) + "/" + shardCount);
+        }
+        return parts.isEmpty() ? "all devices" : String.join(", ", parts);
+    }
+
+    boolean isInShard(String deviceSerial) {
+        return shardCount == 1 || getShard(deviceSerial, shardCount) == shardIndex;
+    }
+
+    /**
+     * @return shard of the serial, starting at 0, by highest random weight
+     */
+    static int getShard(String deviceSerial, int shardCount) {
+        long serialHash = hash(deviceSerial);
+        int shard = 0;
+        long maxWeight = Long.MIN_VALUE;
+        for (int i = 0; i < shardCount; i++) {
+            long weight = mix(serialHash ^ (0x9E3779B97F4A7C15L * (i + 1)));
+            if (weight > maxWeight) {
+                maxWeight = weight;
+                shard = i;
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * 64 bit FNV-1a of the UTF-8 bytes, so every machine computes the same shards
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * finalizer of MurmurHash3 to spread the bits
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static final class Condition {
+        final String key;
+        final String op;
+        final String value;
+        final Pattern wildcard;
+
+        Condition(String key, String op, String value) {
+            this.key = key;
+            this.op = op;
+            this.value = value;
+            this.wildcard = compileWildcard(value);
+        }
+
+        private static Pattern compileWildcard(String value) {
+            StringBuilder regex = new StringBuilder();
+            String[] literals = value.split("\\*", -1);
+            for (int i = 0; i < literals.length; i++) {
+                if (i > 0) {
+                    regex.append(".*");
+                }
+                if (!literals[i].isEmpty()) {
+                    regex.append(Pattern.quote(literals[i]));
+                }
+            }
+            return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+        }
+
+        boolean needsProperties() {
+            return !(key.equals("serial") || key.equals("model") || key.equals("product") || key.equals("server") || key.equals("emulator"));
+        }
+
+        boolean matches(AdbDevice device) {
+            List<String> actualValues = getValues(device);
+            if (op.equals("!=")) {
+                for (String actual : actualValues) {
+                    if (wildcard.matcher(actual).matches()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            for (String actual : actualValues) {
+                if (op.equals("=") ? wildcard.matcher(actual).matches() : compare(actual)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean compare(String actual) {
+            long actualNumber, expectedNumber;
+            try {
+                actualNumber = Long.parseLong(actual.trim());
+                expectedNumber = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            switch (op) {
+                case ">":
+                    return actualNumber > expectedNumber;
+                case ">=":
+                    return actualNumber >= expectedNumber;
+                case "<":
+                    return actualNumber < expectedNumber;
+                default:
+                    return actualNumber <= expectedNumber;
+            }
+        }
+
+        private List<String> getValues(AdbDevice device) {
+            String actual;
+            switch (key) {
+                case "serial":
+                    actual = device.serial;
+                    break;
+                case "model":
+                    actual = device.model;
+                    break;
+                case "product":
+                    actual = device.product;
+                    break;
+                case "server":
+                    actual = device.server;
+                    break;
+                case "emulator":
+                    actual = String.valueOf(device.isEmulator);
+                    break;
+                case "sdk":
+                    actual = device.getSdkVersion() >= 0 ? String.valueOf(device.getSdkVersion()) : null;
+                    break;
+                case "abi":
+                    return device.getAbis();
+                default:
+                    actual = device.getProperty(key);
+            }
+            return actual != null ? Collections.singletonList(actual) : Collections.<String>emptyList();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+/**
+ * Histogram of durations in ms with logarithmic buckets, 4 per power of two, so percentiles are exact up to
+ * about 19% while the memory stays constant regardless of the number of recorded values.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKET_COUNT = 32 * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT + 1];
+    private long count;
+    private long sumMs;
+    private long maxMs;
+
+    public synchronized void record(long durationMs) {
+        long value = Math.max(0, durationMs);
+        counts[bucketIndex(value)]++;
+        count++;
+        sumMs += value;
+        maxMs = Math.max(maxMs, value);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getSumMs() {
+        return sumMs;
+    }
+
+    public synchronized long getMaxMs() {
+        return maxMs;
+    }
+
+    /**
+     * @param percentile between 0 and 1, e.g. 0.9 for p90
+     * @return upper bound of the bucket containing the percentile, never more than the max; 0 if empty
+     */
+    public synchronized long getPercentileMs(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maxMs);
+            }
+        }
+        return maxMs;
+    }
+
+    static int bucketIndex(long valueMs) {
+        if (valueMs <= 1) {
+            return 0;
+        }
+        int index = (int) Math.ceil(Math.log(valueMs) / Math.log(2) * SUB_BUCKETS);
+        // guard against rounding errors of the log
+        while (index > 0 && upperBound(index - 1) >= valueMs) {
+            index--;
+        }
+        while (upperBound(index) < valueMs && index < BUCKET_COUNT) {
+            index++;
+        }
+        return Math.min(index, BUCKET_COUNT);
+    }
+
+    static long upperBound(int index) {
+        return (long) Math.floor(Math.pow(2, (double) index / SUB_BUCKETS));
+    }
+}
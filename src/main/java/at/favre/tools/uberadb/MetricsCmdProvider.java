@@ -0,0 +1,233 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.util.MiscUtil;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records duration and output size of every command, grouped by type of command and by device, and writes them
+ * as JSON or in the Prometheus text format.
+ */
+public class MetricsCmdProvider implements CmdProvider {
+    static final double[] PERCENTILES = new double[]{0.5, 0.9, 0.99};
+
+    private final CmdProvider delegate;
+    private final Map<String, Stats> byType = new TreeMap<>();
+    private final Map<String, Stats> byDevice = new TreeMap<>();
+
+    public MetricsCmdProvider(CmdProvider delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Result runCmd(String[] args) {
+        long start = System.nanoTime();
+        Result result = delegate.runCmd(args);
+        record(args, (System.nanoTime() - start) / 1_000_000L, result.getOutLength(), result);
+        return result;
+    }
+
+    @Override
+    public Result runCmd(String[] args, OutputStream outputStream) {
+        CountingOutputStream countingOutputStream = new CountingOutputStream(outputStream);
+        long start = System.nanoTime();
+        Result result = delegate.runCmd(args, countingOutputStream);
+        record(args, (System.nanoTime() - start) / 1_000_000L, countingOutputStream.count, result);
+        return result;
+    }
+
+    @Override
+    public boolean canRunCmd(String[] cmd) {
+        return delegate.canRunCmd(cmd);
+    }
+
+    @Override
+    public List<Result> getHistory() {
+        return delegate.getHistory();
+    }
+
+    private void record(String[] args, long durationMs, long outputBytes, Result result) {
+        AdbCommand command = AdbCommand.parse(args);
+        boolean failed = !result.isSuccess();
+        getStats(byType, classify(command)).record(durationMs, outputBytes, failed);
+        getStats(byDevice, command != null && command.serial != null ? command.getDeviceName() : "none").record(durationMs, outputBytes, failed);
+    }
+
+    private static Stats getStats(Map<String, Stats> map, String key) {
+        synchronized (map) {
+            Stats stats = map.get(key);
+            if (stats == null) {
+                stats = new Stats();
+                map.put(key, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * @return the type of command used to group metrics, e.g. 'install', 'shell_pm' or 'dumpsys'
+     */
+    static String classify(AdbCommand command) {
+        if (command == null) {
+            return "other";
+        } else if (command.command.startsWith("install")) {
+            return "install";
+        } else if (command.command.equals("uninstall")) {
+            return "uninstall";
+        } else if (command.command.equals("pull") || command.command.equals("logcat") || command.command.equals("devices")) {
+            return command.command;
+        } else if (command.isShell() && command.params.length > 0) {
+            String[] words = command.paramsLine().trim().split("\\s+");
+            if (words[0].equals("pm") || (words[0].equals("cmd") && words.length > 1 && words[1].equals("package"))) {
+                return command.paramsLine().contains(" uninstall ") ? "uninstall" : "shell_pm";
+            } else if (words[0].equals("am")) {
+                return "shell_am";
+            } else if (words[0].equals("dumpsys") || words[0].equals("screencap") || words[0].equals("logcat")) {
+                return words[0];
+            }
+            return "shell_other";
+        }
+        return "other";
+    }
+
+    public void writeJson(Writer writer) throws IOException {
+        StringBuilder sb = new StringBuilder("{\n  \"commands\": ");
+        appendJson(sb, byType);
+        sb.append(",\n  \"devices\": ");
+        appendJson(sb, byDevice);
+        sb.append("\n}\n");
+        writer.write(sb.toString());
+        writer.flush();
+    }
+
+    public void writePrometheus(Writer writer) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        appendPrometheus(sb, "uberadb_cmd", "type", byType);
+        appendPrometheus(sb, "uberadb_device_cmd", "serial", byDevice);
+        writer.write(sb.toString());
+        writer.flush();
+    }
+
+    private static void appendJson(StringBuilder sb, Map<String, Stats> map) {
+        synchronized (map) {
+            sb.append("{");
+            String sep = "\n";
+            for (Map.Entry<String, Stats> entry : map.entrySet()) {
+                LatencyHistogram histogram = entry.getValue().histogram;
+                sb.append(sep).append("    \"").append(MiscUtil.escapeJson(entry.getKey())).append("\": {")
+                        .append("\"count\": ").append(histogram.getCount())
+                        .append(", \"failures\": ").append(entry.getValue().failures.get())
+                        .append(", \"outputBytes\": ").append(entry.getValue().outputBytes.get())
+                        .append(", \"sumMs\": ").append(histogram.getSumMs());
+                for (double percentile : PERCENTILES) {
+                    sb.append(", \"p").append(percentileName(percentile)).append("Ms\": ").append(histogram.getPercentileMs(percentile));
+                }
+                sb.append(", \"maxMs\": ").append(histogram.getMaxMs()).append("}");
+                sep = ",\n";
+            }
+            sb.append(map.isEmpty() ? "}" : "\n  }");
+        }
+    }
+
+    private static void appendPrometheus(StringBuilder sb, String prefix, String label, Map<String, Stats> map) {
+        synchronized (map) {
+            sb.append("# HELP ").append(prefix).append("_duration_seconds Duration of adb commands by ").append(label).append("\n");
+            sb.append("# TYPE ").append(prefix).append("_duration_seconds summary\n");
+            for (Map.Entry<String, Stats> entry : map.entrySet()) {
+                String labelValue = label + "=\"" + escapePrometheus(entry.getKey()) + "\"";
+                LatencyHistogram histogram = entry.getValue().histogram;
+                for (double percentile : PERCENTILES) {
+                    sb.append(prefix).append("_duration_seconds{").append(labelValue).append(",quantile=\"").append(percentile).append("\"} ")
+                            .append(seconds(histogram.getPercentileMs(percentile))).append("\n");
+                }
+                sb.append(prefix).append("_duration_seconds{").append(labelValue).append(",quantile=\"1.0\"} ").append(seconds(histogram.getMaxMs())).append("\n");
+                sb.append(prefix).append("_duration_seconds_sum{").append(labelValue).append("} ").append(seconds(histogram.getSumMs())).append("\n");
+                sb.append(prefix).append("_duration_seconds_count{").append(labelValue).append("} ").append(histogram.getCount()).append("\n");
+            }
+            sb.append("# HELP ").append(prefix).append("_output_bytes_total Output of adb commands by ").append(label).append("\n");
+            sb.append("# TYPE ").append(prefix).append("_output_bytes_total counter\n");
+            for (Map.Entry<String, Stats> entry : map.entrySet()) {
+                sb.append(prefix).append("_output_bytes_total{").append(label).append("=\"").append(escapePrometheus(entry.getKey())).append("\"} ")
+                        .append(entry.getValue().outputBytes.get()).append("\n");
+            }
+            sb.append("# HELP ").append(prefix).append("_failures_total Failed adb commands by ").append(label).append("\n");
+            sb.append("# TYPE ").append(prefix).append("_failures_total counter\n");
+            for (Map.Entry<String, Stats> entry : map.entrySet()) {
+                sb.append(prefix).append("_failures_total{").append(label).append("=\"").append(escapePrometheus(entry.getKey())).append("\"} ")
+                        .append(entry.getValue().failures.get()).append("\n");
+            }
+        }
+    }
+
+    private static String percentileName(double percentile) {
+        return String.valueOf(Math.round(percentile * 100));
+    }
+
+    private static String seconds(long ms) {
+        return String.format(Locale.US, "%.3f", ms / 1000.0);
+    }
+
+    private static String escapePrometheus(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Stats {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong outputBytes = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        void record(long durationMs, long bytes, boolean failed) {
+            histogram.record(durationMs);
+            outputBytes.addAndGet(bytes);
+            if (failed) {
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import java.io.Closeable;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Runs 'adb -s serial shell ...' commands through one long running shell per device (see {@link ShellSession})
+ * which saves starting the adb client, the transport setup and the shell on the device for every command.
+ * All other commands, and commands whose output is streamed, are passed to the delegate.
+ */
+public class SessionCmdProvider implements CmdProvider, Closeable {
+    private final CmdProvider delegate;
+    private final CmdTimeouts timeouts;
+    private final CancellationToken cancellationToken;
+    private final ConcurrentMap<List<String>, ShellSession> sessions = new ConcurrentHashMap<>();
+    private final CmdHistory history;
+    /**
+     * true if the delegate keeps its own history, so its results have to be recorded here too
+     */
+    private final boolean recordDelegated;
+
+    public SessionCmdProvider(CmdProvider delegate) {
+        this(delegate, new CmdTimeouts(), new CancellationToken());
+    }
+
+    public SessionCmdProvider(CmdProvider delegate, CmdTimeouts timeouts, CancellationToken cancellationToken) {
+        this(delegate, timeouts, cancellationToken, null);
+    }
+
+    /**
+     * @param sharedHistory history the delegate records its commands to as well, so they are not recorded twice;
+     *                      null to keep an own history with the commands of both
+     */
+    public SessionCmdProvider(CmdProvider delegate, CmdTimeouts timeouts, CancellationToken cancellationToken, CmdHistory sharedHistory) {
+        this.delegate = delegate;
+        this.timeouts = timeouts;
+        this.cancellationToken = cancellationToken;
+        this.history = sharedHistory != null ? sharedHistory : new CmdHistory();
+        this.recordDelegated = sharedHistory == null;
+    }
+
+    @Override
+    public Result runCmd(String[] args) {
+        AdbCommand command = AdbCommand.parse(args);
+        Result r;
+        if (command != null && command.serial != null && !command.hasOtherOptions && command.command.equals("shell")
+                && command.params.length > 0 && !command.params[0].startsWith("-") && !command.paramsLine().contains("\n")) {
+            r = runInSession(command, args);
+            history.add(r);
+        } else {
+            r = delegate.runCmd(args);
+            if (recordDelegated) {
+                history.add(r);
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public Result runCmd(String[] args, OutputStream outputStream) {
+        Result r = delegate.runCmd(args, outputStream);
+        if (recordDelegated) {
+            history.add(r);
+        }
+        return r;
+    }
+
+    @Override
+    public boolean canRunCmd(String[] cmd) {
+        return delegate.canRunCmd(cmd);
+    }
+
+    @Override
+    public List<Result> getHistory() {
+        return history.getResults();
+    }
+
+    private Result runInSession(AdbCommand command, String[] args) {
+        if (cancellationToken.isCancelled()) {
+            return new Result("", null, args, -1, Result.State.CANCELLED);
+        }
+
+        ShellSession session = getSession(Arrays.asList(args).subList(0, args.length - command.params.length - 1));
+        return session.run(command.paramsLine(), args, timeouts.getTimeoutMs(args), cancellationToken);
+    }
+
+    private ShellSession getSession(List<String> adbPrefix) {
+        ShellSession session = sessions.get(adbPrefix);
+        if (session == null) {
+            ShellSession newSession = new ShellSession(adbPrefix.toArray(new String[adbPrefix.size()]));
+            session = sessions.putIfAbsent(adbPrefix, newSession);
+            if (session == null) {
+                session = newSession;
+            }
+        }
+        return session;
+    }
+
+    /**
+     * Ends all open shell sessions
+     */
+    @Override
+    public void close() {
+        for (ShellSession session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.actions.ShellCommandBatch;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A long running 'adb shell' process for one device. Commands are written to its stdin one at a time, the end
+ * of their output is detected by a sentinel line with a random nonce that also carries the exit code.
+ * <p>
+ * If the shell died (e.g. device reconnected or the last command timed out) it is restarted on the next command.
+ */
+final class ShellSession implements Closeable {
+    private final String[] shellCmd;
+    private volatile Process process;
+    private OutputStream stdin;
+    private BufferedReader stdout;
+    /**
+     * identifies the command currently holding the session, so a late timeout can not abort the next one
+     */
+    private volatile Object activeCommand;
+
+    /**
+     * @param adbPrefix the adb executable and global options (e.g. '-s serial'), without 'shell'
+     */
+    ShellSession(String[] adbPrefix) {
+        this.shellCmd = Arrays.copyOf(adbPrefix, adbPrefix.length + 1);
+        this.shellCmd[adbPrefix.length] = "shell";
+    }
+
+    /**
+     * Runs a single command line in the shell and waits for it to finish. Commands for the same session wait for
+     * each other; the timeout only starts once the command got the session. A command that times out or gets
+     * cancelled ends the session, the next command starts a new shell.
+     *
+     * @param commandLine       must not contain line breaks
+     * @param args              the original command, only used for the result
+     * @param timeoutMs         0 or less for no timeout
+     * @param cancellationToken aborts the command if cancelled
+     * @return result with the command's exit code; exit value -1 and an exception if the session ended before
+     */
+    synchronized CmdProvider.Result run(String commandLine, String[] args, long timeoutMs, CancellationToken cancellationToken) {
+        final Object command = new Object();
+        Closeable abort = new Closeable() {
+            @Override
+            public void close() {
+                if (activeCommand == command) {
+                    ShellSession.this.close();
+                }
+            }
+        };
+
+        activeCommand = command;
+        if (!cancellationToken.register(abort)) {
+            activeCommand = null;
+            return new CmdProvider.Result("", null, args, -1, CmdProvider.Result.State.CANCELLED);
+        }
+        Watchdog watchdog = new Watchdog(timeoutMs, abort);
+        try {
+            return execute(commandLine, args);
+        } catch (IOException e) {
+            CmdProvider.Result.State state = CmdProvider.Result.State.FINISHED;
+            if (watchdog.hasFired()) {
+                state = CmdProvider.Result.State.TIMED_OUT;
+            } else if (cancellationToken.isCancelled()) {
+                state = CmdProvider.Result.State.CANCELLED;
+            }
+            String out = e instanceof ShellEndedException ? ((ShellEndedException) e).partialOutput : "";
+            return new CmdProvider.Result(out, e, args, -1, state);
+        } finally {
+            activeCommand = null;
+            watchdog.close();
+            cancellationToken.unregister(abort);
+        }
+    }
+
+    private CmdProvider.Result execute(String commandLine, String[] args) throws IOException {
+        String sentinel = ShellCommandBatch.createSentinel() + ":";
+        byte[] script = ("{ " + commandLine + "\n} </dev/null 2>&1; __x=$?; echo; echo " + sentinel + "$__x\n").getBytes(StandardCharsets.UTF_8);
+
+        if (!isAlive()) {
+            start();
+        }
+        try {
+            stdin.write(script);
+            stdin.flush();
+        } catch (IOException e) {
+            // the shell ended since the last command, nothing was executed yet so retry once with a new one
+            start();
+            stdin.write(script);
+            stdin.flush();
+        }
+
+        BufferedReader reader = stdout;
+        StringBuilder out = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(sentinel)) {
+                int exitValue;
+                try {
+                    exitValue = Integer.parseInt(line.substring(sentinel.length()).trim());
+                } catch (NumberFormatException e) {
+                    exitValue = -1;
+                }
+                return new CmdProvider.Result(out.toString(), null, args, exitValue);
+            }
+            if (!line.isEmpty()) out.append(line).append("\n");
+        }
+        closeProcess();
+        throw new ShellEndedException(out.toString());
+    }
+
+    synchronized boolean isAlive() {
+        return process != null && process.isAlive();
+    }
+
+    private void start() throws IOException {
+        closeProcess();
+        ProcessBuilder pb = new ProcessBuilder(shellCmd);
+        pb.redirectErrorStream(true);
+        process = pb.start();
+        stdin = process.getOutputStream();
+        stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private void closeProcess() {
+        if (process != null) {
+            process.destroyForcibly();
+            process = null;
+        }
+    }
+
+    /**
+     * Ends the session and aborts a running command; the next command starts a new shell. Not synchronized so
+     * it can be called while a command is running.
+     */
+    @Override
+    public void close() {
+        Process p = process;
+        if (p != null) {
+            p.destroyForcibly();
+        }
+    }
+
+    /**
+     * The shell ended before the command finished
+     */
+    static final class ShellEndedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final String partialOutput;
+
+        ShellEndedException(String partialOutput) {
+            super("adb shell session ended");
+            this.partialOutput = partialOutput;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.util.MiscUtil;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects timed spans of a run (action phases and adb commands) and writes them in the Chrome Trace Event
+ * format which can be opened with chrome://tracing or https://ui.perfetto.dev.
+ * <p>
+ * Every device gets its own process in the trace; phases and commands are placed on separate threads of it.
+ * Spans that overlap without being nested (e.g. concurrent commands) are spread over additional threads so
+ * the viewers can render them.
+ */
+public final class TraceRecorder {
+    public static final String CATEGORY_PHASE = "phase";
+    public static final String CATEGORY_CMD = "cmd";
+
+    private static final String GLOBAL_TRACK = "adb tools";
+
+    private final long originNanos = System.nanoTime();
+    private final List<Event> events = new ArrayList<>();
+
+    /**
+     * @return microseconds since this recorder was created
+     */
+    public long nowUs() {
+        return (System.nanoTime() - originNanos) / 1000L;
+    }
+
+    /**
+     * Records a finished span
+     *
+     * @param name     shown in the viewer
+     * @param category one of {@link #CATEGORY_PHASE} or {@link #CATEGORY_CMD}
+     * @param device   serial of the device this span belongs to, suffixed with @host:port if not on the default adb server, or null for the whole run
+     * @param startUs  from {@link #nowUs()}
+     * @param endUs    from {@link #nowUs()}
+     */
+    public void record(String name, String category, String device, long startUs, long endUs) {
+        synchronized (events) {
+            events.add(new Event(name, category, device != null ? device : GLOBAL_TRACK, startUs, Math.max(0, endUs - startUs)));
+        }
+    }
+
+    /**
+     * Starts a span which is recorded when closed, use with try-with-resources
+     */
+    public Span begin(String name, String category, String device) {
+        return new Span(this, name, category, device);
+    }
+
+    public void writeJson(Writer writer) throws IOException {
+        List<Event> snapshot;
+        synchronized (events) {
+            snapshot = new ArrayList<>(events);
+        }
+        Collections.sort(snapshot, new Comparator<Event>() {
+            @Override
+            public int compare(Event o1, Event o2) {
+                int result = Long.compare(o1.startUs, o2.startUs);
+                // longer first, so parents are placed before their children
+                return result != 0 ? result : Long.compare(o2.durationUs, o1.durationUs);
+            }
+        });
+
+        Map<String, Integer> pids = new LinkedHashMap<>();
+        pids.put(GLOBAL_TRACK, 0);
+        Map<String, List<Deque<Event>>> lanes = new LinkedHashMap<>();
+        Set<String> namedThreads = new HashSet<>();
+        StringBuilder spans = new StringBuilder();
+        StringBuilder metadata = new StringBuilder();
+
+        for (Event event : snapshot) {
+            Integer pid = pids.get(event.track);
+            if (pid == null) {
+                pid = pids.size();
+                pids.put(event.track, pid);
+            }
+
+            String laneKey = event.track + "\n" + event.category;
+            List<Deque<Event>> trackLanes = lanes.get(laneKey);
+            if (trackLanes == null) {
+                trackLanes = new ArrayList<>();
+                lanes.put(laneKey, trackLanes);
+            }
+            int lane = findLane(trackLanes, event);
+            int tid = (CATEGORY_PHASE.equals(event.category) ? 1 : 100) + lane;
+            if (namedThreads.add(pid + ":" + tid)) {
+                String threadName = (CATEGORY_PHASE.equals(event.category) ? "phases" : "adb commands") + (lane > 0 ? " #" + (lane + 1) : "");
+                appendMetadata(metadata, "thread_name", pid, tid, threadName);
+            }
+
+            spans.append(",\n{\"name\":\"").append(MiscUtil.escapeJson(event.name)).append("\",\"cat\":\"").append(event.category)
+                    .append("\",\"ph\":\"X\",\"ts\":").append(event.startUs).append(",\"dur\":").append(event.durationUs)
+                    .append(",\"pid\":").append(pid).append(",\"tid\":").append(tid).append("}");
+        }
+
+        for (Map.Entry<String, Integer> entry : pids.entrySet()) {
+            appendMetadata(metadata, "process_name", entry.getValue(), 0, entry.getValue() == 0 ? entry.getKey() : "device " + entry.getKey());
+            appendMetadata(metadata, "process_sort_index", entry.getValue(), 0, null);
+        }
+
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        writer.write(metadata.length() > 0 ? metadata.substring(2) : "");
+        writer.write(spans.toString());
+        writer.write("\n]}\n");
+        writer.flush();
+    }
+
+    /**
+     * Finds the first lane where the event does not overlap or is nested in the currently open span
+     */
+    private static int findLane(List<Deque<Event>> lanes, Event event) {
+        for (int i = 0; i < lanes.size(); i++) {
+            Deque<Event> open = lanes.get(i);
+            while (!open.isEmpty() && open.peek().endUs() <= event.startUs) {
+                open.pop();
+            }
+            if (open.isEmpty() || open.peek().endUs() >= event.endUs()) {
+                open.push(event);
+                return i;
+            }
+        }
+        Deque<Event> open = new ArrayDeque<>();
+        open.push(event);
+        lanes.add(open);
+        return lanes.size() - 1;
+    }
+
+    private static void appendMetadata(StringBuilder sb, String type, int pid, int tid, String name) {
+        sb.append(",\n{\"name\":\"").append(type).append("\",\"ph\":\"M\",\"pid\":").append(pid).append(",\"tid\":").append(tid).append(",\"args\":{");
+        if (name != null) {
+            sb.append("\"name\":\"").append(MiscUtil.escapeJson(name)).append("\"");
+        } else {
+            sb.append("\"sort_index\":").append(pid);
+        }
+        sb.append("}}");
+    }
+
+    /**
+     * A running span, recorded on {@link #close()}
+     */
+    public static final class Span implements AutoCloseable {
+        private final TraceRecorder recorder;
+        private final String name;
+        private final String category;
+        private final String device;
+        private final long startUs;
+
+        private Span(TraceRecorder recorder, String name, String category, String device) {
+            this.recorder = recorder;
+            this.name = name;
+            this.category = category;
+            this.device = device;
+            this.startUs = recorder != null ? recorder.nowUs() : 0;
+        }
+
+        /**
+         * @return a span that records nothing, for runs without tracing
+         */
+        public static Span noop() {
+            return new Span(null, null, null, null);
+        }
+
+        @Override
+        public void close() {
+            if (recorder != null) {
+                recorder.record(name, category, device, startUs, recorder.nowUs());
+            }
+        }
+    }
+
+    private static final class Event {
+        final String name;
+        final String category;
+        final String track;
+        final long startUs;
+        final long durationUs;
+
+        Event(String name, String category, String track, long startUs, long durationUs) {
+            this.name = name;
+            this.category = category;
+            this.track = track;
+            this.startUs = startUs;
+            this.durationUs = durationUs;
+        }
+
+        long endUs() {
+            return startUs + durationUs;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Closes a running command (e.g. kills its process or closes its socket) if it does not finish before the deadline
+ */
+final class Watchdog implements AutoCloseable {
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "uadb-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicBoolean fired = new AtomicBoolean(false);
+    private final ScheduledFuture<?> future;
+
+    /**
+     * @param timeoutMs 0 or less never fires
+     * @param target    will be closed when the timeout is reached
+     */
+    Watchdog(long timeoutMs, final Closeable target) {
+        if (timeoutMs > 0) {
+            future = SCHEDULER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fired.set(true);
+                    CancellationToken.closeQuietly(target);
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        } else {
+            future = null;
+        }
+    }
+
+    boolean hasFired() {
+        return fired.get();
+    }
+
+    @Override
+    public void close() {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
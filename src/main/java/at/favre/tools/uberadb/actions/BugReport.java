@@ -21,29 +21,38 @@ package at.favre.tools.uberadb.actions;
 import at.favre.tools.uberadb.AdbLocationFinder;
 import at.favre.tools.uberadb.AdbTool;
 import at.favre.tools.uberadb.CmdProvider;
+import at.favre.tools.uberadb.TraceRecorder;
 import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.parser.DumpsysPackageParser;
 import at.favre.tools.uberadb.parser.PackageMatcher;
+import at.favre.tools.uberadb.parser.PackageUniverse;
 import at.favre.tools.uberadb.ui.Arg;
 import at.favre.tools.uberadb.util.CmdUtil;
 import at.favre.tools.uberadb.util.FileUtil;
 import at.favre.tools.uberadb.util.MiscUtil;
 import net.coobird.thumbnailator.Thumbnails;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public final class BugReport {
 
     private static final int MAX_IMG_BYTE_SIZE = 1024 * 1024 * 2;
+    private static final byte[] PNG_SIGNATURE = new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
 
     private BugReport() {
     }
 
-    public static void create(AdbLocationFinder.LocationResult adbLocation, Arg arguments, CmdProvider cmdProvider, AdbDevice device, List<String> allPackages) throws Exception {
+    public static void create(AdbLocationFinder.LocationResult adbLocation, Arg arguments, CmdProvider cmdProvider, AdbDevice device, PackageUniverse.PackageSet installedPackages) throws Exception {
         Commons.logLoud("create bug report:");
 
         String dateTimeString = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS").format(new Date());
@@ -59,8 +68,7 @@ public final class BugReport {
         }
 
         if (arguments.reportFilterIntent != null && arguments.reportFilterIntent.length >= 2) {
-            List<String> filteredPackages = new PackageMatcher(allPackages).findMatches(
-                    PackageMatcher.parseFiltersArg(arguments.reportFilterIntent[0]));
+            List<String> filteredPackages = installedPackages.findMatches(PackageMatcher.parseFiltersArg(arguments.reportFilterIntent[0]));
 
             for (String filteredPackage : filteredPackages) {
                 String[] copy = Arrays.copyOfRange(arguments.reportFilterIntent, 1, arguments.reportFilterIntent.length);
@@ -80,24 +88,27 @@ public final class BugReport {
         File tmpFolder = Files.createTempDirectory("adbtools-").toFile();
         List<BugReportDeviceFileAction> actions = new ArrayList<>();
 
-        actions.add(new BugReportDeviceFileAction(
+        BugReportDeviceFileAction screenshotAction = new BugReportDeviceFileAction("screenshot",
                 "\twake up screen and take screenshot",
                 "/sdcard/bugreport_tempfile_screenshot.png",
                 new File(tmpFolder, "screen-" + dateTimeString + "-" + device.model + ".png"),
-                new String[]{"shell", "screencap", "/sdcard/bugreport_tempfile_screenshot.png"}, null));
-        actions.add(new BugReportDeviceFileAction(
+                new String[]{"shell", "screencap", "/sdcard/bugreport_tempfile_screenshot.png"}, null);
+        screenshotAction.execOutCommand = new String[]{"exec-out", "screencap", "-p"};
+        screenshotAction.execOutSignature = PNG_SIGNATURE;
+        actions.add(screenshotAction);
+        actions.add(new BugReportDeviceFileAction("logcat",
                 "\tcreate logcat file and pull from device",
                 "/sdcard/bugreport_tempfile_logcat",
                 new File(tmpFolder, "logcat-" + dateTimeString + "-" + device.model + ".txt"),
                 new String[]{"logcat", "-b", "main", "-d", "-f", "/sdcard/bugreport_tempfile_logcat"}, null));
 
         if (!arguments.simpleBugReport) {
-            actions.add(new BugReportDeviceFileAction(
+            actions.add(new BugReportDeviceFileAction("events logcat",
                     "\tcreate events logcat file and pull from device",
                     "/sdcard/bugreport_tempfile_logcat_events",
                     new File(tmpFolder, "events-" + dateTimeString + "-" + device.model + ".txt"),
                     new String[]{"logcat", "-b", "events", "-d", "-f", "/sdcard/bugreport_tempfile_logcat_events"}, "additional-logcat"));
-            actions.add(new BugReportDeviceFileAction(
+            actions.add(new BugReportDeviceFileAction("radio logcat",
                     "\tcreate radio logcat file and pull from device",
                     "/sdcard/bugreport_tempfile_logcat_radio",
                     new File(tmpFolder, "radio-" + dateTimeString + "-" + device.model + ".txt"),
@@ -106,28 +117,42 @@ public final class BugReport {
 
         Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "input", "keyevent", "KEYCODE_WAKEUP"}, cmdProvider, adbLocation);
 
+        List<CompletableFuture<Long>> actionFutures = new ArrayList<>();
         for (BugReportDeviceFileAction action : actions) {
-            long start = System.currentTimeMillis();
-            Commons.runAdbCommand(CmdUtil.concat(new String[]{"-s", device.serial}, action.command), cmdProvider, adbLocation);
-            Commons.runAdbCommand(new String[]{"-s", device.serial, "pull", action.deviceTempFile, action.localTempFile.getAbsolutePath()}, cmdProvider, adbLocation);
-            Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "rm", "-f", action.deviceTempFile}, cmdProvider, adbLocation);
+            actionFutures.add(runDeviceFileActionAsync(action, device, adbLocation, cmdProvider));
+        }
+        CompletableFuture<Map<String, DumpsysPackageParser.PackageInfo>> packageInfosFuture = arguments.simpleBugReport
+                ? CompletableFuture.completedFuture(Collections.<String, DumpsysPackageParser.PackageInfo>emptyMap())
+                : PackageMetadata.getAllAsync(device, cmdProvider, adbLocation);
+        for (int i = 0; i < actions.size(); i++) {
+            BugReportDeviceFileAction action = actions.get(i);
+            long durationMs = Commons.await(actionFutures.get(i));
             action.localTempFile = downscaleIfNeeded(action.localTempFile, arguments);
-            Commons.log(String.format(Locale.US, action.log + " (%.2fkB) (%d ms)", (double) action.localTempFile.length() / 1024.0, System.currentTimeMillis() - start), arguments);
+            Commons.log(String.format(Locale.US, action.log + " (%.2fkB) (%d ms)", (double) action.localTempFile.length() / 1024.0, durationMs), arguments);
         }
 
         List<MiscUtil.ZipFileDescriptor> tempFilesToZip = new ArrayList<>();
         if (!arguments.simpleBugReport) {
-            tempFilesToZip.add(new MiscUtil.ZipFileDescriptor("misc", createInstalledAppsFile(tmpFolder, dateTimeString, device, allPackages, arguments)));
-            tempFilesToZip.add(new MiscUtil.ZipFileDescriptor("misc", createRunningAppsFile(tmpFolder, dateTimeString, device, adbLocation, cmdProvider, arguments)));
+            tempFilesToZip.add(new MiscUtil.ZipFileDescriptor("misc", createInstalledAppsFile(tmpFolder, dateTimeString, device, installedPackages.toList(), Commons.await(packageInfosFuture), arguments)));
+            if (!device.properties.isEmpty()) {
+                tempFilesToZip.add(new MiscUtil.ZipFileDescriptor("misc", createPropertiesFile(tmpFolder, dateTimeString, device, arguments)));
+            }
+            try (TraceRecorder.Span ignored = Commons.traceSpan("running processes", device)) {
+                tempFilesToZip.add(new MiscUtil.ZipFileDescriptor("misc", createRunningAppsFile(tmpFolder, dateTimeString, device, adbLocation, cmdProvider, arguments)));
+            }
 
-            List<File> dumpsysFiles = createDumpSysFiles(tmpFolder, dateTimeString, device, adbLocation, cmdProvider, arguments);
-            for (File dumpsysFile : dumpsysFiles) {
-                tempFilesToZip.add(new MiscUtil.ZipFileDescriptor("dumpsys", dumpsysFile));
+            try (TraceRecorder.Span ignored = Commons.traceSpan("dumpsys", device)) {
+                List<File> dumpsysFiles = createDumpSysFiles(tmpFolder, dateTimeString, device, adbLocation, cmdProvider, arguments);
+                for (File dumpsysFile : dumpsysFiles) {
+                    tempFilesToZip.add(new MiscUtil.ZipFileDescriptor("dumpsys", dumpsysFile));
+                }
             }
 
-            List<File> pmFiles = createPackageManagerDebugFiles(tmpFolder, dateTimeString, device, adbLocation, cmdProvider, arguments);
-            for (File pmFile : pmFiles) {
-                tempFilesToZip.add(new MiscUtil.ZipFileDescriptor("pm", pmFile));
+            try (TraceRecorder.Span ignored = Commons.traceSpan("pm lists", device)) {
+                List<File> pmFiles = createPackageManagerDebugFiles(tmpFolder, dateTimeString, device, adbLocation, cmdProvider, arguments);
+                for (File pmFile : pmFiles) {
+                    tempFilesToZip.add(new MiscUtil.ZipFileDescriptor("pm", pmFile));
+                }
             }
         }
         for (BugReportDeviceFileAction action : actions) {
@@ -138,7 +163,9 @@ public final class BugReport {
             }
         }
 
-        MiscUtil.zip(zipFile, tempFilesToZip);
+        try (TraceRecorder.Span ignored = Commons.traceSpan("zip", device)) {
+            MiscUtil.zip(zipFile, tempFilesToZip);
+        }
 
         if (tmpFolder.exists()) {
             FileUtil.removeRecursive(tmpFolder.toPath());
@@ -151,6 +178,58 @@ public final class BugReport {
         Commons.log(String.format(Locale.US, "\ttemp files removed and zip %s (%.2fkB) created", zipFile.getAbsolutePath(), (double) zipFile.length() / 1024.0), arguments);
     }
 
+    /**
+     * Reads the binary output directly if the action supports it, otherwise creates the file on the device,
+     * pulls and removes it; actions for different files run concurrently
+     *
+     * @return future completing with the duration in ms
+     */
+    private static CompletableFuture<Long> runDeviceFileActionAsync(final BugReportDeviceFileAction action, final AdbDevice device,
+                                                                  final AdbLocationFinder.LocationResult adbLocation, final CmdProvider cmdProvider) {
+        final long start = System.currentTimeMillis();
+        final long traceStartUs = Commons.traceNowUs();
+        CompletableFuture<Boolean> execOutFuture = action.execOutCommand != null
+                ? Commons.runAdbCommandAsync(CmdUtil.concat(new String[]{"-s", device.serial}, action.execOutCommand), cmdProvider, adbLocation)
+                .thenApply(r -> writeExecOutResult(r, action))
+                : CompletableFuture.completedFuture(false);
+
+        return execOutFuture
+                .thenCompose(written -> written ? CompletableFuture.completedFuture(null) : Commons.runAdbCommandAsync(CmdUtil.concat(new String[]{"-s", device.serial}, action.command), cmdProvider, adbLocation)
+                        .thenCompose(r -> Commons.runAdbCommandAsync(new String[]{"-s", device.serial, "pull", action.deviceTempFile, action.localTempFile.getAbsolutePath()}, cmdProvider, adbLocation))
+                        .thenCompose(r -> Commons.runAdbCommandAsync(new String[]{"-s", device.serial, "shell", "rm", "-f", action.deviceTempFile}, cmdProvider, adbLocation)))
+                .thenApply(r -> {
+                    Commons.traceSpan(action.name, device, traceStartUs);
+                    return System.currentTimeMillis() - start;
+                });
+    }
+
+    /**
+     * Writes the unmodified output to the local file if it looks like the expected binary. Devices older than
+     * Android 5 do not support exec-out and reply with an error message instead.
+     *
+     * @return true if the file was written
+     */
+    static boolean writeExecOutResult(CmdProvider.Result result, BugReportDeviceFileAction action) {
+        if (!result.isSuccess() || !result.hasRawOut()) {
+            return false;
+        }
+        ByteBuffer rawOut = result.getRawOut();
+        if (rawOut.remaining() < action.execOutSignature.length) {
+            return false;
+        }
+        for (int i = 0; i < action.execOutSignature.length; i++) {
+            if (rawOut.get(rawOut.position() + i) != action.execOutSignature[i]) {
+                return false;
+            }
+        }
+        try (OutputStream out = new FileOutputStream(action.localTempFile)) {
+            out.write(rawOut.array(), rawOut.arrayOffset() + rawOut.position(), rawOut.remaining());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     private static File downscaleIfNeeded(File localTempFile, Arg arg) {
         if (localTempFile.exists() && localTempFile.isFile() && FileUtil.getFileExtension(localTempFile).equalsIgnoreCase("png") && localTempFile.length() > MAX_IMG_BYTE_SIZE) {
 
@@ -166,24 +245,48 @@ public final class BugReport {
         return localTempFile;
     }
 
-    private static File createInstalledAppsFile(File tmpFolder, String dateTimeString, AdbDevice device, List<String> allPackages, Arg arguments) throws IOException {
+    /**
+     * One line per package with version and installer (tab separated) if the package info is known
+     */
+    private static File createInstalledAppsFile(File tmpFolder, String dateTimeString, AdbDevice device, List<String> allPackages, Map<String, DumpsysPackageParser.PackageInfo> packageInfos, Arg arguments) throws IOException {
         File file = new File(tmpFolder, "installed_packages-" + dateTimeString + "-" + device.model + ".txt");
         Collections.sort(allPackages);
         if (!file.exists()) {
             file.createNewFile();
         }
-        Files.write(file.toPath(), allPackages, Charset.forName("UTF-8"));
+        List<String> lines = new ArrayList<>(allPackages.size());
+        for (String packageName : allPackages) {
+            DumpsysPackageParser.PackageInfo info = packageInfos.get(packageName);
+            if (info != null) {
+                lines.add(packageName + "\t" + info.versionName + "\t" + info.versionCode + (info.installer != null ? "\t" + info.installer : ""));
+            } else {
+                lines.add(packageName);
+            }
+        }
+        Files.write(file.toPath(), lines, Charset.forName("UTF-8"));
         Commons.log(String.format(Locale.US, "\tcreate installed packages file (%.2fkB)", (double) file.length() / 1024.0), arguments);
         return file;
     }
 
+    /**
+     * Writes the property snapshot taken when the device was found, so no additional 'getprop' is needed
+     */
+    private static File createPropertiesFile(File tmpFolder, String dateTimeString, AdbDevice device, Arg arguments) throws IOException {
+        File file = new File(tmpFolder, "properties-" + dateTimeString + "-" + device.model + ".txt");
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, String> property : new TreeMap<>(device.properties).entrySet()) {
+            lines.add("[" + property.getKey() + "]: [" + property.getValue() + "]");
+        }
+        Files.write(file.toPath(), lines, Charset.forName("UTF-8"));
+        Commons.log(String.format(Locale.US, "\tcreate device properties file (%.2fkB)", (double) file.length() / 1024.0), arguments);
+        return file;
+    }
+
     private static File createRunningAppsFile(File tmpFolder, String dateTimeString, AdbDevice device, AdbLocationFinder.LocationResult adbLocation, CmdProvider cmdProvider, Arg arguments) throws IOException {
-        CmdProvider.Result result = Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "ps"}, cmdProvider, adbLocation);
         File file = new File(tmpFolder, "running_processes-" + dateTimeString + "-" + device.model + ".txt");
-        if (!file.exists()) {
-            file.createNewFile();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "ps"}, out, cmdProvider, adbLocation);
         }
-        Files.write(file.toPath(), result.out.getBytes("UTF-8"));
         Commons.log(String.format(Locale.US, "\tcreate running process file (%.2fkB)", (double) file.length() / 1024.0), arguments);
         return file;
     }
@@ -194,23 +297,41 @@ public final class BugReport {
         List<String> types;
         long start = System.currentTimeMillis();
 
-        int size = 0;
+        long size = 0;
         if (arguments.dumpsysServices != null) {
             types = Arrays.asList(arguments.dumpsysServices);
         } else {
             types = Arrays.asList("battery", "device_policy", "permission", "connectivity", "notification", "activity", "cpuinfo", "nfc", "-l");
         }
 
-        for (String type : types) {
-            String dumpsys = Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "dumpsys", type}, cmdProvider, adbLocation).toString();
-
-            File file = new File(tmpFolder, "dumpsys-" + type + "-" + dateTimeString + "-" + device.model + ".txt");
-            if (!file.exists()) {
-                file.createNewFile();
+        List<OutputStream> outputStreams = new ArrayList<>();
+        List<CompletableFuture<CmdProvider.Result>> futures = new ArrayList<>();
+        try {
+            for (String type : types) {
+                File file = new File(tmpFolder, "dumpsys-" + type + "-" + dateTimeString + "-" + device.model + ".txt");
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                outputStreams.add(out);
+                String[] adbArgs = new String[]{"-s", device.serial, "shell", "dumpsys", type};
+                // same header and footer as CmdProvider.Result.toString(), the output in between is streamed unmodified
+                out.write(("command: " + CmdUtil.concat(CmdUtil.concat(adbLocation.args, adbArgs), " ") + "\n").getBytes("UTF-8"));
+                futures.add(Commons.runAdbCommandAsync(adbArgs, out, cmdProvider, adbLocation));
+                files.add(file);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                CmdProvider.Result result = Commons.await(futures.get(i));
+                outputStreams.get(i).write(("\n" + result.getExitValueLine()).getBytes("UTF-8"));
             }
-            Files.write(file.toPath(), dumpsys.getBytes("UTF-8"));
+        } finally {
+            for (CompletableFuture<CmdProvider.Result> future : futures) {
+                future.exceptionally(t -> null).join();
+            }
+            for (OutputStream outputStream : outputStreams) {
+                outputStream.close();
+            }
+        }
+
+        for (File file : files) {
             size += file.length();
-            files.add(file);
         }
 
         Commons.log(String.format(Locale.US, "\tcreate dumpsys files (%.2fkB) (%d ms)", (double) size / 1024.0, System.currentTimeMillis() - start), arguments);
@@ -223,9 +344,15 @@ public final class BugReport {
         List<File> files = new ArrayList<>();
         long start = System.currentTimeMillis();
 
-        int size = 0;
+        List<CompletableFuture<CmdProvider.Result>> futures = new ArrayList<>();
         for (String pmCmd : pmCmds) {
-            CmdProvider.Result result = Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "pm", "list", pmCmd}, cmdProvider, adbLocation);
+            futures.add(Commons.runAdbCommandAsync(new String[]{"-s", device.serial, "shell", "pm", "list", pmCmd}, cmdProvider, adbLocation));
+        }
+
+        int size = 0;
+        for (int i = 0; i < pmCmds.size(); i++) {
+            String pmCmd = pmCmds.get(i);
+            CmdProvider.Result result = Commons.await(futures.get(i));
             File file = new File(tmpFolder, "pm_list_" + pmCmd + "-" + dateTimeString + "-" + device.model + ".txt");
 
             if (file.exists()) {
@@ -239,14 +366,18 @@ public final class BugReport {
         return files;
     }
 
-    private static class BugReportDeviceFileAction {
+    static class BugReportDeviceFileAction {
+        final String name;
         final String deviceTempFile;
         final String[] command;
         final String log;
         final String zipSubFolder;
         File localTempFile;
+        String[] execOutCommand;
+        byte[] execOutSignature;
 
-        BugReportDeviceFileAction(String log, String deviceTempFile, File localTempFile, String[] command, String zipSubFolder) {
+        BugReportDeviceFileAction(String name, String log, String deviceTempFile, File localTempFile, String[] command, String zipSubFolder) {
+            this.name = name;
             this.deviceTempFile = deviceTempFile;
             this.localTempFile = localTempFile;
             this.command = command;
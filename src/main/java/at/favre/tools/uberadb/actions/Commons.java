@@ -18,15 +18,27 @@
 
 package at.favre.tools.uberadb.actions;
 
+import at.favre.tools.uberadb.AdbCommand;
 import at.favre.tools.uberadb.AdbLocationFinder;
 import at.favre.tools.uberadb.CmdProvider;
+import at.favre.tools.uberadb.DeviceSelector;
+import at.favre.tools.uberadb.TraceRecorder;
 import at.favre.tools.uberadb.parser.AdbDevice;
 import at.favre.tools.uberadb.ui.Arg;
+import at.favre.tools.uberadb.util.ChecksumCache;
 import at.favre.tools.uberadb.util.CmdUtil;
 
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public final class Commons {
+    private static final ThreadLocal<StringBuffer> LOG_BUFFER = new ThreadLocal<>();
+    private static final int MAX_TRACE_NAME_LENGTH = 120;
+    private static volatile TraceRecorder traceRecorder;
+    private static volatile ChecksumCache checksumCache = new ChecksumCache(null);
+
     private Commons() {
     }
 
@@ -35,17 +47,173 @@ public final class Commons {
     }
 
     public static void logLoud(String msg) {
-        System.out.println(msg);
+        print(msg);
     }
 
     public static void log(String msg, Arg arg) {
         if (!arg.quiet) {
+            print(msg);
+        }
+    }
+
+    private static void print(String msg) {
+        StringBuffer buffer = LOG_BUFFER.get();
+        if (buffer != null) {
+            buffer.append(msg).append("\n");
+        } else {
             System.out.println(msg);
         }
     }
 
+    /**
+     * All following log calls from the current thread will be collected instead of printed,
+     * until {@link #endBufferedLog()} is called. This includes log calls of callbacks of commands started
+     * with runAdbCommandAsync from this thread, even if they run on another thread.
+     */
+    public static void startBufferedLog() {
+        LOG_BUFFER.set(new StringBuffer());
+    }
+
+    /**
+     * @return everything logged from the current thread since {@link #startBufferedLog()}
+     */
+    public static String endBufferedLog() {
+        StringBuffer buffer = LOG_BUFFER.get();
+        LOG_BUFFER.remove();
+        return buffer != null ? buffer.toString() : "";
+    }
+
+    /**
+     * @param cache used for the checksums of all files handled by actions, e.g. apks to install
+     */
+    public static void setChecksumCache(ChecksumCache cache) {
+        checksumCache = cache;
+    }
+
+    public static ChecksumCache getChecksumCache() {
+        return checksumCache;
+    }
+
+    /**
+     * All following commands run through this class and all spans started with {@link #traceSpan(String, AdbDevice)}
+     * will be recorded to given recorder.
+     *
+     * @param recorder null to stop tracing
+     */
+    public static void setTraceRecorder(TraceRecorder recorder) {
+        traceRecorder = recorder;
+    }
+
+    /**
+     * Starts a span for an action phase, use with try-with-resources. Does nothing if tracing is disabled.
+     *
+     * @param device null if the phase is not device specific
+     */
+    public static TraceRecorder.Span traceSpan(String name, AdbDevice device) {
+        TraceRecorder recorder = traceRecorder;
+        return recorder != null ? recorder.begin(name, TraceRecorder.CATEGORY_PHASE, device != null ? device.getName() : null) : TraceRecorder.Span.noop();
+    }
+
+    /**
+     * Records a phase span with given start, e.g. for phases running concurrently to the current thread
+     *
+     * @param startUs from {@link #traceNowUs()}
+     */
+    public static void traceSpan(String name, AdbDevice device, long startUs) {
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            recorder.record(name, TraceRecorder.CATEGORY_PHASE, device != null ? device.getName() : null, startUs, recorder.nowUs());
+        }
+    }
+
+    /**
+     * @return current time on the trace clock or 0 if tracing is disabled
+     */
+    public static long traceNowUs() {
+        TraceRecorder recorder = traceRecorder;
+        return recorder != null ? recorder.nowUs() : 0;
+    }
+
     public static CmdProvider.Result runAdbCommand(String[] adbArgs, CmdProvider cmdProvider, AdbLocationFinder.LocationResult locationResult) {
-        return cmdProvider.runCmd(CmdUtil.concat(locationResult.args, adbArgs));
+        long startUs = traceNowUs();
+        CmdProvider.Result result = cmdProvider.runCmd(CmdUtil.concat(locationResult.args, adbArgs));
+        traceCmd(locationResult.args, adbArgs, startUs);
+        return result;
+    }
+
+    public static CmdProvider.Result runAdbCommand(String[] adbArgs, OutputStream outputStream, CmdProvider cmdProvider, AdbLocationFinder.LocationResult locationResult) {
+        long startUs = traceNowUs();
+        CmdProvider.Result result = cmdProvider.runCmd(CmdUtil.concat(locationResult.args, adbArgs), outputStream);
+        traceCmd(locationResult.args, adbArgs, startUs);
+        return result;
+    }
+
+    public static CompletableFuture<CmdProvider.Result> runAdbCommandAsync(final String[] adbArgs, CmdProvider cmdProvider, AdbLocationFinder.LocationResult locationResult) {
+        final long startUs = traceNowUs();
+        return withLogBuffer(cmdProvider.runCmdAsync(CmdUtil.concat(locationResult.args, adbArgs)).whenComplete((result, throwable) -> traceCmd(locationResult.args, adbArgs, startUs)));
+    }
+
+    public static CompletableFuture<CmdProvider.Result> runAdbCommandAsync(final String[] adbArgs, OutputStream outputStream, CmdProvider cmdProvider, AdbLocationFinder.LocationResult locationResult) {
+        final long startUs = traceNowUs();
+        return withLogBuffer(cmdProvider.runCmdAsync(CmdUtil.concat(locationResult.args, adbArgs), outputStream).whenComplete((result, throwable) -> traceCmd(locationResult.args, adbArgs, startUs)));
+    }
+
+    /**
+     * Callbacks of the returned future run on the thread completing the command. The log buffer of the calling thread
+     * is set on that thread while it completes the returned future, so the callbacks log into the same buffer.
+     */
+    private static <T> CompletableFuture<T> withLogBuffer(CompletableFuture<T> future) {
+        final StringBuffer buffer = LOG_BUFFER.get();
+        if (buffer == null) {
+            return future;
+        }
+
+        final CompletableFuture<T> bufferedFuture = new CompletableFuture<>();
+        future.whenComplete((value, throwable) -> {
+            StringBuffer previous = LOG_BUFFER.get();
+            LOG_BUFFER.set(buffer);
+            try {
+                if (throwable != null) {
+                    bufferedFuture.completeExceptionally(throwable);
+                } else {
+                    bufferedFuture.complete(value);
+                }
+            } finally {
+                if (previous != null) {
+                    LOG_BUFFER.set(previous);
+                } else {
+                    LOG_BUFFER.remove();
+                }
+            }
+        });
+        return bufferedFuture;
+    }
+
+    private static void traceCmd(String[] adbLocationArgs, String[] adbArgs, long startUs) {
+        TraceRecorder recorder = traceRecorder;
+        if (recorder != null) {
+            // with the location args, which contain '-H'/'-P' of the device's adb server
+            AdbCommand command = AdbCommand.parse(CmdUtil.concat(adbLocationArgs, adbArgs));
+            String name = command != null ? command.command + " " + command.paramsLine() : CmdUtil.concat(adbArgs, " ");
+            if (name.length() > MAX_TRACE_NAME_LENGTH) {
+                name = name.substring(0, MAX_TRACE_NAME_LENGTH) + "...";
+            }
+            recorder.record(name.trim(), TraceRecorder.CATEGORY_CMD, command != null ? command.getDeviceName() : null, startUs, recorder.nowUs());
+        }
+    }
+
+    /**
+     * Waits for the future and rethrows runtime exceptions as they were thrown, not wrapped in a {@link CompletionException}
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
     }
 
     //CHECKSTYLE:OFF
@@ -53,6 +221,19 @@ public final class Commons {
         public int deviceCount = 0;
         public int successCount = 0;
         public int failureCount = 0;
+        /**
+         * apks not installed since they have no native code for the device
+         */
+        public int skipCount = 0;
+        public long deviceDurationMs = 0;
+
+        public void add(ActionResult other) {
+            deviceCount += other.deviceCount;
+            successCount += other.successCount;
+            failureCount += other.failureCount;
+            skipCount += other.skipCount;
+            deviceDurationMs += other.deviceDurationMs;
+        }
     }
 
     public static class IterationResult {
@@ -66,17 +247,20 @@ public final class Commons {
     }
     //CHECKSTYLE:ON
 
-    public static void checkSpecificDevice(List<AdbDevice> devices, Arg arguments) {
-        if (arguments.device != null) {
+    /**
+     * Throws if serial or predicates of the selector match no ready device. An empty shard is not an error.
+     */
+    public static void checkSpecificDevice(List<AdbDevice> devices, DeviceSelector selector) {
+        if (selector.hasFilter()) {
             boolean found = false;
             for (AdbDevice device : devices) {
-                if (device.serial.equals(arguments.device) && device.status == AdbDevice.Status.OK) {
+                if (device.status == AdbDevice.Status.OK && selector.matchesIgnoringShard(device)) {
                     found = true;
                     break;
                 }
             }
             if (!found) {
-                throw new IllegalArgumentException("There is no ready device attached with id '" + arguments.device + "'. Found devices: " + devices);
+                throw new IllegalArgumentException("There is no ready device attached matching " + selector + ". Found devices: " + devices);
             }
         }
     }
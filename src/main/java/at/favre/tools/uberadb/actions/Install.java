@@ -20,6 +20,7 @@ package at.favre.tools.uberadb.actions;
 
 import at.favre.tools.uberadb.AdbLocationFinder;
 import at.favre.tools.uberadb.CmdProvider;
+import at.favre.tools.uberadb.TraceRecorder;
 import at.favre.tools.uberadb.parser.AdbDevice;
 import at.favre.tools.uberadb.parser.InstalledPackagesParser;
 import at.favre.tools.uberadb.ui.Arg;
@@ -27,12 +28,27 @@ import at.favre.tools.uberadb.ui.FileArgParser;
 import at.favre.tools.uberadb.util.FileUtil;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public final class Install {
     private static final String EXTENSION_APK = "apk";
+    private static final String NATIVE_LIB_DIR = "lib/";
+    /**
+     * runtime permissions and 'install -g' exist since Android 6.0
+     */
+    private static final int MIN_SDK_GRANT_PERMISSIONS = 23;
+    private static final Map<String, Set<String>> NATIVE_ABIS = new ConcurrentHashMap<>();
 
     private Install() {
     }
@@ -44,29 +60,78 @@ public final class Install {
             throw new IllegalStateException("could not find any apk files in " + Arrays.toString(arguments.mainArgument) + " to install");
         }
 
+        // hash all apks in parallel while the first one is installed
+        Commons.getChecksumCache().prefetch(installFiles);
+
+        List<Set<String>> nativeAbis = new ArrayList<>(installFiles.size());
         for (File installFile : installFiles) {
-            String installStatus = "\t" + installFile.getName() + " (" + FileUtil.getFileSizeMb(installFile) + ")\n\t\tchecksum: " + FileUtil.createChecksum(installFile, "SHA-256") + " (sha256)\n";
-
-            if (!arguments.dryRun) {
-                if (!preview) {
-                    CmdProvider.Result installCmdResult = Commons.runAdbCommand(createInstallCmd(device,
-                            installFile.getAbsolutePath(), arguments), cmdProvider, adbLocation);
-
-                    if (InstalledPackagesParser.wasSuccessfulInstalled(installCmdResult.out)) {
-                        installStatus += "\t\tSuccess";
-                        actionResult.successCount++;
-                    } else {
-                        installStatus += "\t\tFail " + InstalledPackagesParser.parseShortenedInstallStatus(installCmdResult.out);
-                        actionResult.failureCount++;
-                    }
-                } else {
+            nativeAbis.add(getNativeAbis(installFile));
+        }
+
+        for (int i = 0; i < installFiles.size(); i++) {
+            File installFile = installFiles.get(i);
+            try (TraceRecorder.Span ignored = Commons.traceSpan("install " + installFile.getName(), device)) {
+                install(adbLocation, arguments, cmdProvider, preview, actionResult, device, installFile, nativeAbis.get(i));
+            }
+        }
+    }
+
+    private static void install(AdbLocationFinder.LocationResult adbLocation, Arg arguments, CmdProvider cmdProvider, boolean preview, Commons.ActionResult actionResult,
+                                AdbDevice device, File installFile, Set<String> nativeAbis) {
+        String installStatus = "\t" + installFile.getName() + " (" + FileUtil.getFileSizeMb(installFile) + ")\n\t\tchecksum: " + Commons.getChecksumCache().checksum(installFile) + " (sha256)\n";
+
+        if (!nativeAbis.isEmpty() && !device.getAbis().isEmpty() && Collections.disjoint(nativeAbis, device.getAbis())) {
+            installStatus += "\t\tskip (native code only for " + nativeAbis + ", device supports " + device.getAbis() + ")";
+            actionResult.skipCount++;
+        } else if (!arguments.dryRun) {
+            if (!preview) {
+                CmdProvider.Result installCmdResult = Commons.runAdbCommand(createInstallCmd(device,
+                        installFile.getAbsolutePath(), arguments), cmdProvider, adbLocation);
+
+                if (InstalledPackagesParser.wasSuccessfulInstalled(installCmdResult.getOut())) {
+                    installStatus += "\t\tSuccess";
                     actionResult.successCount++;
+                } else if (installCmdResult.isTimedOut()) {
+                    installStatus += "\t\tFail [timed out]";
+                    actionResult.failureCount++;
+                } else {
+                    installStatus += "\t\tFail " + InstalledPackagesParser.parseShortenedInstallStatus(installCmdResult.getOut());
+                    actionResult.failureCount++;
                 }
             } else {
-                installStatus += "\t\tskip";
+                actionResult.successCount++;
+            }
+        } else {
+            installStatus += "\t\tskip";
+        }
+        Commons.log(installStatus, arguments);
+    }
+
+    /**
+     * Reads every apk only once per run (by path, size and modification time), not again for every device
+     *
+     * @return ABIs the apk contains native libraries for; empty if it has none or it can not be read
+     */
+    static Set<String> getNativeAbis(final File apk) {
+        String key = apk.getAbsolutePath() + ":" + apk.length() + ":" + apk.lastModified();
+        return NATIVE_ABIS.computeIfAbsent(key, k -> readNativeAbis(apk));
+    }
+
+    private static Set<String> readNativeAbis(File apk) {
+        Set<String> abis = new TreeSet<>();
+        try (ZipFile zipFile = new ZipFile(apk)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                int abiEnd = name.indexOf('/', NATIVE_LIB_DIR.length());
+                if (name.startsWith(NATIVE_LIB_DIR) && abiEnd > NATIVE_LIB_DIR.length()) {
+                    abis.add(name.substring(NATIVE_LIB_DIR.length(), abiEnd));
+                }
             }
-            Commons.log(installStatus, arguments);
+        } catch (IOException e) {
+            abis.clear();
         }
+        return Collections.unmodifiableSet(abis);
     }
 
     public static boolean isSingleFile(Arg arguments) {
@@ -83,7 +148,7 @@ public final class Install {
         if (arguments.keepData) {
             cmdList.add("-r");
         }
-        if (arguments.grantPermissions) {
+        if (arguments.grantPermissions && (device.getSdkVersion() < 0 || device.getSdkVersion() >= MIN_SDK_GRANT_PERMISSIONS)) {
             cmdList.add("-g");
         }
         cmdList.add(absolutePath);
@@ -20,14 +20,17 @@ package at.favre.tools.uberadb.actions;
 
 import at.favre.tools.uberadb.AdbLocationFinder;
 import at.favre.tools.uberadb.CmdProvider;
+import at.favre.tools.uberadb.TraceRecorder;
 import at.favre.tools.uberadb.parser.AdbDevice;
 import at.favre.tools.uberadb.parser.DumpsysPackageParser;
 import at.favre.tools.uberadb.parser.InstalledPackagesParser;
-import at.favre.tools.uberadb.parser.PackageMatcher;
+import at.favre.tools.uberadb.parser.PackageUniverse;
 import at.favre.tools.uberadb.ui.Arg;
 import at.favre.tools.uberadb.util.MiscUtil;
 
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 
 public final class PackageDependentAction {
 
@@ -35,31 +38,50 @@ public final class PackageDependentAction {
     }
 
     public static void execute(AdbLocationFinder.LocationResult adbLocation, Arg arguments, CmdProvider cmdProvider, boolean preview, Commons.ActionResult actionResult, AdbDevice device, List<String> allPackages) {
-        List<String> filteredPackages = new PackageMatcher(allPackages).findMatches(arguments.mainArgument);
+        execute(adbLocation, arguments, cmdProvider, preview, actionResult, device, new PackageUniverse().add(allPackages));
+    }
+
+    public static void execute(AdbLocationFinder.LocationResult adbLocation, Arg arguments, CmdProvider cmdProvider, boolean preview, Commons.ActionResult actionResult, AdbDevice device, PackageUniverse.PackageSet installedPackages) {
+        List<String> filteredPackages = installedPackages.findMatches(arguments.mainArgument);
 
+        CompletableFuture<CmdProvider.Result> wakeUpFuture = CompletableFuture.completedFuture(null);
         if (arguments.mode == Arg.Mode.START_ACTIVITY || arguments.mode == Arg.Mode.FORCE_STOP) {
-            Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "input", "keyevent", "KEYCODE_WAKEUP"}, cmdProvider, adbLocation);
+            wakeUpFuture = Commons.runAdbCommandAsync(new String[]{"-s", device.serial, "shell", "input", "keyevent", "KEYCODE_WAKEUP"}, cmdProvider, adbLocation);
         }
 
-        for (String filteredPackage : filteredPackages) {
-            DumpsysPackageParser.PackageInfo packageInfo = getPackageInfo(device, filteredPackage, cmdProvider, adbLocation);
+        CompletableFuture<List<DumpsysPackageParser.PackageInfo>> packageInfosFuture = getPackageInfosAsync(device, filteredPackages, cmdProvider, adbLocation);
+        CompletableFuture<List<CmdProvider.Result>> actionCmdResultsFuture = CompletableFuture.completedFuture(null);
+        if (!arguments.dryRun && !preview) {
+            if (arguments.mode == Arg.Mode.UNINSTALL) {
+                // package info has to be read before the package is gone
+                actionCmdResultsFuture = packageInfosFuture.thenCompose(ignored -> runBatchedActionCmdsAsync(device, filteredPackages, arguments, cmdProvider, adbLocation));
+            } else {
+                actionCmdResultsFuture = runBatchedActionCmdsAsync(device, filteredPackages, arguments, cmdProvider, adbLocation);
+            }
+        }
+
+        Commons.await(wakeUpFuture);
+        List<DumpsysPackageParser.PackageInfo> packageInfos = Commons.await(packageInfosFuture);
+        List<CmdProvider.Result> actionCmdResults = Commons.await(actionCmdResultsFuture);
+
+        for (int i = 0; i < filteredPackages.size(); i++) {
+            String filteredPackage = filteredPackages.get(i);
+            DumpsysPackageParser.PackageInfo packageInfo = packageInfos.get(i);
             String packgeActionLog = "\t" + filteredPackage + getShortPackageInfo(packageInfo);
             if (!arguments.dryRun) {
                 if (!preview) {
                     if (arguments.mode == Arg.Mode.UNINSTALL) {
-                        CmdProvider.Result uninstallCmdResult = Commons.runAdbCommand(createUninstallCmd(device, filteredPackage, arguments), cmdProvider, adbLocation);
-                        packgeActionLog += "\t" + (uninstallCmdResult.out != null ? uninstallCmdResult.out.trim() : "");
-                        if (InstalledPackagesParser.wasSuccessfulUninstalled(uninstallCmdResult.out)) {
+                        CmdProvider.Result uninstallCmdResult = actionCmdResults.get(i);
+                        packgeActionLog += "\t" + (uninstallCmdResult.isTimedOut() ? "timed out" : uninstallCmdResult.getOut() != null ? uninstallCmdResult.getOut().trim() : "");
+                        if (InstalledPackagesParser.wasSuccessfulUninstalled(uninstallCmdResult.getOut())) {
                             actionResult.successCount++;
                         } else {
                             actionResult.failureCount++;
                         }
                     } else if (arguments.mode == Arg.Mode.FORCE_STOP) {
-                        Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "am", "force-stop", filteredPackage}, cmdProvider, adbLocation);
                         packgeActionLog += "\tstopped";
                         actionResult.successCount++;
                     } else if (arguments.mode == Arg.Mode.CLEAR) {
-                        Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "pm", "clear", filteredPackage}, cmdProvider, adbLocation);
                         packgeActionLog += "\tdata cleared";
                         actionResult.successCount++;
                     } else if (arguments.mode == Arg.Mode.INFO) {
@@ -67,7 +89,9 @@ public final class PackageDependentAction {
                         actionResult.successCount++;
                     } else if (arguments.mode == Arg.Mode.START_ACTIVITY) {
                         packgeActionLog += "\tstarting app";
-                        Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "monkey", "-p", filteredPackage, "-c", "android.intent.category.LAUNCHER", "1"}, cmdProvider, adbLocation);
+                        try (TraceRecorder.Span ignored = Commons.traceSpan("start " + filteredPackage, device)) {
+                            Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "monkey", "-p", filteredPackage, "-c", "android.intent.category.LAUNCHER", "1"}, cmdProvider, adbLocation);
+                        }
                         actionResult.successCount++;
                     }
                 } else {
@@ -101,21 +125,56 @@ public final class PackageDependentAction {
             sb.append("\t\tversionCode: ").append(info.versionCode).append(" (").append(info.pkgHash).append(")\n");
             sb.append("\t\tpath: ").append(info.codePath).append("\n");
             sb.append("\t\tinstallTime: ").append(info.firstInstallTime).append("\n");
+            if (info.targetSdk != DumpsysPackageParser.UNKNOWN) {
+                sb.append("\t\ttargetSdk: ").append(info.targetSdk).append("\n");
+            }
+            if (info.installer != null) {
+                sb.append("\t\tinstaller: ").append(info.installer).append("\n");
+            }
         } else {
             sb.append("\t\tcould not read package info");
         }
         return sb.toString();
     }
 
-    private static String[] createUninstallCmd(AdbDevice device, String filteredPackage, Arg arguments) {
+    /**
+     * Runs the mode's command for all packages in as few adb calls as possible. Starting activities is not
+     * batched since there is a delay between every start.
+     *
+     * @return future completing with one result per package or null if the mode has no such command
+     */
+    private static CompletableFuture<List<CmdProvider.Result>> runBatchedActionCmdsAsync(final AdbDevice device, List<String> filteredPackages, final Arg arguments, CmdProvider cmdProvider, AdbLocationFinder.LocationResult adbLocation) {
+        if (arguments.mode != Arg.Mode.UNINSTALL && arguments.mode != Arg.Mode.FORCE_STOP && arguments.mode != Arg.Mode.CLEAR) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        final long traceStartUs = Commons.traceNowUs();
+
+        ShellCommandBatch batch = new ShellCommandBatch(device);
+        for (String filteredPackage : filteredPackages) {
+            if (arguments.mode == Arg.Mode.UNINSTALL) {
+                batch.add(createUninstallCmd(filteredPackage, arguments));
+            } else if (arguments.mode == Arg.Mode.FORCE_STOP) {
+                batch.add("am", "force-stop", filteredPackage);
+            } else {
+                batch.add("pm", "clear", filteredPackage);
+            }
+        }
+        return batch.executeAsync(cmdProvider, adbLocation).whenComplete((results, throwable) ->
+                Commons.traceSpan(arguments.mode.name().toLowerCase(Locale.US).replace('_', '-') + " packages", device, traceStartUs));
+    }
+
+    private static String[] createUninstallCmd(String filteredPackage, Arg arguments) {
         if (!arguments.keepData) {
-            return new String[]{"-s", device.serial, "shell", "pm", "uninstall", filteredPackage};
+            return new String[]{"pm", "uninstall", filteredPackage};
         } else {
-            return new String[]{"-s", device.serial, "shell", "cmd", "package", "uninstall", "-k", filteredPackage};
+            return new String[]{"cmd", "package", "uninstall", "-k", filteredPackage};
         }
     }
 
-    private static DumpsysPackageParser.PackageInfo getPackageInfo(AdbDevice device, String filteredPackage, CmdProvider cmdProvider, AdbLocationFinder.LocationResult locationResult) {
-        return new DumpsysPackageParser().parseSingleDumpsysPackage(filteredPackage, Commons.runAdbCommand(new String[]{"-s", device.serial, "shell", "dumpsys", "package", filteredPackage}, cmdProvider, locationResult).out);
+    private static CompletableFuture<List<DumpsysPackageParser.PackageInfo>> getPackageInfosAsync(final AdbDevice device, final List<String> filteredPackages, CmdProvider cmdProvider, AdbLocationFinder.LocationResult locationResult) {
+        final long traceStartUs = Commons.traceNowUs();
+        return PackageMetadata.getAsync(device, filteredPackages, cmdProvider, locationResult).whenComplete((packageInfos, throwable) ->
+                Commons.traceSpan("package info", device, traceStartUs));
     }
 }
@@ -0,0 +1,107 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+package at.favre.tools.uberadb.actions;
+
+import at.favre.tools.uberadb.AdbLocationFinder;
+import at.favre.tools.uberadb.CmdProvider;
+import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.parser.DumpsysPackageParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads version, path, install time etc. of installed packages. For more than a few packages a single
+ * 'dumpsys package packages' with the info of all packages is cheaper than one 'dumpsys package &lt;package&gt;' per
+ * package, since every one of them also prints the shared user, permission and dexopt sections.
+ */
+public final class PackageMetadata {
+    /**
+     * From this many packages on all packages are read with one command
+     */
+    static final int BULK_THRESHOLD = 4;
+
+    private PackageMetadata() {
+    }
+
+    /**
+     * @return future completing with the info of all packages of the device; empty if it could not be read
+     */
+    public static CompletableFuture<Map<String, DumpsysPackageParser.PackageInfo>> getAllAsync(AdbDevice device, CmdProvider cmdProvider, AdbLocationFinder.LocationResult adbLocation) {
+        return Commons.runAdbCommandAsync(new String[]{"-s", device.serial, "shell", "dumpsys", "package", "packages"}, cmdProvider, adbLocation)
+                .thenApply(result -> result.isSuccess()
+                        ? new DumpsysPackageParser().parseAll(result.getOut())
+                        : Collections.<String, DumpsysPackageParser.PackageInfo>emptyMap());
+    }
+
+    /**
+     * Packages missing in the bulk output (e.g. because the device does not support 'dumpsys package packages')
+     * are read one by one.
+     *
+     * @return future completing with one info per package, in the same order; an element is null if the info of the
+     * package could not be read
+     */
+    public static CompletableFuture<List<DumpsysPackageParser.PackageInfo>> getAsync(final AdbDevice device, final List<String> packages, final CmdProvider cmdProvider, final AdbLocationFinder.LocationResult adbLocation) {
+        if (packages.size() < BULK_THRESHOLD) {
+            return getSingleAsync(device, packages, cmdProvider, adbLocation);
+        }
+
+        return getAllAsync(device, cmdProvider, adbLocation).thenCompose(all -> {
+            final List<String> missing = new ArrayList<>();
+            final Map<String, Integer> missingIndex = new HashMap<>();
+            for (String packageName : packages) {
+                if (!all.containsKey(packageName) && !missingIndex.containsKey(packageName)) {
+                    missingIndex.put(packageName, missing.size());
+                    missing.add(packageName);
+                }
+            }
+
+            return getSingleAsync(device, missing, cmdProvider, adbLocation).thenApply(missingInfos -> {
+                List<DumpsysPackageParser.PackageInfo> packageInfos = new ArrayList<>(packages.size());
+                for (String packageName : packages) {
+                    Integer index = missingIndex.get(packageName);
+                    packageInfos.add(index == null ? all.get(packageName) : missingInfos.get(index));
+                }
+                return packageInfos;
+            });
+        });
+    }
+
+    private static CompletableFuture<List<DumpsysPackageParser.PackageInfo>> getSingleAsync(AdbDevice device, final List<String> packages, CmdProvider cmdProvider, AdbLocationFinder.LocationResult adbLocation) {
+        if (packages.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.<DumpsysPackageParser.PackageInfo>emptyList());
+        }
+
+        ShellCommandBatch batch = new ShellCommandBatch(device);
+        for (String packageName : packages) {
+            batch.add("dumpsys", "package", packageName);
+        }
+
+        return batch.executeAsync(cmdProvider, adbLocation).thenApply(results -> {
+            List<DumpsysPackageParser.PackageInfo> packageInfos = new ArrayList<>(packages.size());
+            for (int i = 0; i < packages.size(); i++) {
+                packageInfos.add(new DumpsysPackageParser().parseSingleDumpsysPackage(packages.get(i), results.get(i).getOut()));
+            }
+            return packageInfos;
+        });
+    }
+}
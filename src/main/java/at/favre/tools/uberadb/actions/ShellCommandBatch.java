@@ -0,0 +1,243 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+
+package at.favre.tools.uberadb.actions;
+
+import at.favre.tools.uberadb.AdbLocationFinder;
+import at.favre.tools.uberadb.CmdProvider;
+import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.util.CmdUtil;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs many shell commands for a single device with as few 'adb shell' invocations as possible.
+ * <p>
+ * The commands are joined into one script where every command is followed by a sentinel line containing its
+ * index and exit code, e.g. 'pm clear a; __x=$?; echo; echo SENTINEL:0:$__x'. The output is then split at the
+ * sentinels again so every command gets its own {@link CmdProvider.Result}, as if it had been run on its own.
+ */
+public final class ShellCommandBatch {
+    /**
+     * Max length of a single batched script; keeps well below the command line limits of older devices
+     */
+    static final int MAX_SCRIPT_LENGTH = 4000;
+
+    private static final Pattern SCRIPT_PART = Pattern.compile("(.+?); __x=\\$\\?; echo; echo (__UBERADB_\\w+):(\\d+):\\$__x(?:; |$)");
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final AdbDevice device;
+    private final List<String[]> commands = new ArrayList<>();
+
+    public ShellCommandBatch(AdbDevice device) {
+        this.device = device;
+    }
+
+    /**
+     * @param shellCmd the command as it would be passed after 'adb shell'
+     * @return this batch
+     */
+    public ShellCommandBatch add(String... shellCmd) {
+        commands.add(shellCmd);
+        return this;
+    }
+
+    public int size() {
+        return commands.size();
+    }
+
+    /**
+     * Runs all added commands
+     *
+     * @return one result per added command, in the same order
+     */
+    public List<CmdProvider.Result> execute(CmdProvider cmdProvider, AdbLocationFinder.LocationResult adbLocation) {
+        return Commons.await(executeAsync(cmdProvider, adbLocation));
+    }
+
+    /**
+     * Runs all added commands; if the batch has to be split because of its length the parts run concurrently
+     *
+     * @return future completing with one result per added command, in the same order
+     */
+    public CompletableFuture<List<CmdProvider.Result>> executeAsync(CmdProvider cmdProvider, AdbLocationFinder.LocationResult adbLocation) {
+        final List<CompletableFuture<List<CmdProvider.Result>>> chunkFutures = new ArrayList<>();
+        int start = 0;
+        while (start < commands.size()) {
+            int end = start + 1;
+            int length = CmdUtil.concat(commands.get(start), " ").length();
+            while (end < commands.size()) {
+                length += CmdUtil.concat(commands.get(end), " ").length() + 64;
+                if (length > MAX_SCRIPT_LENGTH) {
+                    break;
+                }
+                end++;
+            }
+            chunkFutures.add(executeChunk(new ArrayList<>(commands.subList(start, end)), cmdProvider, adbLocation));
+            start = end;
+        }
+
+        return CompletableFuture.allOf(chunkFutures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<CmdProvider.Result> results = new ArrayList<>(commands.size());
+            for (CompletableFuture<List<CmdProvider.Result>> chunkFuture : chunkFutures) {
+                results.addAll(chunkFuture.join());
+            }
+            return results;
+        });
+    }
+
+    private CompletableFuture<List<CmdProvider.Result>> executeChunk(final List<String[]> chunk, CmdProvider cmdProvider, AdbLocationFinder.LocationResult adbLocation) {
+        if (chunk.size() == 1) {
+            return Commons.runAdbCommandAsync(createShellCmd(chunk.get(0)), cmdProvider, adbLocation).thenApply(Collections::singletonList);
+        }
+
+        final String sentinel = createSentinel();
+        final List<String[]> fullCmds = new ArrayList<>(chunk.size());
+        for (String[] shellCmd : chunk) {
+            fullCmds.add(CmdUtil.concat(adbLocation.args, createShellCmd(shellCmd)));
+        }
+        return Commons.runAdbCommandAsync(new String[]{"-s", device.serial, "shell", createScript(chunk, sentinel)}, cmdProvider, adbLocation)
+                .thenApply(batchResult -> demultiplex(batchResult, sentinel, fullCmds));
+    }
+
+    private String[] createShellCmd(String[] shellCmd) {
+        return CmdUtil.concat(new String[]{"-s", device.serial, "shell"}, shellCmd);
+    }
+
+    /**
+     * A random nonce per batch, so no output of a batched command can fake the sentinel of another
+     */
+    public static String createSentinel() {
+        return "__UBERADB_" + Long.toHexString(RANDOM.nextLong() & Long.MAX_VALUE);
+    }
+
+    static String createScript(List<String[]> chunk, String sentinel) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < chunk.size(); i++) {
+            if (i > 0) {
+                sb.append("; ");
+            }
+            sb.append(CmdUtil.concat(chunk.get(i), " "))
+                    .append("; __x=$?; echo; echo ").append(sentinel).append(':').append(i).append(":$__x");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Splits a script created by a batch back into its commands, so it can be identified by them instead of its text
+     *
+     * @param script the shell script
+     * @return the parsed script or null if it was not created by a batch
+     */
+    public static Script parseScript(String script) {
+        Matcher matcher = SCRIPT_PART.matcher(script);
+        List<String> commands = new ArrayList<>();
+        String sentinel = null;
+        int end = 0;
+
+        while (end < script.length()) {
+            matcher.region(end, script.length());
+            if (!matcher.lookingAt()
+                    || (sentinel != null && !sentinel.equals(matcher.group(2)))
+                    || !matcher.group(3).equals(String.valueOf(commands.size()))) {
+                return null;
+            }
+            sentinel = matcher.group(2);
+            commands.add(matcher.group(1));
+            end = matcher.end();
+        }
+        return sentinel != null ? new Script(sentinel, commands) : null;
+    }
+
+    /**
+     * Splits the output of a batched run at the sentinel lines. Commands without a sentinel (e.g. because the
+     * batch was aborted) get the exit value -1 and the exception and state of the batch run.
+     *
+     * @param batchResult result of the whole script
+     * @param sentinel    sentinel used in the script
+     * @param cmds        the full command line of every command in the batch
+     * @return one result per command
+     */
+    static List<CmdProvider.Result> demultiplex(CmdProvider.Result batchResult, String sentinel, List<String[]> cmds) {
+        List<CmdProvider.Result> results = new ArrayList<>(cmds.size());
+        String prefix = sentinel + ":";
+        StringBuilder out = new StringBuilder();
+
+        for (String line : batchResult.getOut().split("\n")) {
+            if (line.startsWith(prefix) && results.size() < cmds.size()) {
+                String[] indexAndExit = line.substring(prefix.length()).trim().split(":");
+                if (indexAndExit.length == 2 && indexAndExit[0].equals(String.valueOf(results.size()))) {
+                    int exitValue;
+                    try {
+                        exitValue = Integer.parseInt(indexAndExit[1]);
+                    } catch (NumberFormatException e) {
+                        exitValue = -1;
+                    }
+                    results.add(new CmdProvider.Result(out.toString(), null, cmds.get(results.size()), exitValue));
+                    out.setLength(0);
+                    continue;
+                }
+            }
+            if (!line.isEmpty()) {
+                out.append(line).append("\n");
+            }
+        }
+
+        while (results.size() < cmds.size()) {
+            results.add(new CmdProvider.Result(out.toString(), batchResult.exception, cmds.get(results.size()), -1, batchResult.state));
+            out.setLength(0);
+        }
+        return results;
+    }
+
+    /**
+     * A batch script split into its sentinel and its commands
+     */
+    public static final class Script {
+        public final String sentinel;
+        public final List<String> commands;
+
+        Script(String sentinel, List<String> commands) {
+            this.sentinel = sentinel;
+            this.commands = Collections.unmodifiableList(commands);
+        }
+
+        /**
+         * @param output the output of this script
+         * @return true if every command of the script reported the exit value 0
+         */
+        public boolean allSucceeded(String output) {
+            int succeeded = 0;
+            String expected = sentinel + ":" + succeeded + ":0";
+            for (String line : output.split("\n")) {
+                if (line.trim().equals(expected)) {
+                    succeeded++;
+                    expected = sentinel + ":" + succeeded + ":0";
+                }
+            }
+            return succeeded == commands.size();
+        }
+    }
+}
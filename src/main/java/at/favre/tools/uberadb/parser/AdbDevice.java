@@ -18,7 +18,18 @@
 
 package at.favre.tools.uberadb.parser;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 public class AdbDevice {
+    public static final String PROP_SDK_VERSION = "ro.build.version.sdk";
+    public static final String PROP_ABI_LIST = "ro.product.cpu.abilist";
+    public static final String PROP_ABI = "ro.product.cpu.abi";
+    public static final String PROP_FINGERPRINT = "ro.build.fingerprint";
+    public static final String PROP_BOOT_COMPLETED = "sys.boot_completed";
+
     public enum Status {
         OK, OFFLINE, UNAUTHORIZED, BOOTLOADER, UNKNOWN
     }
@@ -28,13 +39,92 @@ public class AdbDevice {
     public final String model;
     public final String product;
     public final boolean isEmulator;
+    /**
+     * 'host:port' of the adb server the device is attached to or null for the default server
+     */
+    public final String server;
+    /**
+     * snapshot of the system properties ('getprop') taken once when the device was found, empty if not read;
+     * not part of equals
+     */
+    public final Map<String, String> properties;
 
     public AdbDevice(String serial, Status status, String model, String product, boolean isEmulator) {
+        this(serial, status, model, product, isEmulator, null);
+    }
+
+    public AdbDevice(String serial, Status status, String model, String product, boolean isEmulator, String server) {
+        this(serial, status, model, product, isEmulator, server, Collections.<String, String>emptyMap());
+    }
+
+    public AdbDevice(String serial, Status status, String model, String product, boolean isEmulator, String server, Map<String, String> properties) {
         this.serial = serial;
         this.status = status;
         this.model = model;
         this.product = product;
         this.isEmulator = isEmulator;
+        this.server = server;
+        this.properties = Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * @return serial, suffixed with '@host:port' of the adb server if not the default one, since serials are only
+     * unique per server
+     */
+    public String getName() {
+        return server != null ? serial + "@" + server : serial;
+    }
+
+    /**
+     * @return a copy of this device attached to the given adb server
+     */
+    public AdbDevice withServer(String server) {
+        return new AdbDevice(serial, status, model, product, isEmulator, server, properties);
+    }
+
+    /**
+     * @return a copy of this device with the given property snapshot
+     */
+    public AdbDevice withProperties(Map<String, String> properties) {
+        return new AdbDevice(serial, status, model, product, isEmulator, server, properties);
+    }
+
+    /**
+     * @return the property value or null if unknown
+     */
+    public String getProperty(String key) {
+        return properties.get(key);
+    }
+
+    /**
+     * @return API level of the device or -1 if unknown
+     */
+    public int getSdkVersion() {
+        try {
+            String sdk = properties.get(PROP_SDK_VERSION);
+            return sdk != null ? Integer.parseInt(sdk.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return supported ABIs, preferred first, or an empty list if unknown
+     */
+    public List<String> getAbis() {
+        String abis = properties.get(PROP_ABI_LIST);
+        if (abis == null || abis.trim().isEmpty()) {
+            abis = properties.get(PROP_ABI);
+        }
+        List<String> abiList = new ArrayList<>();
+        if (abis != null) {
+            for (String abi : abis.split(",")) {
+                if (!abi.trim().isEmpty()) {
+                    abiList.add(abi.trim());
+                }
+            }
+        }
+        return abiList;
     }
 
     @Override
@@ -45,6 +135,7 @@ public class AdbDevice {
                 ", model='" + model + '\'' +
                 ", product='" + product + '\'' +
                 ", isEmulator=" + isEmulator +
+                ", server='" + server + '\'' +
                 '}';
     }
 
@@ -59,7 +150,8 @@ public class AdbDevice {
         if (serial != null ? !serial.equals(adbDevice.serial) : adbDevice.serial != null) return false;
         if (status != adbDevice.status) return false;
         if (model != null ? !model.equals(adbDevice.model) : adbDevice.model != null) return false;
-        return product != null ? product.equals(adbDevice.product) : adbDevice.product == null;
+        if (product != null ? !product.equals(adbDevice.product) : adbDevice.product != null) return false;
+        return server != null ? server.equals(adbDevice.server) : adbDevice.server == null;
 
     }
 
@@ -70,6 +162,7 @@ public class AdbDevice {
         result = 31 * result + (model != null ? model.hashCode() : 0);
         result = 31 * result + (product != null ? product.hashCode() : 0);
         result = 31 * result + (isEmulator ? 1 : 0);
+        result = 31 * result + (server != null ? server.hashCode() : 0);
         return result;
     }
 }
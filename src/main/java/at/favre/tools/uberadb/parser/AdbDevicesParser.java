@@ -18,8 +18,13 @@
 
 package at.favre.tools.uberadb.parser;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class AdbDevicesParser {
     private static final String STATUS_OFFLINE = "offline";
@@ -49,6 +54,20 @@ public class AdbDevicesParser {
         return devices;
     }
 
+    /**
+     * Parses a device list without the 'List of devices attached' header, as sent by 'host:track-devices-l'
+     */
+    public List<AdbDevice> parseDeviceList(String deviceList) {
+        List<AdbDevice> devices = new ArrayList<>();
+        for (String line : deviceList.split("\\r?\\n")) {
+            AdbDevice d = line.isEmpty() ? null : parseDeviceLine(line);
+            if (d != null) {
+                devices.add(d);
+            }
+        }
+        return devices;
+    }
+
     static AdbDevice parseDeviceLine(String line) {
         char[] chars = line.replace("\t", " ").toCharArray();
         StringBuilder deviceName = new StringBuilder();
@@ -110,4 +129,73 @@ public class AdbDevicesParser {
                 return AdbDevice.Status.UNKNOWN;
         }
     }
+
+    /**
+     * Incrementally parses the output of 'adb track-devices -l' (or the 'host:track-devices-l' service): a message
+     * with the complete device list, prefixed by its length as 4 hex digits, every time a device changes.
+     * Data can be fed in arbitrary chunks.
+     */
+    public static final class TrackingParser {
+        private static final int LENGTH_PREFIX = 4;
+
+        private final AdbDevicesParser parser = new AdbDevicesParser();
+        private final Map<String, AdbDevice> devices = new LinkedHashMap<>();
+        private byte[] buffer = new byte[1024];
+        private int count;
+
+        /**
+         * @return devices which are new or changed their status with the messages completed by this chunk
+         */
+        public List<AdbDevice> feed(byte[] data, int offset, int length) {
+            if (count + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+            }
+            System.arraycopy(data, offset, buffer, count, length);
+            count += length;
+
+            List<AdbDevice> changed = new ArrayList<>();
+            int position = 0;
+            while (count - position >= LENGTH_PREFIX) {
+                int messageLength = parseLength(position);
+                if (count - position - LENGTH_PREFIX < messageLength) {
+                    break;
+                }
+                String message = new String(buffer, position + LENGTH_PREFIX, messageLength, StandardCharsets.UTF_8);
+                position += LENGTH_PREFIX + messageLength;
+                update(parser.parseDeviceList(message), changed);
+            }
+            System.arraycopy(buffer, position, buffer, 0, count - position);
+            count -= position;
+            return changed;
+        }
+
+        /**
+         * @return all currently attached devices with their last known state
+         */
+        public Collection<AdbDevice> getDevices() {
+            return new ArrayList<>(devices.values());
+        }
+
+        private int parseLength(int position) {
+            String hex = new String(buffer, position, LENGTH_PREFIX, StandardCharsets.US_ASCII);
+            try {
+                return Integer.parseInt(hex, 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("unexpected device tracking message length '" + hex + "'", e);
+            }
+        }
+
+        private void update(List<AdbDevice> current, List<AdbDevice> changed) {
+            Map<String, AdbDevice> previous = new LinkedHashMap<>(devices);
+            devices.clear();
+            for (AdbDevice device : current) {
+                devices.put(device.serial, device);
+                AdbDevice before = previous.get(device.serial);
+                if (before == null || before.status != device.status) {
+                    changed.remove(before);
+                    changed.add(device);
+                }
+            }
+        }
+    }
 }
@@ -18,32 +18,198 @@
 
 package at.favre.tools.uberadb.parser;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Parses the output of 'dumpsys package &lt;package&gt;' or of all packages. The output is read line by line in a single pass: the
+ * sections before the package (resolver tables, key sets, ...) are skipped until the 'Package [name] (hash):' header
+ * of the requested package, then its fields are read until the block ends. Everything after it (shared users,
+ * permissions, dexopt state, ...) is not looked at when only a single package is requested.
+ */
 public class DumpsysPackageParser {
+    public static final int UNKNOWN = -1;
+
+    private static final Pattern PACKAGE_HEADER = Pattern.compile("^ {1,2}Package \\[([^\\]]+)\\] \\(([^)]+)\\):");
+    private static final Pattern KEY_VALUE = Pattern.compile("([A-Za-z]+)=(\\S+)");
+    private static final Pattern TIMESTAMP = Pattern.compile("\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}");
+
+    private enum State {SEARCH_PACKAGE, IN_PACKAGE}
 
+    /**
+     * @return the info of the package; fields missing in the output are null (or {@link #UNKNOWN}), null if the
+     * package is not part of the output at all
+     */
     public PackageInfo parseSingleDumpsysPackage(String packageName, String dumpsysOut) {
+        Map<String, PackageInfo> packageInfos = new HashMap<>(2);
+        parse(dumpsysOut, packageName, packageInfos);
+        return packageInfos.get(packageName);
+    }
+
+    /**
+     * Parses the output of 'dumpsys package packages' (or 'dumpsys package') which contains all packages of the device
+     *
+     * @return package name mapped to its info, in the order of the output
+     */
+    public Map<String, PackageInfo> parseAll(String dumpsysOut) {
+        Map<String, PackageInfo> packageInfos = new LinkedHashMap<>();
+        parse(dumpsysOut, null, packageInfos);
+        return packageInfos;
+    }
+
+    /**
+     * @param onlyPackage if not null, stop after this package was read and skip all others
+     */
+    private static void parse(String dumpsysOut, String onlyPackage, Map<String, PackageInfo> packageInfos) {
+        if (dumpsysOut == null) {
+            return;
+        }
+
+        State state = State.SEARCH_PACKAGE;
+        Builder builder = null;
+        int lineStart = 0;
+        int length = dumpsysOut.length();
+
+        while (lineStart < length) {
+            int lineEnd = dumpsysOut.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = length;
+            }
+            String line = dumpsysOut.substring(lineStart, lineEnd);
+            lineStart = lineEnd + 1;
+            int indent = indentOf(line);
+
+            if (state == State.IN_PACKAGE) {
+                if (indent == line.length()) {
+                    continue;
+                } else if (indent > 2) {
+                    builder.parseField(line, indent);
+                    continue;
+                }
+                // next package or next section
+                packageInfos.put(builder.packageName, builder.build());
+                builder = null;
+                state = State.SEARCH_PACKAGE;
+                if (onlyPackage != null) {
+                    return;
+                }
+            }
+
+            if (line.startsWith("Package [", indent)) {
+                Matcher matcher = PACKAGE_HEADER.matcher(line);
+                // updated system apps are listed again under 'Hidden system packages', the first entry wins
+                if (matcher.find() && (onlyPackage == null || matcher.group(1).equals(onlyPackage))
+                        && !packageInfos.containsKey(matcher.group(1))) {
+                    builder = new Builder(matcher.group(1), matcher.group(2));
+                    state = State.IN_PACKAGE;
+                }
+            }
+        }
+
+        if (builder != null) {
+            packageInfos.put(builder.packageName, builder.build());
+        }
+    }
+
+    private static int indentOf(String line) {
+        int i = 0;
+        while (i < line.length() && line.charAt(i) <= ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int parseInt(String value) {
         try {
-            String versionName, codePath, installTime, updateTime, pkgHash;
-            int versionCode;
-
-            versionCode = Integer.valueOf(find("versionCode=(\\d+?)\\s", dumpsysOut));
-            versionName = find("versionName=(.+?)\\s", dumpsysOut);
-            codePath = find("codePath=(.+?)\\s", dumpsysOut);
-            installTime = find("firstInstallTime=(\\d{4}-\\d{2}-\\d{2}\\s\\d{2}:\\d{2}:\\d{2})\\s", dumpsysOut);
-            updateTime = find("lastUpdateTime=(\\d{4}-\\d{2}-\\d{2}\\s\\d{2}:\\d{2}:\\d{2})\\s", dumpsysOut);
-            pkgHash = find("\\s+Package \\[" + Pattern.quote(packageName) + "\\] \\((.+?)\\):\\s", dumpsysOut);
-            return new PackageInfo(packageName, versionCode, versionName.trim(), codePath, installTime, updateTime, pkgHash);
-        } catch (Exception e) {
-            return null;
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
         }
     }
 
-    private String find(String pattern, String haystack) {
-        Matcher matcherVersionCode = Pattern.compile(pattern).matcher(haystack);
-        matcherVersionCode.find();
-        return matcherVersionCode.group(1);
+    /**
+     * Collects the fields of one package block, the first occurrence of every field wins (newer Android versions
+     * repeat some of them per user)
+     */
+    private static final class Builder {
+        private final String packageName;
+        private final String pkgHash;
+        private int versionCode = UNKNOWN;
+        private int targetSdk = UNKNOWN;
+        private String versionName;
+        private String codePath;
+        private String firstInstallTime;
+        private String updateTime;
+        private String installer;
+        private List<String> flags;
+        private List<String> pkgFlags;
+
+        Builder(String packageName, String pkgHash) {
+            this.packageName = packageName;
+            this.pkgHash = pkgHash;
+        }
+
+        void parseField(String line, int indent) {
+            if (line.startsWith("versionCode=", indent)) {
+                Matcher matcher = KEY_VALUE.matcher(line);
+                while (matcher.find()) {
+                    if (matcher.group(1).equals("versionCode") && versionCode == UNKNOWN) {
+                        versionCode = parseInt(matcher.group(2));
+                    } else if (matcher.group(1).equals("targetSdk") && targetSdk == UNKNOWN) {
+                        targetSdk = parseInt(matcher.group(2));
+                    }
+                }
+            } else if (versionName == null && line.startsWith("versionName=", indent)) {
+                versionName = line.substring(indent + "versionName=".length()).trim();
+            } else if (codePath == null && line.startsWith("codePath=", indent)) {
+                codePath = firstToken(line, indent + "codePath=".length());
+            } else if (installer == null && line.startsWith("installerPackageName=", indent)) {
+                installer = firstToken(line, indent + "installerPackageName=".length());
+            } else if (firstInstallTime == null && line.startsWith("firstInstallTime=", indent)) {
+                firstInstallTime = timestamp(line);
+            } else if (updateTime == null && line.startsWith("lastUpdateTime=", indent)) {
+                updateTime = timestamp(line);
+            } else if (flags == null && line.startsWith("flags=[", indent)) {
+                flags = flagList(line, indent + "flags=[".length());
+            } else if (pkgFlags == null && line.startsWith("pkgFlags=[", indent)) {
+                pkgFlags = flagList(line, indent + "pkgFlags=[".length());
+            }
+        }
+
+        PackageInfo build() {
+            return new PackageInfo(packageName, versionCode, versionName, codePath, firstInstallTime, updateTime, pkgHash,
+                    installer, targetSdk, flags != null ? flags : pkgFlags);
+        }
+
+        private static String firstToken(String line, int start) {
+            int end = start;
+            while (end < line.length() && line.charAt(end) > ' ') {
+                end++;
+            }
+            return end > start ? line.substring(start, end) : null;
+        }
+
+        private static String timestamp(String line) {
+            Matcher matcher = TIMESTAMP.matcher(line);
+            return matcher.find() ? matcher.group() : null;
+        }
+
+        private static List<String> flagList(String line, int start) {
+            int end = line.indexOf(']', start);
+            List<String> list = new ArrayList<>();
+            for (String flag : line.substring(start, end < 0 ? line.length() : end).trim().split("\\s+")) {
+                if (!flag.isEmpty()) {
+                    list.add(flag);
+                }
+            }
+            return Collections.unmodifiableList(list);
+        }
     }
 
     public static class PackageInfo {
@@ -54,8 +220,28 @@ public class DumpsysPackageParser {
         public final String firstInstallTime;
         public final String updateTime;
         public final String pkgHash;
+        /**
+         * package name of the app store or tool which installed the app, null if unknown or installed with adb
+         */
+        public final String installer;
+        public final int targetSdk;
+        /**
+         * application flags like 'DEBUGGABLE', 'SYSTEM' or 'HAS_CODE'
+         */
+        public final List<String> flags;
 
         public PackageInfo(String packageName, int versionCode, String versionName, String codePath, String firstInstallTime, String updateTime, String pkgHash) {
+            this(packageName, versionCode, versionName, codePath, firstInstallTime, updateTime, pkgHash, null, UNKNOWN, null);
+        }
+
+        /**
+         * installer, targetSdk and flags are additional details and not part of {@link #equals(Object)}
+         */
+        public PackageInfo(String packageName, int versionCode, String versionName, String codePath, String firstInstallTime, String updateTime, String pkgHash,
+                           String installer, int targetSdk, List<String> flags) {
+            this.installer = installer;
+            this.targetSdk = targetSdk;
+            this.flags = flags != null ? flags : Collections.<String>emptyList();
             this.packageName = packageName;
             this.versionCode = versionCode;
             this.versionName = versionName;
@@ -105,6 +291,9 @@ public class DumpsysPackageParser {
                     ", firstInstallTime='" + firstInstallTime + '\'' +
                     ", updateTime='" + updateTime + '\'' +
                     ", pkgHash='" + pkgHash + '\'' +
+                    ", installer='" + installer + '\'' +
+                    ", targetSdk=" + targetSdk +
+                    ", flags=" + flags +
                     '}';
         }
     }
@@ -0,0 +1,61 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+package at.favre.tools.uberadb.parser;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses the output of 'adb shell getprop' with lines like '[ro.build.version.sdk]: [28]'. Values spanning
+ * multiple lines are joined with '\n'.
+ */
+public class GetPropParser {
+    private static final String SEPARATOR = "]: [";
+
+    public Map<String, String> parse(String getPropOutput) {
+        Map<String, String> properties = new HashMap<>();
+        String key = null;
+        StringBuilder value = null;
+
+        for (String line : getPropOutput.split("\\r?\\n")) {
+            if (key != null) {
+                if (line.endsWith("]")) {
+                    properties.put(key, value.append('\n').append(line, 0, line.length() - 1).toString());
+                    key = null;
+                } else {
+                    value.append('\n').append(line);
+                }
+                continue;
+            }
+
+            int separator = line.indexOf(SEPARATOR);
+            if (!line.startsWith("[") || separator < 0) {
+                continue;
+            }
+
+            String rest = line.substring(separator + SEPARATOR.length());
+            if (rest.endsWith("]")) {
+                properties.put(line.substring(1, separator), rest.substring(0, rest.length() - 1));
+            } else {
+                key = line.substring(1, separator);
+                value = new StringBuilder(rest);
+            }
+        }
+        return properties;
+    }
+}
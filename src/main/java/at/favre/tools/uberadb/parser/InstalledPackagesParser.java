@@ -18,27 +18,128 @@
 
 package at.favre.tools.uberadb.parser;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Parses the output of 'pm list packages -f' with lines like 'package:/data/app/com.example-1/base.apk=com.example'.
+ * The output is scanned once without splitting it into lines; only the package names (and paths if requested)
+ * are copied.
+ */
 public class InstalledPackagesParser {
+    private static final String PACKAGE_PREFIX = "package:";
+
+    public List<String> parse(CharSequence shellOutput) {
+        final List<String> packages = new ArrayList<>();
+        if (shellOutput != null) {
+            scan(shellOutput, new PackageLineSink() {
+                @Override
+                public void accept(CharSequence output, int pathStart, int pathEnd, int nameStart, int nameEnd) {
+                    packages.add(output.subSequence(nameStart, nameEnd).toString());
+                }
+            });
+        }
+        return packages;
+    }
 
-    public List<String> parse(String shellOutput) {
-        List<String> packages = new ArrayList<>();
+    /**
+     * Same as {@link #parse(CharSequence)} but reads the raw command output without decoding all of it
+     *
+     * @param rawOutput UTF-8 encoded output, position and limit are not changed
+     */
+    public List<String> parse(ByteBuffer rawOutput) {
+        return parse(new Latin1CharSequence(rawOutput));
+    }
 
-        if (shellOutput != null && !shellOutput.isEmpty()) {
-            for (String line : shellOutput.split("\\n")) {
-                if (line != null) {
-                    String parsedPackage = parsePackage(line);
-                    if (parsedPackage != null) {
-                        packages.add(parsePackage(line));
-                    }
+    /**
+     * @return package names mapped to the path of their base apk, in the order of the output
+     */
+    public Map<String, String> parseApkPaths(CharSequence shellOutput) {
+        final Map<String, String> apkPaths = new LinkedHashMap<>();
+        if (shellOutput != null) {
+            scan(shellOutput, new PackageLineSink() {
+                @Override
+                public void accept(CharSequence output, int pathStart, int pathEnd, int nameStart, int nameEnd) {
+                    String path = output instanceof Latin1CharSequence
+                            ? ((Latin1CharSequence) output).decodeUtf8(pathStart, pathEnd)
+                            : output.subSequence(pathStart, pathEnd).toString();
+                    apkPaths.put(output.subSequence(nameStart, nameEnd).toString(), path);
+                }
+            });
+        }
+        return apkPaths;
+    }
+
+    /**
+     * @see #parseApkPaths(CharSequence)
+     */
+    public Map<String, String> parseApkPaths(ByteBuffer rawOutput) {
+        return parseApkPaths(new Latin1CharSequence(rawOutput));
+    }
+
+    /**
+     * Finds path and package name of every line in a single pass. Blank lines are skipped, names without a dot are
+     * ignored like before.
+     *
+     * @throws IllegalArgumentException if a line has no '='
+     */
+    private static void scan(CharSequence output, PackageLineSink sink) {
+        int length = output.length();
+        int lineStart = 0;
+
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            int lastEquals = -1;
+            boolean nameHasDot = false;
+            for (; lineEnd < length; lineEnd++) {
+                char c = output.charAt(lineEnd);
+                if (c == '\n') {
+                    break;
+                } else if (c == '=') {
+                    lastEquals = lineEnd;
+                    nameHasDot = false;
+                } else if (c == '.') {
+                    nameHasDot = true;
+                }
+            }
+
+            int start = lineStart;
+            int end = lineEnd;
+            while (end > start && output.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            while (start < end && output.charAt(start) <= ' ') {
+                start++;
+            }
+
+            if (start < end) {
+                if (lastEquals < 0) {
+                    throw new IllegalArgumentException("unexpected installed app syntax: " + output.subSequence(start, end) + " expect to have one '='");
+                }
+                if (nameHasDot) {
+                    sink.accept(output, startsWith(output, start, PACKAGE_PREFIX) ? start + PACKAGE_PREFIX.length() : start, lastEquals, lastEquals + 1, end);
                 }
             }
+            lineStart = lineEnd + 1;
         }
-        return packages;
+    }
+
+    private static boolean startsWith(CharSequence output, int offset, String prefix) {
+        if (output.length() - offset < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (output.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     static String parsePackage(String line) {
@@ -56,6 +157,54 @@ public class InstalledPackagesParser {
         throw new IllegalArgumentException("unexpected installed app syntax: " + line + " expect to have one '='");
     }
 
+    private interface PackageLineSink {
+        void accept(CharSequence output, int pathStart, int pathEnd, int nameStart, int nameEnd);
+    }
+
+    /**
+     * Bytes read as ISO-8859-1 chars. Package names are ASCII, so they are the same as with UTF-8 and can be
+     * copied without a decoder; paths are decoded as UTF-8.
+     */
+    private static final class Latin1CharSequence implements CharSequence {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+
+        Latin1CharSequence(ByteBuffer buffer) {
+            this(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+
+        private Latin1CharSequence(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[offset + index] & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(bytes, offset + start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        String decodeUtf8(int start, int end) {
+            return new String(bytes, offset + start, end - start, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
     public static boolean wasSuccessfulUninstalled(String cmdOut) {
         return cmdOut != null && cmdOut.toLowerCase().trim().startsWith("success");
     }
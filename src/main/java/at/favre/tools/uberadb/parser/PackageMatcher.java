@@ -18,10 +18,24 @@
 
 package at.favre.tools.uberadb.parser;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+/**
+ * Finds packages matching filters with '*' wildcards, e.g. 'com.android.*' or 'com.*.test'. A filter has to match
+ * the whole package name. Filters starting with '!' exclude packages matched by the other filters, e.g.
+ * 'com.example.* !com.example.test*'; exclusions alone match nothing.
+ * <p>
+ * Every filter is compiled once. The packages are sorted, so a filter only has to look at the range of packages
+ * starting with its literal prefix (the part before the first '*').
+ */
 public class PackageMatcher {
-    private List<String> packages;
+    private static final char EXCLUDE = '!';
+    private static final char WILDCARD = '*';
+
+    private final List<String> packages;
+    private String[] sortedPackages;
 
     public PackageMatcher(List<String> packages) {
         this.packages = packages;
@@ -34,32 +48,167 @@ public class PackageMatcher {
         throw new IllegalArgumentException("unexpected arg: " + arg);
     }
 
+    /**
+     * @return the matching packages, sorted and without duplicates
+     */
     public List<String> findMatches(String... moreFilters) {
-        Set<String> matchedPackages = new HashSet<>();
+        List<Filter> includes = new ArrayList<>();
+        List<Filter> excludes = new ArrayList<>();
+        if (moreFilters != null) {
+            for (String filter : moreFilters) {
+                Filter compiled = Filter.compile(filter);
+                if (compiled != null) {
+                    (compiled.exclude ? excludes : includes).add(compiled);
+                }
+            }
+        }
 
-        List<String> filters = new ArrayList<>();
-        if (moreFilters != null && moreFilters.length > 0) {
-            filters.addAll(Arrays.asList(moreFilters));
+        List<String> list = new ArrayList<>();
+        if (includes.isEmpty()) {
+            return list;
         }
 
-        for (String aPackage : packages) {
-            for (String filter : filters) {
-                if (match(filter, aPackage)) {
-                    matchedPackages.add(aPackage);
+        String[] sorted = getSortedPackages();
+        boolean[] matched = new boolean[sorted.length];
+        for (Filter include : includes) {
+            int end = include.prefix.isEmpty() ? sorted.length : endOfPrefixRange(sorted, include.prefix);
+            for (int i = startOfPrefixRange(sorted, include.prefix); i < end; i++) {
+                if (!matched[i] && include.matches(sorted[i])) {
+                    matched[i] = true;
                 }
             }
         }
-        List<String> list = new ArrayList<>(matchedPackages);
-        Collections.sort(list);
+
+        for (int i = 0; i < sorted.length; i++) {
+            if (matched[i] && (list.isEmpty() || !list.get(list.size() - 1).equals(sorted[i])) && !isExcluded(excludes, sorted[i])) {
+                list.add(sorted[i]);
+            }
+        }
         return list;
     }
 
+    private String[] getSortedPackages() {
+        if (sortedPackages == null) {
+            sortedPackages = packages.toArray(new String[packages.size()]);
+            Arrays.sort(sortedPackages);
+        }
+        return sortedPackages;
+    }
+
+    private static boolean isExcluded(List<Filter> excludes, String aPackage) {
+        for (Filter exclude : excludes) {
+            if (exclude.matches(aPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return index of the first package greater or equal the prefix
+     */
+    static int startOfPrefixRange(String[] sorted, String prefix) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return index after the last package starting with the (non empty) prefix
+     */
+    static int endOfPrefixRange(String[] sorted, String prefix) {
+        // all strings starting with the prefix are smaller than the prefix with its last char incremented
+        char last = prefix.charAt(prefix.length() - 1);
+        if (last == Character.MAX_VALUE) {
+            return sorted.length;
+        }
+        return startOfPrefixRange(sorted, prefix.substring(0, prefix.length() - 1) + (char) (last + 1));
+    }
+
     static boolean match(String filter, String aPackage) {
-        if (filter == null || filter.isEmpty()) {
-            return false;
-        } else {
-            String escapedFilterString = "^" + filter.replace(".", "\\Q.\\E").replace("*", ".*");
-            return aPackage.matches(escapedFilterString);
+        Filter compiled = Filter.compile(filter);
+        return compiled != null && compiled.matches(aPackage);
+    }
+
+    /**
+     * A compiled filter: the literal parts between the wildcards. The first part has to be the prefix, the last one
+     * the suffix and the parts in between are searched from left to right, which is enough for '*' as the only
+     * wildcard.
+     */
+    static final class Filter {
+        final boolean exclude;
+        final String prefix;
+        private final String suffix;
+        private final String[] innerParts;
+        private final int minLength;
+
+        private Filter(boolean exclude, String prefix, String suffix, String[] innerParts, int minLength) {
+            this.exclude = exclude;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.innerParts = innerParts;
+            this.minLength = minLength;
+        }
+
+        /**
+         * @return the compiled filter or null if it is null or empty
+         */
+        static Filter compile(String filter) {
+            if (filter == null || filter.isEmpty()) {
+                return null;
+            }
+
+            boolean exclude = filter.charAt(0) == EXCLUDE;
+            String pattern = exclude ? filter.substring(1) : filter;
+            if (pattern.isEmpty()) {
+                return null;
+            }
+
+            int firstWildcard = pattern.indexOf(WILDCARD);
+            if (firstWildcard < 0) {
+                return new Filter(exclude, pattern, null, new String[0], pattern.length());
+            }
+
+            int lastWildcard = pattern.lastIndexOf(WILDCARD);
+            String prefix = pattern.substring(0, firstWildcard);
+            String suffix = pattern.substring(lastWildcard + 1);
+            List<String> innerParts = new ArrayList<>();
+            int minLength = prefix.length() + suffix.length();
+            for (String part : pattern.substring(firstWildcard + 1, lastWildcard + 1).split("\\*")) {
+                if (!part.isEmpty()) {
+                    innerParts.add(part);
+                    minLength += part.length();
+                }
+            }
+            return new Filter(exclude, prefix, suffix, innerParts.toArray(new String[innerParts.size()]), minLength);
+        }
+
+        boolean matches(String aPackage) {
+            if (suffix == null) {
+                return aPackage.equals(prefix);
+            }
+            if (aPackage.length() < minLength || !aPackage.startsWith(prefix) || !aPackage.endsWith(suffix)) {
+                return false;
+            }
+
+            int position = prefix.length();
+            int end = aPackage.length() - suffix.length();
+            for (String part : innerParts) {
+                int index = aPackage.indexOf(part, position);
+                if (index < 0 || index + part.length() > end) {
+                    return false;
+                }
+                position = index + part.length();
+            }
+            return true;
         }
     }
 }
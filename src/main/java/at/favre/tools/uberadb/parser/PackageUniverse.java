@@ -0,0 +1,141 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+package at.favre.tools.uberadb.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All package names seen on the devices of a run. Every distinct name is stored once and gets an id; the packages
+ * of a device are a {@link PackageSet} bit set of these ids. Package filters are matched once against all known
+ * names (and later only against names added since) instead of once per device, a device's matches are the
+ * intersection of both bit sets.
+ * <p>
+ * This class is thread safe.
+ */
+public final class PackageUniverse {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private final Map<List<String>, FilterMatches> filterMatches = new HashMap<>();
+
+    /**
+     * @param packages package names, e.g. parsed by {@link InstalledPackagesParser}; duplicates are ignored
+     * @return the set of the packages, sharing the names with all other sets of this universe
+     */
+    public synchronized PackageSet add(List<String> packages) {
+        BitSet bits = new BitSet(names.size() + packages.size());
+        for (String packageName : packages) {
+            Integer id = ids.get(packageName);
+            if (id == null) {
+                id = names.size();
+                ids.put(packageName, id);
+                names.add(packageName);
+            }
+            bits.set(id);
+        }
+        return new PackageSet(this, bits);
+    }
+
+    /**
+     * @return number of distinct packages
+     */
+    public synchronized int size() {
+        return names.size();
+    }
+
+    /**
+     * @return the ids of all known packages matching the filters, see {@link PackageMatcher}
+     */
+    synchronized BitSet match(String... filters) {
+        List<String> key = filters != null ? Arrays.asList(filters) : Collections.<String>emptyList();
+        FilterMatches matches = filterMatches.get(key);
+        if (matches == null) {
+            matches = new FilterMatches();
+            filterMatches.put(key, matches);
+        }
+
+        if (matches.matchedCount < names.size()) {
+            List<String> newNames = names.subList(matches.matchedCount, names.size());
+            for (String matched : new PackageMatcher(newNames).findMatches(filters)) {
+                matches.ids.set(ids.get(matched));
+            }
+            matches.matchedCount = names.size();
+        }
+        return (BitSet) matches.ids.clone();
+    }
+
+    /**
+     * @return the names of the ids, sorted
+     */
+    synchronized List<String> names(BitSet bits) {
+        List<String> list = new ArrayList<>(bits.cardinality());
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            list.add(names.get(id));
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    private static final class FilterMatches {
+        private final BitSet ids = new BitSet();
+        /**
+         * the names with an id below this are already matched
+         */
+        private int matchedCount;
+    }
+
+    /**
+     * The installed packages of a single device
+     */
+    public static final class PackageSet {
+        private final PackageUniverse universe;
+        private final BitSet bits;
+
+        private PackageSet(PackageUniverse universe, BitSet bits) {
+            this.universe = universe;
+            this.bits = bits;
+        }
+
+        /**
+         * Same result as {@link PackageMatcher#findMatches(String...)} on the packages of this set
+         *
+         * @return the matching packages, sorted
+         */
+        public List<String> findMatches(String... filters) {
+            BitSet matches = universe.match(filters);
+            matches.and(bits);
+            return universe.names(matches);
+        }
+
+        /**
+         * @return all packages, sorted
+         */
+        public List<String> toList() {
+            return universe.names(bits);
+        }
+
+        public int size() {
+            return bits.cardinality();
+        }
+    }
+}
@@ -32,7 +32,16 @@ public class Arg {
     public String device;
     public String[] reportFilterIntent;
     public String[] dumpsysServices;
+    public String[] cmdTimeouts;
+    public String[] adbServers;
+    public String metricsFile;
+    public String traceFile;
+    public String select;
+    public String shard;
     public int delayStartActivitySec;
+    public int parallel = 0;
+    public int expectDevices = 0;
+    public int deviceConcurrency = 0;
 
     public boolean dryRun = false;
     public boolean skipEmulators = false;
@@ -43,6 +52,7 @@ public class Arg {
     public boolean grantPermissions = false;
     public boolean simpleBugReport = false;
     public boolean waitForDevice = false;
+    public boolean shellSession = false;
 
     public Mode mode;
     //CHECKSTYLE:ON
@@ -86,14 +96,25 @@ public class Arg {
         if (grantPermissions != arg.grantPermissions) return false;
         if (simpleBugReport != arg.simpleBugReport) return false;
         if (waitForDevice != arg.waitForDevice) return false;
+        if (shellSession != arg.shellSession) return false;
+        if (parallel != arg.parallel) return false;
+        if (expectDevices != arg.expectDevices) return false;
+        if (deviceConcurrency != arg.deviceConcurrency) return false;
         // Probably incorrect - comparing Object[] arrays with Arrays.equals
         if (!Arrays.equals(mainArgument, arg.mainArgument)) return false;
         if (adbPath != null ? !adbPath.equals(arg.adbPath) : arg.adbPath != null) return false;
         if (device != null ? !device.equals(arg.device) : arg.device != null) return false;
+        if (metricsFile != null ? !metricsFile.equals(arg.metricsFile) : arg.metricsFile != null) return false;
+        if (traceFile != null ? !traceFile.equals(arg.traceFile) : arg.traceFile != null) return false;
+        if (select != null ? !select.equals(arg.select) : arg.select != null) return false;
+        if (shard != null ? !shard.equals(arg.shard) : arg.shard != null) return false;
         // Probably incorrect - comparing Object[] arrays with Arrays.equals
         if (!Arrays.equals(reportFilterIntent, arg.reportFilterIntent)) return false;
         // Probably incorrect - comparing Object[] arrays with Arrays.equals
+        if (!Arrays.equals(adbServers, arg.adbServers)) return false;
+        // Probably incorrect - comparing Object[] arrays with Arrays.equals
         if (!Arrays.equals(dumpsysServices, arg.dumpsysServices)) return false;
+        if (!Arrays.equals(cmdTimeouts, arg.cmdTimeouts)) return false;
         return mode == arg.mode;
 
     }
@@ -103,8 +124,14 @@ public class Arg {
         int result = Arrays.hashCode(mainArgument);
         result = 31 * result + (adbPath != null ? adbPath.hashCode() : 0);
         result = 31 * result + (device != null ? device.hashCode() : 0);
+        result = 31 * result + (metricsFile != null ? metricsFile.hashCode() : 0);
+        result = 31 * result + (traceFile != null ? traceFile.hashCode() : 0);
+        result = 31 * result + (select != null ? select.hashCode() : 0);
+        result = 31 * result + (shard != null ? shard.hashCode() : 0);
         result = 31 * result + Arrays.hashCode(reportFilterIntent);
         result = 31 * result + Arrays.hashCode(dumpsysServices);
+        result = 31 * result + Arrays.hashCode(cmdTimeouts);
+        result = 31 * result + Arrays.hashCode(adbServers);
         result = 31 * result + (dryRun ? 1 : 0);
         result = 31 * result + (skipEmulators ? 1 : 0);
         result = 31 * result + (keepData ? 1 : 0);
@@ -114,6 +141,10 @@ public class Arg {
         result = 31 * result + (grantPermissions ? 1 : 0);
         result = 31 * result + (simpleBugReport ? 1 : 0);
         result = 31 * result + (waitForDevice ? 1 : 0);
+        result = 31 * result + (shellSession ? 1 : 0);
+        result = 31 * result + parallel;
+        result = 31 * result + expectDevices;
+        result = 31 * result + deviceConcurrency;
         result = 31 * result + (mode != null ? mode.hashCode() : 0);
         return result;
     }
@@ -124,8 +155,14 @@ public class Arg {
                 "mainArgument=" + Arrays.toString(mainArgument) +
                 ", adbPath='" + adbPath + '\'' +
                 ", device='" + device + '\'' +
+                ", metricsFile='" + metricsFile + '\'' +
+                ", traceFile='" + traceFile + '\'' +
+                ", select='" + select + '\'' +
+                ", shard='" + shard + '\'' +
                 ", reportFilterIntent=" + Arrays.toString(reportFilterIntent) +
                 ", dumpsysServices=" + Arrays.toString(dumpsysServices) +
+                ", cmdTimeouts=" + Arrays.toString(cmdTimeouts) +
+                ", adbServers=" + Arrays.toString(adbServers) +
                 ", dryRun=" + dryRun +
                 ", skipEmulators=" + skipEmulators +
                 ", keepData=" + keepData +
@@ -135,6 +172,10 @@ public class Arg {
                 ", grantPermissions=" + grantPermissions +
                 ", simpleBugReport=" + simpleBugReport +
                 ", waitForDevice=" + waitForDevice +
+                ", shellSession=" + shellSession +
+                ", parallel=" + parallel +
+                ", expectDevices=" + expectDevices +
+                ", deviceConcurrency=" + deviceConcurrency +
                 ", mode=" + mode +
                 '}';
     }
@@ -18,6 +18,9 @@
 
 package at.favre.tools.uberadb.ui;
 
+import at.favre.tools.uberadb.AdbServerAddress;
+import at.favre.tools.uberadb.CmdTimeouts;
+import at.favre.tools.uberadb.DeviceSelector;
 import at.favre.tools.uberadb.util.CmdUtil;
 import at.favre.tools.uberadb.util.MiscUtil;
 import org.apache.commons.cli.*;
@@ -123,6 +126,51 @@ public final class CLIParser {
                 argument.dumpsysServices = commandLine.getOptionValues("dumpsysServices");
             }
 
+            if (commandLine.hasOption("metrics")) {
+                argument.metricsFile = commandLine.getOptionValue("metrics");
+            }
+
+            if (commandLine.hasOption("trace")) {
+                argument.traceFile = commandLine.getOptionValue("trace");
+            }
+
+            if (commandLine.hasOption("timeout")) {
+                argument.cmdTimeouts = commandLine.getOptionValues("timeout");
+                CmdTimeouts.parse(argument.cmdTimeouts);
+            }
+
+            if (commandLine.hasOption("select") || commandLine.hasOption("shard")) {
+                argument.select = commandLine.getOptionValue("select");
+                argument.shard = commandLine.getOptionValue("shard");
+                DeviceSelector.parse(null, argument.select, argument.shard);
+            }
+
+            if (commandLine.hasOption("adbServer")) {
+                argument.adbServers = commandLine.getOptionValues("adbServer");
+                AdbServerAddress.parse(argument.adbServers);
+            }
+
+            if (commandLine.hasOption("parallel")) {
+                argument.parallel = Integer.parseInt(commandLine.getOptionValue("parallel"));
+                if (argument.parallel <= 0) {
+                    throw new IllegalArgumentException("Parallel device count must be at least 1 (found " + argument.parallel + ")");
+                }
+            }
+
+            if (commandLine.hasOption("expectDevices")) {
+                argument.expectDevices = Integer.parseInt(commandLine.getOptionValue("expectDevices"));
+                if (argument.expectDevices <= 0) {
+                    throw new IllegalArgumentException("Expected device count must be at least 1 (found " + argument.expectDevices + ")");
+                }
+            }
+
+            if (commandLine.hasOption("deviceConcurrency")) {
+                argument.deviceConcurrency = Integer.parseInt(commandLine.getOptionValue("deviceConcurrency"));
+                if (argument.deviceConcurrency <= 0) {
+                    throw new IllegalArgumentException("Device concurrency must be at least 1 (found " + argument.deviceConcurrency + ")");
+                }
+            }
+
             argument.dryRun = commandLine.hasOption("dryRun");
             argument.skipEmulators = commandLine.hasOption("skipEmulators");
             argument.keepData = commandLine.hasOption("keepData") || commandLine.hasOption("upgrade");
@@ -132,6 +180,7 @@ public final class CLIParser {
             argument.grantPermissions = commandLine.hasOption("grant");
             argument.simpleBugReport = commandLine.hasOption("simpleBugreport");
             argument.waitForDevice = commandLine.hasOption("waitForDevice");
+            argument.shellSession = commandLine.hasOption("shellSession");
 
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -152,7 +201,8 @@ public final class CLIParser {
                 " a specfic device is selected). It is possible to pass multiple files/folders as arguments e.g. '/apks apk1.apk apk2.apk'").hasArgs().build();
         Option mainUninstall = Option.builder(ARG_UNINSTALL).longOpt("uninstall").argName("package filter").hasArgs().desc("Filter" +
                 " string that has to be a package name or part of it containing wildcards '*' for uninstalling. Can be multiple filter" +
-                " Strings space separated. Example: 'com.android.*' or 'com.android.* com.google.*'.").build();
+                " Strings space separated. Example: 'com.android.*' or 'com.android.* com.google.*'. Filters starting with '!' exclude" +
+                " packages, e.g. 'com.android.* !com.android.test*'.").build();
         Option mainBugReport = Option.builder(ARG_BUGREPORT).longOpt("bugreport").argName("out folder").hasArg().optionalArg(true).desc("Creates" +
                 " a generic bug report (including eg. logcat and screenshot) from all connected devices and zips it to the folder given as arg." +
                 " If no folder is given tries to zips it in the location of the .jar.").build();
@@ -195,6 +245,31 @@ public final class CLIParser {
         Option grantOpt = Option.builder().longOpt("grant").hasArg(false).desc("Only for install: will grant all permissions set in the apk automatically.").build();
         Option simpleBugreportOpt = Option.builder().longOpt("simpleBugreport").hasArg(false).desc("Only for bugreport: report will only contain the most essential data").build();
         Option waitForDeviceOpt = Option.builder().longOpt("waitForDevice").hasArg(false).desc("If set, will wait until a device is connected and debug mode is enabled.").build();
+        Option parallelOpt = Option.builder().longOpt("parallel").argName("device count").hasArg(true).desc("Number of devices processed at the " +
+                "same time. Default is all ready devices at once.").build();
+        Option expectDevicesOpt = Option.builder().longOpt("expectDevices").argName("device count").hasArg(true).desc("Watch mode: processes " +
+                "every device as soon as it is ready, without prompt, until this many devices are done. Limit the wait with '--timeout wait=<seconds>'; " +
+                "devices that did not show up count as failures.").build();
+        Option deviceConcurrencyOpt = Option.builder().longOpt("deviceConcurrency").argName("command count").hasArg(true).desc("Max number " +
+                "of adb commands running on a single device at once; lowered automatically for devices that get slow or time out. " +
+                "Default is no limit.").build();
+        Option timeoutOpt = Option.builder().longOpt("timeout").argName("type=seconds").hasArgs().desc("Overrides the time after which a " +
+                "single adb command is aborted. Types are install, dumpsys, shell, wait and other; 0 disables the timeout. Example: " +
+                "'install=300 dumpsys=30'.").build();
+        Option selectOpt = Option.builder().longOpt("select").argName("conditions").hasArg(true).desc("Only uses devices matching all " +
+                "comma separated conditions on serial, model, product, server, emulator, sdk, abi or any device property. Operators are =, != " +
+                "(with '*' wildcards) and >, >=, <, <=. Example: 'model=Pixel*,sdk>=29,abi=arm64*'.").build();
+        Option shardOpt = Option.builder().longOpt("shard").argName("index/count").hasArg(true).desc("Splits the devices into this many " +
+                "shards by serial and only uses one of them, e.g. '3/8'. A device always stays in the same shard, independent of other devices.").build();
+        Option adbServerOpt = Option.builder().longOpt("adbServer").argName("host:port").hasArg(true).desc("Uses the adb server at this " +
+                "address instead of the local one; can be given multiple times. Devices are discovered on all servers and every device is " +
+                "handled by the server it is attached to.").build();
+        Option shellSessionOpt = Option.builder().longOpt("shellSession").hasArg(false).desc("Keeps one adb shell per device open and runs all " +
+                "shell commands through it instead of starting adb for every command. Speeds up actions on many packages.").build();
+        Option metricsOpt = Option.builder().longOpt("metrics").argName("file").hasArg(true).desc("Writes duration percentiles, counts and " +
+                "output size of all adb commands by command type and device to this JSON file and in Prometheus text format to a '.prom' file next to it.").build();
+        Option traceOpt = Option.builder().longOpt("trace").argName("file.json").hasArg(true).desc("Records all adb commands and action " +
+                "phases per device to this file in Chrome Trace Event format. Open it with chrome://tracing or https://ui.perfetto.dev.").build();
         Option help = Option.builder("h").longOpt("help").desc("Prints docs").build();
         Option version = Option.builder("v").longOpt("version").desc("Prints current version.").build();
 
@@ -206,7 +281,8 @@ public final class CLIParser {
 
         options.addOption(adbPathOpt).addOption(deviceOpt).addOption(dryRunOpt).addOption(skipEmuOpt).addOption(keepDataOpt)
                 .addOption(quietOpt).addOption(debugOpt).addOption(forceOpt).addOption(upgradeOpt).addOption(reportFilter)
-                .addOption(grantOpt).addOption(simpleBugreportOpt).addOption(dumpsysOpt).addOption(waitForDeviceOpt).addOption(mainStartActivityData);
+                .addOption(grantOpt).addOption(simpleBugreportOpt).addOption(dumpsysOpt).addOption(waitForDeviceOpt).addOption(mainStartActivityData)
+                .addOption(parallelOpt).addOption(expectDevicesOpt).addOption(deviceConcurrencyOpt).addOption(timeoutOpt).addOption(adbServerOpt).addOption(selectOpt).addOption(shardOpt).addOption(shellSessionOpt).addOption(metricsOpt).addOption(traceOpt);
 
         return options;
     }
@@ -0,0 +1,218 @@
+/*
+ *
+ *  *  Copyright 2016 Patrick Favre-Bulle
+ *  *
+ *  *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  *  you may not use this file except in compliance with the License.
+ *  *  You may obtain a copy of the License at
+ *  *
+ *  *      http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  *  Unless required by applicable law or agreed to in writing, software
+ *  *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  *  See the License for the specific language governing permissions and
+ *  *  limitations under the License.
+ *
+ */
+package at.favre.tools.uberadb.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SHA-256 checksums of local files, e.g. the apks to install. Every file is hashed at most once per run, even if
+ * many devices ask for it at the same time, and different files are hashed in parallel. Checksums are also kept in
+ * a small per user file keyed by canonical path, size and last modified time, so unchanged files are not read again
+ * in later runs. New checksums are written to this file once at the end of the run with {@link #save()}.
+ */
+public final class ChecksumCache {
+    private static final String ALGORITHM = "SHA-256";
+    private static final String COMMENTS = "uber-adb-tools checksum cache (path=size:lastModified:sha256)";
+
+    private static final ExecutorService HASH_EXECUTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "checksum-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File cacheFile;
+    private final ConcurrentMap<String, CompletableFuture<String>> checksums = new ConcurrentHashMap<>();
+    private final AtomicInteger hashedCount = new AtomicInteger();
+    private final Properties added = new Properties();
+    private Properties persisted;
+
+    /**
+     * @param cacheFile file to keep the checksums between runs or null to only remember them in memory
+     */
+    public ChecksumCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    public static File defaultCacheFile() {
+        return new File(new File(System.getProperty("user.home"), ".uber-adb-tools"), "checksums.properties");
+    }
+
+    /**
+     * @return the SHA-256 checksum of the file as hex string
+     * @throws IllegalStateException if the file can not be read
+     */
+    public String checksum(File file) {
+        try {
+            return checksumAsync(file).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IllegalStateException) {
+                throw (IllegalStateException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Starts hashing all given files in parallel, results are returned by {@link #checksum(File)} later
+     */
+    public void prefetch(List<File> files) {
+        for (File file : files) {
+            checksumAsync(file);
+        }
+    }
+
+    /**
+     * @return future completing with the SHA-256 checksum, exceptionally with an {@link IllegalStateException} if the
+     * file can not be read
+     */
+    public CompletableFuture<String> checksumAsync(final File file) {
+        final String key;
+        final String version;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            key = file.getCanonicalPath();
+            version = attributes.size() + ":" + attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("could not create checksum for " + file + ": " + e.getMessage(), e));
+            return failed;
+        }
+
+        final String memoryKey = key + "@" + version;
+        CompletableFuture<String> future = checksums.get(memoryKey);
+        if (future == null) {
+            CompletableFuture<String> newFuture = new CompletableFuture<>();
+            future = checksums.putIfAbsent(memoryKey, newFuture);
+            if (future == null) {
+                future = newFuture;
+                String cached = readPersisted(key, version);
+                if (cached != null) {
+                    newFuture.complete(cached);
+                } else {
+                    hash(file, key, version, memoryKey, newFuture);
+                }
+            }
+        }
+        return future;
+    }
+
+    /**
+     * @return number of files actually read (not answered from memory or the cache file)
+     */
+    public int getHashedCount() {
+        return hashedCount.get();
+    }
+
+    private void hash(final File file, final String key, final String version, final String memoryKey, final CompletableFuture<String> future) {
+        HASH_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String checksum = FileUtil.createChecksum(file, ALGORITHM);
+                    hashedCount.incrementAndGet();
+                    addPersisted(key, version, checksum);
+                    future.complete(checksum);
+                } catch (IllegalStateException e) {
+                    // do not remember the error, the next call tries again
+                    checksums.remove(memoryKey, future);
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    private synchronized String readPersisted(String key, String version) {
+        String value = loadPersisted().getProperty(key);
+        if (value != null && value.startsWith(version + ":")) {
+            return value.substring(version.length() + 1);
+        }
+        return null;
+    }
+
+    private synchronized void addPersisted(String key, String version, String checksum) {
+        loadPersisted().setProperty(key, version + ":" + checksum);
+        added.setProperty(key, version + ":" + checksum);
+    }
+
+    /**
+     * Writes the checksums created in this run to the cache file, merged with the entries other runs may have
+     * written in the meantime. Does nothing if no file was hashed.
+     */
+    public synchronized void save() {
+        if (cacheFile == null || added.isEmpty()) {
+            return;
+        }
+
+        try {
+            Properties properties = new Properties();
+            if (cacheFile.isFile()) {
+                try (InputStream in = Files.newInputStream(cacheFile.toPath())) {
+                    properties.load(in);
+                } catch (IllegalArgumentException e) {
+                    // corrupt, start from scratch
+                }
+            }
+            properties.putAll(added);
+
+            // forget files which are gone, so the cache does not grow forever
+            for (String path : properties.stringPropertyNames()) {
+                if (!new File(path).isFile()) {
+                    properties.remove(path);
+                }
+            }
+
+            FileUtil.storeAtomically(properties, COMMENTS, cacheFile);
+            added.clear();
+        } catch (IOException | RuntimeException e) {
+            // the cache is only an optimization
+        }
+    }
+
+    private Properties loadPersisted() {
+        if (persisted == null) {
+            persisted = new Properties();
+            if (cacheFile != null && cacheFile.isFile()) {
+                try (InputStream in = Files.newInputStream(cacheFile.toPath())) {
+                    persisted.load(in);
+                } catch (IOException | IllegalArgumentException e) {
+                    persisted = new Properties();
+                }
+            }
+        }
+        return persisted;
+    }
+}
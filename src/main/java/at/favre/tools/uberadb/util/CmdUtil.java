@@ -19,10 +19,11 @@
 package at.favre.tools.uberadb.util;
 
 import at.favre.tools.uberadb.AdbTool;
-import at.favre.tools.uberadb.CmdProvider;
 
-import java.io.File;
-import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public final class CmdUtil {
@@ -36,34 +37,15 @@ public final class CmdUtil {
         return result;
     }
 
-    public static File checkAndGetFromPATHEnvVar(CmdProvider provider, final String matchesExecutable) {
-        String pathEnv = System.getenv("PATH");
-        if (pathEnv != null) {
-            String[] pathParts = pathEnv.split(File.pathSeparator);
-            for (String pathPart : pathParts) {
-                File pathFile = new File(pathPart);
-
-                if (pathFile.isFile() && pathFile.getName().toLowerCase().contains(matchesExecutable)) {
-                    return pathFile;
-                } else if (pathFile.isDirectory()) {
-                    File[] matchedFiles = pathFile.listFiles(new FileFilter() {
-                        @Override
-                        public boolean accept(File pathname) {
-                            return FileUtil.getFileNameWithoutExtension(pathname).toLowerCase().equals(matchesExecutable);
-                        }
-                    });
-
-                    if (matchedFiles != null) {
-                        for (File matchedFile : matchedFiles) {
-                            if (provider.canRunCmd(new String[]{matchedFile.getAbsolutePath()})) {
-                                return matchedFile;
-                            }
-                        }
-                    }
-                }
-            }
+    /**
+     * @return file extensions of executables, on Windows from PATHEXT; lower case including the dot
+     */
+    public static String[] getExecutableExtensions() {
+        if (getOsType() != OS.WIN) {
+            return new String[]{""};
         }
-        return null;
+        String pathExt = System.getenv("PATHEXT");
+        return (pathExt != null && !pathExt.isEmpty() ? pathExt : ".COM;.EXE;.BAT;.CMD").toLowerCase().split(";");
     }
 
     public static OS getOsType() {
@@ -93,6 +75,41 @@ public final class CmdUtil {
         return sb.toString();
     }
 
+    /**
+     * Copies everything from in to out and flushes out once at the end
+     *
+     * @return number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        long count = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            count += read;
+        }
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Reads the stream until its end without copying the collected bytes again
+     *
+     * @return buffer wrapping everything read
+     */
+    public static ByteBuffer readFully(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int count = 0;
+        int read;
+        while ((read = in.read(buffer, count, buffer.length - count)) != -1) {
+            count += read;
+            if (count == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return ByteBuffer.wrap(buffer, 0, count);
+    }
+
     public static String jarVersion() {
         return AdbTool.class.getPackage().getImplementationVersion();
     }
@@ -19,21 +19,26 @@
 package at.favre.tools.uberadb.util;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.Locale;
+import java.util.Properties;
 
 public final class FileUtil {
+    private static final int CHECKSUM_BUFFER_SIZE = 1024 * 1024;
 
     private FileUtil() {
     }
@@ -54,27 +59,49 @@ public final class FileUtil {
         return fileName;
     }
 
+    /**
+     * Reads the file through a large direct buffer instead of copying it chunk by chunk into a heap array
+     */
     public static String createChecksum(File file, String shaAlgo) {
         try {
-            InputStream fis = new FileInputStream(file);
-            byte[] buffer = new byte[1024];
-            MessageDigest complete = MessageDigest.getInstance(shaAlgo);
-            int numRead;
-
-            do {
-                numRead = fis.read(buffer);
-                if (numRead > 0) {
-                    complete.update(buffer, 0, numRead);
+            MessageDigest digest = MessageDigest.getInstance(shaAlgo);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHECKSUM_BUFFER_SIZE);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
                 }
-            } while (numRead != -1);
-
-            fis.close();
-            return new BigInteger(1, complete.digest()).toString(16).toLowerCase();
+            }
+            return new BigInteger(1, digest.digest()).toString(16).toLowerCase();
         } catch (Exception e) {
             throw new IllegalStateException("could not create checksum for " + file + " and algo " + shaAlgo + ": " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Stores the properties in a temp file next to the target which then replaces the target, so parallel runs
+     * never see a half written file
+     */
+    public static void storeAtomically(Properties properties, String comments, File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+
+        File tempFile = File.createTempFile(getFileNameWithoutExtension(file) + "-", ".tmp", dir);
+        try {
+            try (OutputStream out = Files.newOutputStream(tempFile.toPath())) {
+                properties.store(out, comments);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            if (tempFile.exists() && !tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+        }
+    }
+
     public static void removeRecursive(Path path) {
         try {
             Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
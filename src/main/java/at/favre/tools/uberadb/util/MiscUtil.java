@@ -24,6 +24,7 @@ import java.nio.file.*;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public final class MiscUtil {
@@ -69,6 +70,23 @@ public final class MiscUtil {
         }
     }
 
+    /**
+     * @return the content of a JSON string literal for s, without the quotes
+     */
+    public static String escapeJson(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
     public static void wait(int seconds) {
         try {
             Thread.sleep(seconds * 1000);
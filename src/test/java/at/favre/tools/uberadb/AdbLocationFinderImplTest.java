@@ -1,10 +1,26 @@
 package at.favre.tools.uberadb;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class AdbLocationFinderImplTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
 
     @Test
     public void testLocation() {
@@ -19,4 +35,130 @@ public class AdbLocationFinderImplTest {
         }
     }
 
+    @Test
+    public void testCandidatesOrder() throws Exception {
+        String custom = temporaryFolder.newFile("custom-adb").getAbsolutePath();
+        List<AdbLocationFinderImpl.Candidate> candidates = AdbLocationFinderImpl.createCandidates(custom);
+        assertEquals(AdbLocationFinder.Location.CUSTOM, candidates.get(0).location);
+        assertEquals(custom, candidates.get(0).path);
+
+        Set<String> paths = new HashSet<>();
+        int lastPath = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            assertTrue("duplicate " + candidates.get(i), paths.add(candidates.get(i).path));
+            if (candidates.get(i).location == AdbLocationFinder.Location.PATH) {
+                lastPath = i;
+            }
+        }
+        for (int i = lastPath + 1; i < candidates.size(); i++) {
+            assertTrue(candidates.get(i).location != AdbLocationFinder.Location.PATH && candidates.get(i).location != AdbLocationFinder.Location.CUSTOM);
+        }
+    }
+
+    @Test
+    public void testProbesRunConcurrently() throws Exception {
+        List<AdbLocationFinderImpl.Candidate> candidates = createCandidates(3);
+        DelayingCmdProvider cmdProvider = new DelayingCmdProvider()
+                .candidate(candidates.get(0), 400, false)
+                .candidate(candidates.get(1), 400, false)
+                .candidate(candidates.get(2), 400, true);
+
+        long start = System.currentTimeMillis();
+        AdbLocationFinder.LocationResult result = AdbLocationFinderImpl.probe(cmdProvider, candidates);
+        assertEquals(candidates.get(2).path, result.args[0]);
+        assertTrue("took " + (System.currentTimeMillis() - start), System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void testHigherPriorityWinsEvenIfSlower() throws Exception {
+        List<AdbLocationFinderImpl.Candidate> candidates = createCandidates(3);
+        DelayingCmdProvider cmdProvider = new DelayingCmdProvider()
+                .candidate(candidates.get(0), 300, false)
+                .candidate(candidates.get(1), 200, true)
+                .candidate(candidates.get(2), 0, true);
+
+        AdbLocationFinder.LocationResult result = AdbLocationFinderImpl.probe(cmdProvider, candidates);
+        assertEquals(candidates.get(1).path, result.args[0]);
+        assertEquals(AdbLocationFinder.Location.PATH, result.location);
+    }
+
+    @Test
+    public void testLowerPriorityProbesCancelled() throws Exception {
+        List<AdbLocationFinderImpl.Candidate> candidates = createCandidates(2);
+        DelayingCmdProvider cmdProvider = new DelayingCmdProvider()
+                .candidate(candidates.get(0), 50, true)
+                .candidate(candidates.get(1), 10_000, true);
+
+        long start = System.currentTimeMillis();
+        AdbLocationFinder.LocationResult result = AdbLocationFinderImpl.probe(cmdProvider, candidates);
+        assertEquals(candidates.get(0).path, result.args[0]);
+        assertTrue(System.currentTimeMillis() - start < 5_000);
+
+        for (int i = 0; i < 50 && !cmdProvider.interrupted.contains(candidates.get(1).path); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(Collections.singleton(candidates.get(1).path), cmdProvider.interrupted);
+    }
+
+    @Test
+    public void testMissingFilesAreNotRun() throws Exception {
+        List<AdbLocationFinderImpl.Candidate> candidates = new ArrayList<>(createCandidates(1));
+        candidates.add(0, new AdbLocationFinderImpl.Candidate(AdbLocationFinder.Location.CUSTOM,
+                temporaryFolder.getRoot().getAbsolutePath() + "/does-not-exist", true));
+        DelayingCmdProvider cmdProvider = new DelayingCmdProvider()
+                .candidate(candidates.get(0), 0, true)
+                .candidate(candidates.get(1), 0, true);
+
+        assertEquals(candidates.get(1).path, AdbLocationFinderImpl.probe(cmdProvider, candidates).args[0]);
+        assertFalse(cmdProvider.started.contains(candidates.get(0).path));
+    }
+
+    @Test
+    public void testNoneWorks() throws Exception {
+        List<AdbLocationFinderImpl.Candidate> candidates = createCandidates(2);
+        DelayingCmdProvider cmdProvider = new DelayingCmdProvider()
+                .candidate(candidates.get(0), 0, false)
+                .candidate(candidates.get(1), 0, false);
+        assertNull(AdbLocationFinderImpl.probe(cmdProvider, candidates));
+        assertNull(AdbLocationFinderImpl.probe(cmdProvider, Collections.<AdbLocationFinderImpl.Candidate>emptyList()));
+    }
+
+    private List<AdbLocationFinderImpl.Candidate> createCandidates(int count) throws Exception {
+        List<AdbLocationFinderImpl.Candidate> candidates = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            candidates.add(new AdbLocationFinderImpl.Candidate(AdbLocationFinder.Location.PATH,
+                    temporaryFolder.newFile("adb" + i).getAbsolutePath(), true));
+        }
+        return candidates;
+    }
+
+    private static class DelayingCmdProvider extends MockAdbCmdProvider {
+        private final Map<String, Long> delays = new HashMap<>();
+        private final Map<String, Boolean> results = new HashMap<>();
+        final Set<String> started = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> interrupted = Collections.synchronizedSet(new HashSet<String>());
+
+        DelayingCmdProvider() {
+            super(false);
+        }
+
+        DelayingCmdProvider candidate(AdbLocationFinderImpl.Candidate candidate, long delayMs, boolean result) {
+            delays.put(candidate.path, delayMs);
+            results.put(candidate.path, result);
+            return this;
+        }
+
+        @Override
+        public boolean canRunCmd(String[] cmd) {
+            String path = cmd[0];
+            started.add(path);
+            try {
+                Thread.sleep(delays.get(path));
+            } catch (InterruptedException e) {
+                interrupted.add(path);
+                return false;
+            }
+            return results.get(path);
+        }
+    }
 }
@@ -0,0 +1,40 @@
+package at.favre.tools.uberadb;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AdbServerAddressTest {
+
+    @Test
+    public void testParse() throws Exception {
+        assertEquals(new AdbServerAddress("10.0.0.2", 5038), AdbServerAddress.parse("10.0.0.2:5038"));
+        assertEquals(new AdbServerAddress("buildhost", AdbServerCmdProvider.DEFAULT_PORT), AdbServerAddress.parse("buildhost"));
+        assertEquals("buildhost:5037", AdbServerAddress.parse(" buildhost ").toString());
+    }
+
+    @Test
+    public void testParseList() throws Exception {
+        assertEquals(Collections.<AdbServerAddress>emptyList(), AdbServerAddress.parse((String[]) null));
+        assertEquals(Arrays.asList(new AdbServerAddress("a", 1), new AdbServerAddress("b", 2)), AdbServerAddress.parse(new String[]{"a:1", "b:2"}));
+    }
+
+    @Test
+    public void testToArgs() throws Exception {
+        assertArrayEquals(new String[]{"-H", "a", "-P", "1"}, new AdbServerAddress("a", 1).toArgs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidPort() throws Exception {
+        AdbServerAddress.parse("localhost:abc");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingHost() throws Exception {
+        AdbServerAddress.parse(":5037");
+    }
+}
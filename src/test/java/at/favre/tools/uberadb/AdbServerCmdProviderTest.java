@@ -0,0 +1,184 @@
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.parser.AdbDevicesParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AdbServerCmdProviderTest {
+    private FakeAdbServer server;
+    private MockAdbCmdProvider fallback;
+    private AdbServerCmdProvider cmdProvider;
+
+    @Before
+    public void setup() throws Exception {
+        server = new FakeAdbServer()
+                .devices("S128376              device usb:1-1 product:iAndroid model:TestBrand device:iAndroid\n" +
+                        "emulator-5554          device product:sdk_x86 model:Android_SDK device:generic_x86\n")
+                .service("shell:pm list packages -f", "package:/data/app/com.example.app1/base.apk=com.example.app1\r\n\r\n" +
+                        "package:/data/app/com.example.app2/base.apk=com.example.app2\r\n");
+        fallback = new MockAdbCmdProvider(Collections.singletonList(new AdbDevice("fallback", AdbDevice.Status.OK, "m", "p", false)),
+                Arrays.asList("com.example.fallback"), true);
+        cmdProvider = new AdbServerCmdProvider("localhost", server.getPort(), fallback);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testDevices() throws Exception {
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "devices", "-l"});
+        List<AdbDevice> devices = new AdbDevicesParser().parse(result.getOut());
+        assertEquals(2, devices.size());
+        assertEquals("S128376", devices.get(0).serial);
+        assertEquals("TestBrand", devices.get(0).model);
+        assertTrue(devices.get(1).isEmulator);
+        assertEquals(Collections.singletonList("host:devices-l"), server.getRequests());
+        assertTrue(fallback.getHistory().isEmpty());
+    }
+
+    @Test
+    public void testShell() throws Exception {
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "-s", "S128376", "shell", "pm list packages -f"});
+        assertTrue(result.isSuccess());
+        assertEquals("package:/data/app/com.example.app1/base.apk=com.example.app1\n" +
+                "package:/data/app/com.example.app2/base.apk=com.example.app2\n", result.getOut());
+        assertEquals(Arrays.asList("host:transport:S128376", "shell,v2,raw:pm list packages -f"), server.getRequests());
+        assertEquals(1, cmdProvider.getHistory().size());
+    }
+
+    @Test
+    public void testShellExitCode() throws Exception {
+        server.shell("pm clear com.example.app1", "Error: java.lang.SecurityException\n", 1);
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "-s", "S128376", "shell", "pm clear com.example.app1"});
+        assertFalse(result.isSuccess());
+        assertEquals(1, result.exitValue);
+        assertEquals("Error: java.lang.SecurityException\n", result.getOut());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(1, cmdProvider.runCmd(new String[]{"adb", "-s", "S128376", "shell", "pm clear com.example.app1"}, out).exitValue);
+        assertEquals("Error: java.lang.SecurityException\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertTrue(fallback.getHistory().isEmpty());
+    }
+
+    @Test
+    public void testShellWithoutShellV2UsesFallback() throws Exception {
+        server.withoutShellV2();
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "-s", "S128376", "shell", "pm list packages -f"});
+        assertEquals("package:/data/app/com.example.fallback/base.apk=com.example.fallback\n", result.getOut());
+        assertEquals(1, fallback.getHistory().size());
+    }
+
+    @Test
+    public void testShellStreaming() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "-s", "S128376", "shell", "pm list packages -f"}, out);
+        assertTrue(result.isSuccess());
+        assertTrue(result.getOut().isEmpty());
+        assertEquals("package:/data/app/com.example.app1/base.apk=com.example.app1\r\n\r\n" +
+                "package:/data/app/com.example.app2/base.apk=com.example.app2\r\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamingUnsupportedCommandUsesFallback() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cmdProvider.runCmd(new String[]{"adb", "-s", "S128376", "install", "app.apk"}, out);
+        assertEquals("Success", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(1, fallback.getHistory().size());
+    }
+
+    @Test
+    public void testShellUnknownDevice() throws Exception {
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "-s", "unknown", "shell", "ls"});
+        assertFalse(result.isSuccess());
+        assertTrue(result.getOut().contains("device 'unknown' not found"));
+        assertTrue(fallback.getHistory().isEmpty());
+    }
+
+    @Test
+    public void testUnsupportedCommandUsesFallback() throws Exception {
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "-s", "S128376", "install", "-r", "app.apk"});
+        assertEquals("Success", result.getOut());
+        assertEquals(1, fallback.getHistory().size());
+        assertTrue(server.getRequests().isEmpty());
+    }
+
+    @Test
+    public void testSharedHistoryRecordsOnlyServerCommands() throws Exception {
+        CmdHistory history = new CmdHistory();
+        cmdProvider = new AdbServerCmdProvider("localhost", server.getPort(), fallback, new CmdTimeouts(), new CancellationToken(), history);
+        cmdProvider.runCmd(new String[]{"adb", "devices", "-l"});
+        cmdProvider.runCmd(new String[]{"adb", "-s", "S128376", "install", "-r", "app.apk"});
+        assertEquals(1, fallback.getHistory().size());
+        assertEquals(1, history.size());
+    }
+
+    @Test
+    public void testUnreachableServerUsesFallback() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        CmdProvider.Result result = new AdbServerCmdProvider("localhost", port, fallback).runCmd(new String[]{"adb", "devices", "-l"});
+        assertEquals("fallback", new AdbDevicesParser().parse(result.getOut()).get(0).serial);
+        assertEquals(1, fallback.getHistory().size());
+    }
+
+    @Test
+    public void testStartServerSkippedIfRunning() throws Exception {
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "start-server"});
+        assertTrue(result.isSuccess());
+        assertEquals(Collections.singletonList("host:version"), server.getRequests());
+        assertTrue(fallback.getHistory().isEmpty());
+    }
+
+    @Test
+    public void testStartServerUsesClientIfNotRunning() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        new AdbServerCmdProvider("localhost", port, fallback).runCmd(new String[]{"adb", "start-server"});
+        assertEquals(1, fallback.getHistory().size());
+    }
+
+    @Test
+    public void testTrackDevicesStreamsMessages() throws Exception {
+        server.trackDevices("S1\toffline\n", "S1\tdevice\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "track-devices", "-l"}, out);
+        assertTrue(result.isSuccess());
+        assertEquals("000bS1\toffline\n000aS1\tdevice\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(Collections.singletonList("host:track-devices-l"), server.getRequests());
+        assertNull(AdbServerCmdProvider.Request.parse(new String[]{"adb", "-s", "S1", "track-devices"}));
+        assertFalse(AdbServerCmdProvider.Request.parse(new String[]{"adb", "track-devices"}).supports(false));
+    }
+
+    @Test
+    public void testParseRequest() throws Exception {
+        assertNull(AdbServerCmdProvider.Request.parse(new String[]{"adb"}));
+        assertNull(AdbServerCmdProvider.Request.parse(new String[]{"adb", "start-server", "now"}));
+        assertEquals("host:version", AdbServerCmdProvider.Request.parse(new String[]{"adb", "start-server"}).hostService);
+        assertNull(AdbServerCmdProvider.Request.parse(new String[]{"adb", "-s", "S1"}));
+        assertNull(AdbServerCmdProvider.Request.parse(new String[]{"adb", "-s", "S1", "shell"}));
+        assertNull(AdbServerCmdProvider.Request.parse(new String[]{"adb", "-s", "S1", "pull", "/a", "/b"}));
+
+        AdbServerCmdProvider.Request request = AdbServerCmdProvider.Request.parse(new String[]{"adb", "-H", "host1", "-P", "5038", "-s", "S1", "exec-out", "screencap", "-p"});
+        assertEquals("S1", request.serial);
+        assertEquals("host1", request.host);
+        assertEquals(5038, request.port);
+        assertEquals("exec:screencap -p", request.deviceService);
+    }
+}
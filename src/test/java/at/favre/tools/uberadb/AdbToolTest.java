@@ -3,6 +3,7 @@ package at.favre.tools.uberadb;
 import at.favre.tools.uberadb.actions.Commons;
 import at.favre.tools.uberadb.parser.AdbDevice;
 import at.favre.tools.uberadb.ui.Arg;
+import at.favre.tools.uberadb.util.CmdUtil;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -10,9 +11,14 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static junit.framework.TestCase.*;
 
@@ -76,6 +82,57 @@ public class AdbToolTest {
         check(result, 2 * adbDevices.size(), 0, adbMockCmdProviderMultiDevices.deviceCount());
     }
 
+    @Test
+    public void testUninstallWritesMetrics() throws Exception {
+        File metricsFile = new File(temporaryFolder.getRoot(), "metrics.json");
+        Arg arg = new Arg(new String[]{"com.example.*"}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.UNINSTALL);
+        arg.metricsFile = metricsFile.getAbsolutePath();
+        MetricsCmdProvider metricsCmdProvider = new MetricsCmdProvider(adbMockCmdProviderMultiDevices);
+        Commons.ActionResult result = AdbTool.execute(arg, metricsCmdProvider, metricsCmdProvider, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, adbMockCmdProviderMultiDevices.installedCount() * adbMockCmdProviderMultiDevices.deviceCount(), 0, adbMockCmdProviderMultiDevices.deviceCount());
+
+        String json = new String(Files.readAllBytes(metricsFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"uninstall\": {\"count\": 3"));
+        assertTrue(json.contains("\"S128376\""));
+        String prom = new String(Files.readAllBytes(new File(temporaryFolder.getRoot(), "metrics.prom").toPath()), StandardCharsets.UTF_8);
+        assertTrue(prom.contains("uberadb_cmd_duration_seconds_count{type=\"uninstall\"} 3"));
+    }
+
+    @Test
+    public void testInstallWritesTrace() throws Exception {
+        File traceFile = new File(temporaryFolder.getRoot(), "trace.json");
+        Arg arg = new Arg(new String[]{apks.getAbsolutePath()}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.INSTALL);
+        arg.traceFile = traceFile.getAbsolutePath();
+        Commons.ActionResult result = AdbTool.execute(arg, adbMockCmdProviderMultiDevices, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, apks.listFiles().length * adbDevices.size(), 0, adbMockCmdProviderMultiDevices.deviceCount());
+
+        String json = new String(Files.readAllBytes(traceFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.contains("\"traceEvents\""));
+        assertTrue(json.contains("\"device " + adbDevices.get(0).serial + "\""));
+        assertTrue(json.contains("\"name\":\"install " + apks.listFiles()[0].getName() + "\""));
+        assertTrue(json.contains("\"cat\":\"cmd\""));
+    }
+
+    @Test
+    public void testInstallMultiDevicesLimitedParallel() throws Exception {
+        for (int parallel = 1; parallel <= adbDevices.size() + 1; parallel++) {
+            Arg arg = new Arg(new String[]{apks.getAbsolutePath()}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.INSTALL);
+            arg.parallel = parallel;
+            Commons.ActionResult result = AdbTool.execute(arg, adbMockCmdProviderMultiDevices, mockAdbLocationFinder, mockUserPromptHandler);
+            check(result, apks.listFiles().length * adbDevices.size(), 0, adbMockCmdProviderMultiDevices.deviceCount());
+            assertTrue(result.deviceDurationMs >= 0);
+        }
+    }
+
+    @Test
+    public void testParallelDeviceCount() throws Exception {
+        Arg arg = new Arg();
+        assertEquals(adbDevices.size(), AdbTool.getParallelDeviceCount(adbDevices, arg));
+        assertEquals(1, AdbTool.getParallelDeviceCount(Collections.singletonList(new AdbDevice("S1", AdbDevice.Status.OFFLINE, null, null, false)), arg));
+        arg.parallel = 2;
+        assertEquals(2, AdbTool.getParallelDeviceCount(adbDevices, arg));
+    }
+
     @Test
     public void testSimpleInstallMultiDevicesGrantWithReinstall() throws Exception {
         Arg arg = new Arg(new String[]{apks.getAbsolutePath()}, null, null, null, null, 0, false, false, true, false, false, true, true, false, false, Arg.Mode.INSTALL);
@@ -100,6 +157,19 @@ public class AdbToolTest {
         check(result, 2, 0, adbMockCmdProviderSingleDevice.deviceCount());
     }
 
+    @Test
+    public void testUninstallWithExclusionFilter() throws Exception {
+        Arg arg = new Arg(new String[]{"com.example.*", "!com.example.app2"}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.UNINSTALL);
+        Commons.ActionResult result = AdbTool.execute(arg, adbMockCmdProviderSingleDevice, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, installedPackages.size() - 1, 0, adbMockCmdProviderSingleDevice.deviceCount());
+        boolean uninstalledOther = false;
+        for (CmdProvider.Result cmdResult : adbMockCmdProviderSingleDevice.getHistory()) {
+            assertFalse(cmdResult.cmd, cmdResult.cmd.contains("uninstall") && cmdResult.cmd.contains("com.example.app2"));
+            uninstalledOther |= cmdResult.cmd.contains("uninstall") && cmdResult.cmd.contains("com.example.app1");
+        }
+        assertTrue(uninstalledOther);
+    }
+
     @Test
     public void testSimpleInstallOneDevice() throws Exception {
         Arg arg = new Arg(new String[]{apks.getAbsolutePath()}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.INSTALL);
@@ -223,6 +293,166 @@ public class AdbToolTest {
         assertFalse(mockUserPromptHandler.isWasUserPrompted());
     }
 
+    @Test
+    public void testWatchModeProcessesExpectedDevices() throws Exception {
+        Arg arg = new Arg(new String[]{"com.example.*"}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.UNINSTALL);
+        arg.expectDevices = adbDevices.size();
+        Commons.ActionResult result = AdbTool.execute(arg, adbMockCmdProviderMultiDevices, mockAdbLocationFinder, mockUserPromptHandler);
+        assertFalse(mockUserPromptHandler.isWasUserPrompted());
+        check(result, adbMockCmdProviderMultiDevices.installedCount() * adbMockCmdProviderMultiDevices.deviceCount(), 0, adbMockCmdProviderMultiDevices.deviceCount());
+    }
+
+    @Test
+    public void testWatchModeMissingDevicesAreFailures() throws Exception {
+        Arg arg = new Arg(new String[]{"com.example.*"}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.UNINSTALL);
+        arg.expectDevices = 3;
+        arg.parallel = 1;
+        Commons.ActionResult result = AdbTool.execute(arg, adbMockCmdProviderSingleDevice, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, adbMockCmdProviderSingleDevice.installedCount(), 2, 1);
+    }
+
+    @Test
+    public void testInstallGrantsPermissionsOnlyFromSdk23() throws Exception {
+        Arg arg = new Arg(new String[]{apks.getAbsolutePath()}, null, null, null, null, 0, false, false, false, false, false, true, true, false, false, Arg.Mode.INSTALL);
+        adbMockCmdProviderSingleDevice.setGetPropOutput("[ro.build.version.sdk]: [22]\n");
+        Commons.ActionResult result = AdbTool.execute(arg, adbMockCmdProviderSingleDevice, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, apks.listFiles().length, 0, 1);
+        assertEquals(0, countInstallCmds(adbMockCmdProviderSingleDevice, " -g "));
+
+        MockAdbCmdProvider sdk23CmdProvider = new MockAdbCmdProvider(Collections.singletonList(adbDevices.get(0)), installedPackages, true)
+                .setGetPropOutput("[ro.build.version.sdk]: [23]\n");
+        result = AdbTool.execute(arg, sdk23CmdProvider, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, apks.listFiles().length, 0, 1);
+        assertEquals(apks.listFiles().length, countInstallCmds(sdk23CmdProvider, " -g "));
+    }
+
+    @Test
+    public void testInstallSkipsApkWithoutMatchingAbi() throws Exception {
+        File apk = temporaryFolder.newFile("native-arm.apk");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(apk))) {
+            zip.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zip.putNextEntry(new ZipEntry("lib/arm64-v8a/libnative.so"));
+            zip.putNextEntry(new ZipEntry("lib/armeabi-v7a/libnative.so"));
+        }
+        Arg arg = new Arg(new String[]{apk.getAbsolutePath()}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.INSTALL);
+
+        Commons.ActionResult result = AdbTool.execute(arg, adbMockCmdProviderSingleDevice, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, 0, 0, 1);
+        assertEquals(1, result.skipCount);
+        assertEquals(2, AdbTool.getExitCode(result));
+        assertEquals(0, countInstallCmds(adbMockCmdProviderSingleDevice, " install "));
+
+        MockAdbCmdProvider armCmdProvider = new MockAdbCmdProvider(Collections.singletonList(adbDevices.get(0)), installedPackages, true)
+                .setGetPropOutput("[ro.product.cpu.abilist]: [arm64-v8a,armeabi-v7a,armeabi]\n");
+        result = AdbTool.execute(arg, armCmdProvider, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, 1, 0, 1);
+        assertEquals(0, result.skipCount);
+        assertEquals(0, AdbTool.getExitCode(result));
+    }
+
+    @Test
+    public void testShardsSplitDevices() throws Exception {
+        int deviceCount = 0;
+        for (int i = 1; i <= 2; i++) {
+            Arg arg = new Arg(new String[]{"com.example.*"}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.UNINSTALL);
+            arg.shard = i + "/2";
+            Commons.ActionResult result = AdbTool.execute(arg, adbMockCmdProviderMultiDevices, mockAdbLocationFinder, mockUserPromptHandler);
+            assertNotNull(result);
+            deviceCount += result.deviceCount;
+        }
+        assertEquals(adbDevices.size(), deviceCount);
+    }
+
+    @Test
+    public void testSelectByModel() throws Exception {
+        Arg arg = new Arg(new String[]{"com.example.*"}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.UNINSTALL);
+        arg.select = "model=Test*,sdk>=28";
+        Commons.ActionResult result = AdbTool.execute(arg, adbMockCmdProviderMultiDevices, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, installedPackages.size() * 2, 0, 2);
+
+        arg.select = "model=Unknown*";
+        assertNull(AdbTool.execute(arg, adbMockCmdProviderMultiDevices, mockAdbLocationFinder, mockUserPromptHandler));
+    }
+
+    @Test
+    public void testMultipleAdbServersRouteCommandsToOwningServer() throws Exception {
+        try (FakeAdbServer server1 = new FakeAdbServer(); FakeAdbServer server2 = new FakeAdbServer()) {
+            server1.devices("S128376\tdevice product:iAndroid model:TestBrand device:iAndroid\n")
+                    .service("shell:pm list packages -f", "package:/data/app/com.example.app1/base.apk=com.example.app1\n");
+            server2.devices("S943584\tdevice product:GalaxyS0 model:TestSam device:GalaxyS0\n")
+                    .service("shell:pm list packages -f", "package:/data/app/com.example.app2/base.apk=com.example.app2\n");
+
+            Arg arg = new Arg(new String[]{apks.getAbsolutePath()}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.INSTALL);
+            arg.adbServers = new String[]{"localhost:" + server1.getPort(), "localhost:" + server2.getPort()};
+            Commons.ActionResult result = AdbTool.execute(arg, new AdbServerCmdProvider(adbMockCmdProviderNoDevice), mockAdbLocationFinder, mockUserPromptHandler);
+            check(result, apks.listFiles().length * 2, 0, 2);
+
+            assertTrue(server1.getRequests().contains("host:transport:S128376"));
+            assertFalse(server1.getRequests().contains("host:transport:S943584"));
+            assertTrue(server2.getRequests().contains("host:transport:S943584"));
+            assertFalse(server2.getRequests().contains("host:transport:S128376"));
+
+            int installCount = 0;
+            for (CmdProvider.Result cmdResult : adbMockCmdProviderNoDevice.getHistory()) {
+                if (cmdResult.cmd.contains(" install ")) {
+                    installCount++;
+                    int port = cmdResult.cmd.contains("-s S128376") ? server1.getPort() : server2.getPort();
+                    assertTrue(cmdResult.cmd, cmdResult.cmd.contains("-H localhost -P " + port + " -s"));
+                }
+            }
+            assertEquals(apks.listFiles().length * 2, installCount);
+        }
+    }
+
+    @Test
+    public void testUnreachableAdbServerIsSkipped() throws Exception {
+        try (FakeAdbServer server = new FakeAdbServer()) {
+            server.devices("S128376\tdevice product:iAndroid model:TestBrand device:iAndroid\n")
+                    .service("shell:pm list packages -f", "package:/data/app/com.example.app1/base.apk=com.example.app1\n");
+
+            Arg arg = new Arg(new String[]{apks.getAbsolutePath()}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.INSTALL);
+            arg.adbServers = new String[]{"localhost:" + server.getPort(), "localhost:1"};
+            CmdProvider unreachableFallback = new MockAdbCmdProvider(Collections.<AdbDevice>emptyList(), installedPackages, true) {
+                @Override
+                public Result runCmd(String[] args) {
+                    return CmdUtil.concat(args, " ").contains("devices") ? new Result("cannot connect to daemon", null, args, 1) : super.runCmd(args);
+                }
+            };
+            Commons.ActionResult result = AdbTool.execute(arg, new AdbServerCmdProvider(unreachableFallback), mockAdbLocationFinder, mockUserPromptHandler);
+            check(result, apks.listFiles().length, 0, 1);
+        }
+    }
+
+    @Test
+    public void testPackageInfoReadWithOneDumpsysPerDevice() throws Exception {
+        Arg arg = new Arg(new String[]{"com.example.*"}, null, null, null, null, 0, false, false, false, false, false, true, false, false, false, Arg.Mode.INFO);
+        MockAdbCmdProvider cmdProvider = new MockAdbCmdProvider(adbDevices, installedPackages, true);
+        Commons.ActionResult result = AdbTool.execute(arg, cmdProvider, mockAdbLocationFinder, mockUserPromptHandler);
+        check(result, installedPackages.size() * adbDevices.size(), 0, adbDevices.size());
+        assertEquals(adbDevices.size(), countCmds(cmdProvider, "dumpsys package packages"));
+        assertEquals(0, countCmds(cmdProvider, "dumpsys package com.example"));
+    }
+
+    private static int countCmds(CmdProvider cmdProvider, String part) {
+        int count = 0;
+        for (CmdProvider.Result cmdResult : cmdProvider.getHistory()) {
+            if (cmdResult.cmd.contains(part)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int countInstallCmds(CmdProvider cmdProvider, String part) {
+        int count = 0;
+        for (CmdProvider.Result cmdResult : cmdProvider.getHistory()) {
+            if (cmdResult.cmd.contains(" install ") && cmdResult.cmd.contains(part)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private static void check(Commons.ActionResult result, int expectedSuccess, int expectedFail, int expectedDevices) {
         assertNotNull(result);
         assertEquals(expectedSuccess, result.successCount);
@@ -0,0 +1,115 @@
+package at.favre.tools.uberadb;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CachingAdbLocationFinderTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File adb;
+    private File cacheFile;
+    private CountingLocationFinder delegate;
+    private CmdProvider cmdProvider;
+
+    @Before
+    public void setup() throws Exception {
+        adb = temporaryFolder.newFile("adb");
+        Files.write(adb.toPath(), "#!/bin/sh".getBytes(StandardCharsets.UTF_8));
+        cacheFile = new File(new File(temporaryFolder.getRoot(), "cache"), "adb-location.properties");
+        delegate = new CountingLocationFinder(adb);
+        cmdProvider = new MockAdbCmdProvider(true) {
+            @Override
+            public Result runCmd(String[] args) {
+                return new Result("Android Debug Bridge version 1.0.41\nVersion 34.0.5\n", null, args, 0);
+            }
+        };
+    }
+
+    @Test
+    public void testSecondRunUsesCache() throws Exception {
+        CachingAdbLocationFinder finder = new CachingAdbLocationFinder(delegate, cacheFile);
+        AdbLocationFinder.LocationResult first = finder.find(cmdProvider, null);
+        assertFalse(finder.wasCacheHit());
+        assertEquals("Android Debug Bridge version 1.0.41", first.version);
+        assertTrue(cacheFile.isFile());
+
+        CachingAdbLocationFinder secondRun = new CachingAdbLocationFinder(delegate, cacheFile);
+        AdbLocationFinder.LocationResult second = secondRun.find(cmdProvider, null);
+        assertTrue(secondRun.wasCacheHit());
+        assertEquals(1, delegate.count);
+        assertEquals(AdbLocationFinder.Location.PATH, second.location);
+        assertEquals(adb.getAbsolutePath(), second.args[0]);
+        assertEquals(first.version, second.version);
+    }
+
+    @Test
+    public void testChangedExecutableInvalidatesCache() throws Exception {
+        new CachingAdbLocationFinder(delegate, cacheFile).find(cmdProvider, null);
+        Files.write(adb.toPath(), "#!/bin/sh\necho new version".getBytes(StandardCharsets.UTF_8));
+
+        CachingAdbLocationFinder finder = new CachingAdbLocationFinder(delegate, cacheFile);
+        finder.find(cmdProvider, null);
+        assertFalse(finder.wasCacheHit());
+        assertEquals(2, delegate.count);
+    }
+
+    @Test
+    public void testDifferentCustomPathInvalidatesCache() throws Exception {
+        new CachingAdbLocationFinder(delegate, cacheFile).find(cmdProvider, null);
+
+        CachingAdbLocationFinder finder = new CachingAdbLocationFinder(delegate, cacheFile);
+        finder.find(cmdProvider, adb.getAbsolutePath());
+        assertFalse(finder.wasCacheHit());
+        assertEquals(2, delegate.count);
+    }
+
+    @Test
+    public void testCorruptCacheFileIgnored() throws Exception {
+        assertTrue(cacheFile.getParentFile().mkdirs());
+        Files.write(cacheFile.toPath(), "location=NOT_A_LOCATION\npath=\\u00".getBytes(StandardCharsets.ISO_8859_1));
+
+        CachingAdbLocationFinder finder = new CachingAdbLocationFinder(delegate, cacheFile);
+        assertEquals(adb.getAbsolutePath(), finder.find(cmdProvider, null).args[0]);
+        assertFalse(finder.wasCacheHit());
+    }
+
+    @Test
+    public void testUnknownVersion() throws Exception {
+        CmdProvider failing = new MockAdbCmdProvider(false) {
+            @Override
+            public Result runCmd(String[] args) {
+                return new Result("", null, args, 1);
+            }
+        };
+        AdbLocationFinder.LocationResult result = new CachingAdbLocationFinder(delegate, cacheFile).find(failing, null);
+        assertNull(result.version);
+    }
+
+    private static class CountingLocationFinder implements AdbLocationFinder {
+        private final File adb;
+        int count;
+
+        CountingLocationFinder(File adb) {
+            this.adb = adb;
+        }
+
+        @Override
+        public LocationResult find(CmdProvider cmdProvider, String customPath) {
+            count++;
+            return new LocationResult(Location.PATH, new String[]{adb.getAbsolutePath()});
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.actions.ShellCommandBatch;
+import at.favre.tools.uberadb.parser.AdbDevice;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CachingCmdProviderTest {
+    private static final String[] LIST_PACKAGES_1 = new String[]{"adb", "-s", "serial1", "shell", "pm", "list", "packages", "-f"};
+    private static final String[] LIST_PACKAGES_2 = new String[]{"adb", "-s", "serial2", "shell", "pm", "list", "packages", "-f"};
+
+    private MockAdbCmdProvider delegate;
+    private CachingCmdProvider cmdProvider;
+
+    @Before
+    public void setup() {
+        delegate = new MockAdbCmdProvider(Collections.<AdbDevice>emptyList(), Arrays.asList("com.example.a", "com.example.b"), true);
+        cmdProvider = new CachingCmdProvider(delegate);
+    }
+
+    @Test
+    public void testRemembersQueries() throws Exception {
+        CmdProvider.Result first = cmdProvider.runCmd(LIST_PACKAGES_1);
+        assertSame(first, cmdProvider.runCmd(LIST_PACKAGES_1));
+        cmdProvider.runCmd(LIST_PACKAGES_2);
+
+        assertEquals(2, delegate.getHistory().size());
+        assertEquals(1, cmdProvider.getHitCount());
+        assertEquals(2, cmdProvider.getMissCount());
+    }
+
+    @Test
+    public void testMutatingCommandInvalidatesDevice() throws Exception {
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+        cmdProvider.runCmd(LIST_PACKAGES_2);
+        cmdProvider.runCmd(new String[]{"adb", "-s", "serial1", "shell", "pm", "uninstall", "com.example.a"});
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+        cmdProvider.runCmd(LIST_PACKAGES_2);
+
+        assertEquals(4, delegate.getHistory().size());
+        assertEquals(1, cmdProvider.getHitCount());
+        assertEquals(3, cmdProvider.getMissCount());
+    }
+
+    @Test
+    public void testNonIdempotentNotRemembered() throws Exception {
+        String[] cmd = new String[]{"adb", "-s", "serial1", "shell", "input", "keyevent", "KEYCODE_WAKEUP"};
+        cmdProvider.runCmd(cmd);
+        cmdProvider.runCmd(cmd);
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+
+        assertEquals(3, delegate.getHistory().size());
+        assertEquals(1, cmdProvider.getHitCount());
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        cmdProvider = new CachingCmdProvider(delegate, -1);
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+        assertEquals(2, delegate.getHistory().size());
+        assertEquals(0, cmdProvider.getHitCount());
+    }
+
+    @Test
+    public void testFailedQueryNotRemembered() throws Exception {
+        ScriptedCmdProvider scripted = new ScriptedCmdProvider(1);
+        cmdProvider = new CachingCmdProvider(scripted);
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+
+        assertEquals(2, scripted.calls.size());
+        assertEquals(0, cmdProvider.getHitCount());
+    }
+
+    @Test
+    public void testMutatingCommandOnOtherServerKeepsDevice() throws Exception {
+        String[] remoteListPackages = new String[]{"adb", "-H", "remote", "-P", "5037", "-s", "serial1", "shell", "pm", "list", "packages", "-f"};
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+        cmdProvider.runCmd(remoteListPackages);
+        cmdProvider.runCmd(new String[]{"adb", "-H", "remote", "-P", "5037", "-s", "serial1", "shell", "pm", "uninstall", "com.example.a"});
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+        cmdProvider.runCmd(remoteListPackages);
+
+        assertEquals(1, cmdProvider.getHitCount());
+        assertEquals(3, cmdProvider.getMissCount());
+    }
+
+    @Test
+    public void testQueryOverlappingMutationNotRemembered() throws Exception {
+        final String[] uninstall = new String[]{"adb", "-s", "serial1", "shell", "pm", "uninstall", "com.example.a"};
+        ScriptedCmdProvider scripted = new ScriptedCmdProvider(0) {
+            @Override
+            public Result runCmd(String[] args) {
+                if (calls.isEmpty()) {
+                    // the package list is read while another thread uninstalls a package
+                    calls.add(args);
+                    cmdProvider.runCmd(uninstall);
+                    return new Result("package:com.example.a\n", null, args, 0);
+                }
+                return super.runCmd(args);
+            }
+        };
+        cmdProvider = new CachingCmdProvider(scripted);
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+        cmdProvider.runCmd(LIST_PACKAGES_1);
+
+        assertEquals(3, scripted.calls.size());
+        assertEquals(0, cmdProvider.getHitCount());
+    }
+
+    @Test
+    public void testBatchIdentifiedByCommands() throws Exception {
+        ScriptedCmdProvider scripted = new ScriptedCmdProvider(0);
+        cmdProvider = new CachingCmdProvider(scripted);
+        String script = "dumpsys package a; __x=$?; echo; echo __UBERADB_1:0:$__x; dumpsys package b; __x=$?; echo; echo __UBERADB_1:1:$__x";
+
+        cmdProvider.runCmd(new String[]{"adb", "-s", "serial1", "shell", script});
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"adb", "-s", "serial1", "shell", script.replace("__UBERADB_1", "__UBERADB_2")});
+
+        assertEquals(1, scripted.calls.size());
+        assertEquals(1, cmdProvider.getHitCount());
+        assertEquals("out\n__UBERADB_2:0:0\nout\n__UBERADB_2:1:0\n", result.getOut());
+    }
+
+    @Test
+    public void testBatchWithFailedCommandNotRemembered() throws Exception {
+        ScriptedCmdProvider scripted = new ScriptedCmdProvider(0, 1);
+        cmdProvider = new CachingCmdProvider(scripted);
+        String[] cmd = new String[]{"adb", "-s", "serial1", "shell",
+                "dumpsys package a; __x=$?; echo; echo __UBERADB_1:0:$__x; dumpsys package b; __x=$?; echo; echo __UBERADB_1:1:$__x"};
+
+        cmdProvider.runCmd(cmd);
+        cmdProvider.runCmd(cmd);
+
+        assertEquals(2, scripted.calls.size());
+        assertEquals(0, cmdProvider.getHitCount());
+    }
+
+    @Test
+    public void testIsIdempotent() throws Exception {
+        assertTrue(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "devices", "-l"})));
+        assertTrue(CachingCmdProvider.isIdempotent(AdbCommand.parse(LIST_PACKAGES_1)));
+        assertTrue(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "pm list packages -f"})));
+        assertTrue(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "getprop"})));
+        assertTrue(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "getprop", "ro.build.version.sdk"})));
+        assertTrue(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell",
+                "dumpsys package a; __x=$?; echo; echo __UBERADB_1:0:$__x; dumpsys package b; __x=$?; echo; echo __UBERADB_1:1:$__x"})));
+
+        assertFalse(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell",
+                "dumpsys package a; __x=$?; echo; echo __UBERADB_1:0:$__x; pm clear b; __x=$?; echo; echo __UBERADB_1:1:$__x"})));
+        assertFalse(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "echo", "a"})));
+        assertFalse(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "a=b; getprop"})));
+        assertFalse(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "dumpsys", "activity"})));
+        assertFalse(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "getprop > /sdcard/props"})));
+        assertFalse(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "echo $(pm clear a)"})));
+        assertFalse(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "-s", "s", "install", "a.apk"})));
+        assertFalse(CachingCmdProvider.isIdempotent(AdbCommand.parse(new String[]{"adb", "wait-for-device"})));
+    }
+
+    @Test
+    public void testIsMutating() throws Exception {
+        assertTrue(CachingCmdProvider.isMutating(AdbCommand.parse(new String[]{"adb", "-s", "s", "install", "-r", "a.apk"})));
+        assertTrue(CachingCmdProvider.isMutating(AdbCommand.parse(new String[]{"adb", "-s", "s", "uninstall", "com.a"})));
+        assertTrue(CachingCmdProvider.isMutating(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "pm", "clear", "com.a"})));
+        assertTrue(CachingCmdProvider.isMutating(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "cmd", "package", "uninstall", "-k", "com.a"})));
+        assertTrue(CachingCmdProvider.isMutating(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell",
+                "dumpsys package a; __x=$?; echo; echo S:0:$__x; pm uninstall b; __x=$?; echo; echo S:1:$__x"})));
+
+        assertFalse(CachingCmdProvider.isMutating(AdbCommand.parse(LIST_PACKAGES_1)));
+        assertFalse(CachingCmdProvider.isMutating(AdbCommand.parse(new String[]{"adb", "-s", "s", "shell", "input", "keyevent", "KEYCODE_WAKEUP"})));
+        assertFalse(CachingCmdProvider.isMutating(AdbCommand.parse(new String[]{"adb", "devices", "-l"})));
+    }
+
+    /**
+     * Answers every command with 'out' and the given exit values, also for every command inside a batch script
+     */
+    private static class ScriptedCmdProvider implements CmdProvider {
+        final List<String[]> calls = new ArrayList<>();
+        private final int[] exitValues;
+
+        ScriptedCmdProvider(int... exitValues) {
+            this.exitValues = exitValues;
+        }
+
+        @Override
+        public Result runCmd(String[] args) {
+            calls.add(args);
+            ShellCommandBatch.Script script = ShellCommandBatch.parseScript(args[args.length - 1]);
+            if (script == null) {
+                return new Result("out\n", null, args, exitValues[0]);
+            }
+            StringBuilder out = new StringBuilder();
+            for (int i = 0; i < script.commands.size(); i++) {
+                out.append("out\n").append(script.sentinel).append(':').append(i).append(':').append(exitValues[i % exitValues.length]).append("\n");
+            }
+            return new Result(out.toString(), null, args, 0);
+        }
+
+        @Override
+        public boolean canRunCmd(String[] cmd) {
+            return true;
+        }
+
+        @Override
+        public List<Result> getHistory() {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package at.favre.tools.uberadb;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CmdHistoryTest {
+
+    private static CmdProvider.Result result(String cmd, String out) {
+        return new CmdProvider.Result(out, null, new String[]{"adb", cmd}, 0);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testKeepsSmallOutputs() throws Exception {
+        CmdHistory history = new CmdHistory();
+        history.add(result("a", "out-a"));
+        history.add(result("b", "out-b"));
+
+        List<CmdProvider.Result> results = history.getResults();
+        assertEquals(2, results.size());
+        assertEquals("adb a", results.get(0).cmd);
+        assertEquals("out-b", results.get(1).getOut());
+        assertEquals(0, history.getDroppedCount());
+    }
+
+    @Test
+    public void testDropsOldestWhenMemoryBudgetExceeded() throws Exception {
+        CmdHistory history = new CmdHistory(200, 0, 100);
+        for (int i = 0; i < 10; i++) {
+            history.add(result("cmd" + i, repeat('x', 30)));
+        }
+        assertEquals(3, history.size());
+        assertEquals(7, history.getDroppedCount());
+        assertTrue(history.getMemoryBytes() <= 200);
+        assertEquals("adb cmd7", history.getResults().get(0).cmd);
+    }
+
+    @Test
+    public void testSpillsBigOutputToDisk() throws Exception {
+        CmdHistory history = new CmdHistory(100, 1024 * 1024, 50);
+        String bigOut = repeat('y', 5000);
+        history.add(result("big", bigOut));
+        history.add(result("small", "s"));
+
+        assertEquals(2, history.getMemoryBytes());
+        assertEquals(bigOut, history.getResults().get(0).getOut());
+        assertEquals("s", history.getResults().get(1).getOut());
+    }
+
+    @Test
+    public void testTruncatesBigOutputWithoutDiskBudget() throws Exception {
+        CmdHistory history = new CmdHistory(1000, 0, 50);
+        history.add(result("big", repeat('z', 5000)));
+
+        assertEquals(50, history.getMemoryBytes());
+        assertTrue(history.getResults().get(0).getOut().startsWith(repeat('z', 25) + "\n"));
+        assertTrue(history.getResults().get(0).getOut().contains("truncated"));
+    }
+
+    @Test
+    public void testTruncatesRawOutputInBytes() throws Exception {
+        CmdHistory history = new CmdHistory(1000, 0, 50);
+        history.add(new CmdProvider.Result(ByteBuffer.wrap(new byte[5000]), null, new String[]{"adb", "raw"}, 0, CmdProvider.Result.State.FINISHED));
+
+        assertEquals(50, history.getMemoryBytes());
+    }
+
+    @Test
+    public void testDefaultTruncatesUnlessSpillEnabled() throws Exception {
+        String bigOut = repeat('y', CmdHistory.DEFAULT_SPILL_THRESHOLD);
+        CmdHistory history = new CmdHistory();
+        history.add(result("big", bigOut));
+        assertTrue(history.getResults().get(0).getOut().contains("truncated"));
+
+        CmdHistory.setSpillByDefault(true);
+        try {
+            history = new CmdHistory();
+            history.add(result("big", bigOut));
+            assertEquals(bigOut, history.getResults().get(0).getOut());
+            assertEquals(0, history.getMemoryBytes());
+        } finally {
+            CmdHistory.setSpillByDefault(false);
+        }
+    }
+
+    @Test
+    public void testKeepsOnlyLengthOfBinaryOutput() throws Exception {
+        CmdHistory history = new CmdHistory();
+        CmdProvider.Result png = new CmdProvider.Result(ByteBuffer.wrap(new byte[]{(byte) 0x89, 'P', 'N', 'G', 0, 1}), null,
+                new String[]{"adb", "-s", "serial", "exec-out", "screencap", "-p"}, 0, CmdProvider.Result.State.FINISHED);
+        assertTrue(png.isBinary());
+        assertTrue(png.toString().contains("<6 bytes binary output>"));
+
+        history.add(png);
+        history.add(new CmdProvider.Result(ByteBuffer.wrap("out".getBytes("UTF-8")), null, new String[]{"adb", "shell", "ls"}, 0, CmdProvider.Result.State.FINISHED));
+
+        assertEquals("<6 bytes binary output>\n", history.getResults().get(0).getOut());
+        assertEquals("out\n", history.getResults().get(1).getOut());
+    }
+
+    @Test
+    public void testDoesNotRetainDecodedRawOutput() throws Exception {
+        CmdHistory history = new CmdHistory();
+        CmdProvider.Result result = new CmdProvider.Result(ByteBuffer.wrap("out".getBytes("UTF-8")), null, new String[]{"adb", "shell", "ls"}, 0, CmdProvider.Result.State.FINISHED);
+        assertEquals("out\n", result.getOut());
+        history.add(result);
+
+        CmdProvider.Result stored = history.getResults().get(0);
+        assertNotSame(result, stored);
+        assertNotSame(stored, history.getResults().get(0));
+        assertEquals("out\n", stored.getOut());
+        assertEquals(3, history.getMemoryBytes());
+    }
+
+    @Test
+    public void testCanRunCmdRecordsOnce() throws Exception {
+        CmdProvider cmdProvider = new CmdProvider.DefaultCmdProvider();
+        cmdProvider.canRunCmd(new String[]{"java", "-version"});
+        assertEquals(1, cmdProvider.getHistory().size());
+    }
+}
@@ -21,6 +21,13 @@ package at.favre.tools.uberadb;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -38,4 +45,111 @@ public class CmdProviderTest {
         assertFalse("should not be able to run random", cmdProvider.canRunCmd(new String[]{"Thisadhpiwadahdjsahduhduwaheuawez27371236"}));
         assertTrue("should be able to run cmd 'java -version'", cmdProvider.canRunCmd(new String[]{"java", "-version"}));
     }
+
+    @Test
+    public void testRunCmdStreaming() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"java", "-version"}, out);
+        assertTrue(result.isSuccess());
+        assertTrue(result.getOut().isEmpty());
+        assertTrue(out.size() > 0);
+        assertTrue(new String(out.toByteArray(), "UTF-8").contains("version"));
+    }
+
+    @Test
+    public void testDefaultRunCmdStreamingHasEmptyOutput() throws Exception {
+        CmdProvider buffering = new CmdProvider() {
+            @Override
+            public Result runCmd(String[] args) {
+                return new Result("buffered", null, args, 0);
+            }
+
+            @Override
+            public boolean canRunCmd(String[] cmd) {
+                return true;
+            }
+
+            @Override
+            public List<Result> getHistory() {
+                return Collections.emptyList();
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CmdProvider.Result result = buffering.runCmd(new String[]{"cmd"}, out);
+        assertTrue(result.isSuccess());
+        assertEquals("", result.getOut());
+        assertEquals("buffered", new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testRunCmdKeepsRawOutput() throws Exception {
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"printf", "\\211PNG\\r\\n\\n\\000line\\r\\n"});
+        assertTrue(result.isSuccess());
+        assertTrue(result.hasRawOut());
+        assertEquals(14, result.getOutLength());
+        ByteBuffer rawOut = result.getRawOut();
+        assertEquals((byte) 0x89, rawOut.get(rawOut.position()));
+        assertEquals(0, rawOut.get(rawOut.position() + 7));
+        assertEquals("\ufffdPNG\n\u0000line\n", result.getOut());
+    }
+
+    @Test
+    public void testNormalizeLikeReadLine() throws Exception {
+        assertEquals("", CmdProvider.Result.normalize(""));
+        assertEquals("", CmdProvider.Result.normalize("\r\n\n\r"));
+        assertEquals("a\n", CmdProvider.Result.normalize("a"));
+        assertEquals("a\nb\nc\n", CmdProvider.Result.normalize("\na\r\n\r\nb\rc\n"));
+        assertEquals(" \n", CmdProvider.Result.normalize(" \n"));
+    }
+
+    @Test
+    public void testResultWithRawOut() throws Exception {
+        CmdProvider.Result text = new CmdProvider.Result("text\n", null, new String[]{"adb"}, 0);
+        assertFalse(text.hasRawOut());
+        assertEquals("text\n", new String(text.getRawOut().array(), StandardCharsets.UTF_8));
+
+        CmdProvider.Result raw = text.withRawOut(ByteBuffer.wrap("a\n\nb".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(raw.hasRawOut());
+        assertEquals(4, raw.getOutLength());
+        assertEquals("a\nb\n", raw.getOut());
+        assertEquals(text.cmd, raw.cmd);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        CmdTimeouts timeouts = new CmdTimeouts().set(CmdTimeouts.Type.OTHER, 200);
+        CmdProvider provider = new CmdProvider.DefaultCmdProvider(timeouts, new CancellationToken());
+
+        long start = System.currentTimeMillis();
+        CmdProvider.Result result = provider.runCmd(new String[]{"sleep", "10"});
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(result.isTimedOut());
+        assertFalse(result.isSuccess());
+        assertEquals(CmdProvider.Result.State.TIMED_OUT, result.state);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final CancellationToken token = new CancellationToken();
+        CmdProvider provider = new CmdProvider.DefaultCmdProvider(new CmdTimeouts(), token);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                token.cancel();
+            }
+        }).start();
+
+        long start = System.currentTimeMillis();
+        CmdProvider.Result result = provider.runCmd(new String[]{"sleep", "10"});
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(CmdProvider.Result.State.CANCELLED, result.state);
+        assertFalse(result.isSuccess());
+
+        assertEquals(CmdProvider.Result.State.CANCELLED, provider.runCmd(new String[]{"java", "-version"}).state);
+    }
 }
@@ -0,0 +1,51 @@
+package at.favre.tools.uberadb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CmdTimeoutsTest {
+
+    @Test
+    public void testClassify() throws Exception {
+        assertEquals(CmdTimeouts.Type.INSTALL, CmdTimeouts.classify(new String[]{"adb", "-s", "123", "install", "-r", "a.apk"}));
+        assertEquals(CmdTimeouts.Type.INSTALL, CmdTimeouts.classify(new String[]{"adb", "install-multiple", "a.apk", "b.apk"}));
+        assertEquals(CmdTimeouts.Type.DUMPSYS, CmdTimeouts.classify(new String[]{"adb", "-s", "123", "shell", "dumpsys", "package", "com.example"}));
+        assertEquals(CmdTimeouts.Type.SHELL, CmdTimeouts.classify(new String[]{"adb", "shell", "pm", "list", "packages"}));
+        assertEquals(CmdTimeouts.Type.SHELL, CmdTimeouts.classify(new String[]{"adb", "exec-out", "screencap", "-p"}));
+        assertEquals(CmdTimeouts.Type.WAIT, CmdTimeouts.classify(new String[]{"adb", "wait-for-device"}));
+        assertEquals(CmdTimeouts.Type.OTHER, CmdTimeouts.classify(new String[]{"adb", "devices", "-l"}));
+        assertEquals(CmdTimeouts.Type.OTHER, CmdTimeouts.classify(new String[]{"adb"}));
+    }
+
+    @Test
+    public void testDefaults() throws Exception {
+        CmdTimeouts timeouts = CmdTimeouts.parse(null);
+        assertEquals(0, timeouts.getTimeoutMs(new String[]{"adb", "wait-for-device"}));
+        assertEquals(10 * 60 * 1000L, timeouts.getTimeoutMs(new String[]{"adb", "install", "a.apk"}));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        CmdTimeouts timeouts = CmdTimeouts.parse(new String[]{"install=30", "DUMPSYS = 5", "wait=120", "shell=0"});
+        assertEquals(30_000L, timeouts.getTimeoutMs(new String[]{"adb", "install", "a.apk"}));
+        assertEquals(5_000L, timeouts.getTimeoutMs(new String[]{"adb", "shell", "dumpsys", "package"}));
+        assertEquals(120_000L, timeouts.getTimeoutMs(new String[]{"adb", "wait-for-device"}));
+        assertEquals(0L, timeouts.getTimeoutMs(new String[]{"adb", "shell", "ls"}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseMissingValue() throws Exception {
+        CmdTimeouts.parse(new String[]{"install"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseUnknownType() throws Exception {
+        CmdTimeouts.parse(new String[]{"reboot=10"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseNegative() throws Exception {
+        CmdTimeouts.parse(new String[]{"shell=-1"});
+    }
+}
@@ -0,0 +1,163 @@
+package at.favre.tools.uberadb;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceHealthCmdProviderTest {
+
+    @Test
+    public void testTimeoutsHalveLimitAndQuarantine() throws Exception {
+        StubCmdProvider delegate = new StubCmdProvider();
+        delegate.timeoutSerial = "slow";
+        DeviceHealthCmdProvider cmdProvider = new DeviceHealthCmdProvider(delegate, 4, 3);
+
+        assertEquals(4, cmdProvider.getConcurrencyLimit("slow"));
+        assertTrue(cmdProvider.runCmd(cmd("slow")).isTimedOut());
+        assertEquals(2, cmdProvider.getConcurrencyLimit("slow"));
+        cmdProvider.runCmd(cmd("slow"));
+        assertEquals(1, cmdProvider.getConcurrencyLimit("slow"));
+        assertFalse(cmdProvider.isQuarantined("slow"));
+        cmdProvider.runCmd(cmd("slow"));
+        assertTrue(cmdProvider.isQuarantined("slow"));
+
+        CmdProvider.Result result = cmdProvider.runCmd(cmd("slow"));
+        assertEquals(CmdProvider.Result.State.QUARANTINED, result.state);
+        assertEquals(3, delegate.calls.get());
+        assertTrue(cmdProvider.getSlowDeviceReport().get(0).startsWith("slow ("));
+        assertTrue(cmdProvider.getSlowDeviceReport().get(0).contains("3 timeouts, quarantined"));
+
+        cmdProvider.runCmd(cmd("fast"));
+        assertEquals(4, delegate.calls.get());
+        assertEquals(4, cmdProvider.getConcurrencyLimit("fast"));
+    }
+
+    @Test
+    public void testSuccessGrowsLimitAgain() throws Exception {
+        StubCmdProvider delegate = new StubCmdProvider();
+        delegate.timeoutSerial = "s1";
+        DeviceHealthCmdProvider cmdProvider = new DeviceHealthCmdProvider(delegate, 4, 0);
+        for (int i = 0; i < 5; i++) {
+            cmdProvider.runCmd(cmd("s1"));
+        }
+        assertEquals(1, cmdProvider.getConcurrencyLimit("s1"));
+        assertFalse(cmdProvider.isQuarantined("s1"));
+
+        delegate.timeoutSerial = null;
+        for (int i = 0; i < 10; i++) {
+            cmdProvider.runCmd(cmd("s1"));
+        }
+        assertEquals(4, cmdProvider.getConcurrencyLimit("s1"));
+    }
+
+    @Test
+    public void testLimitsConcurrentCommandsPerDevice() throws Exception {
+        StubCmdProvider delegate = new StubCmdProvider();
+        delegate.timeoutSerial = "s1";
+        DeviceHealthCmdProvider cmdProvider = new DeviceHealthCmdProvider(delegate, 4, 0);
+        cmdProvider.runCmd(cmd("s1"));
+        cmdProvider.runCmd(cmd("s1"));
+        delegate.timeoutSerial = null;
+        delegate.sleepMs = 50;
+
+        List<CompletableFuture<CmdProvider.Result>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(cmdProvider.runCmdAsync(cmd("s1")));
+            futures.add(cmdProvider.runCmdAsync(cmd("s2")));
+        }
+        for (CompletableFuture<CmdProvider.Result> future : futures) {
+            assertTrue(future.get().isSuccess());
+        }
+        assertTrue(delegate.maxConcurrent.get("s1").get() <= 2);
+        assertEquals(4, delegate.maxConcurrent.get("s2").get());
+    }
+
+    @Test
+    public void testSlowDeviceReportAndPriority() throws Exception {
+        StubCmdProvider delegate = new StubCmdProvider();
+        DeviceHealthCmdProvider cmdProvider = new DeviceHealthCmdProvider(delegate, 4, 3);
+        for (String serial : Arrays.asList("a", "b", "c")) {
+            delegate.sleepMs = serial.equals("b") ? 60 : 2;
+            cmdProvider.runCmd(cmd(serial));
+            cmdProvider.runCmd(cmd(serial));
+        }
+
+        assertTrue(cmdProvider.getSlowness("b") > DeviceHealthCmdProvider.SLOW_FACTOR);
+        assertEquals(1, cmdProvider.getSlowDeviceReport().size());
+        assertTrue(cmdProvider.getSlowDeviceReport().get(0), cmdProvider.getSlowDeviceReport().get(0).matches("b \\(\\d+\\.\\dx median latency\\)"));
+
+        delegate.sleepMs = 0;
+        delegate.timeoutSerial = "c";
+        for (int i = 0; i < 3; i++) {
+            cmdProvider.runCmd(cmd("c"));
+        }
+        List<String> serials = new ArrayList<>(Arrays.asList("c", "a", "b"));
+        Collections.sort(serials, cmdProvider.createPriorityComparator(serials));
+        assertEquals(Arrays.asList("b", "a", "c"), serials);
+    }
+
+    @Test
+    public void testPassesThroughCommandsWithoutDevice() throws Exception {
+        StubCmdProvider delegate = new StubCmdProvider();
+        DeviceHealthCmdProvider cmdProvider = new DeviceHealthCmdProvider(delegate, 4, 1);
+        delegate.timeoutSerial = "none";
+        cmdProvider.runCmd(new String[]{"adb", "devices", "-l"});
+        cmdProvider.runCmd(new String[]{"adb", "devices", "-l"});
+        assertEquals(2, delegate.calls.get());
+        assertTrue(cmdProvider.getSlowDeviceReport().isEmpty());
+    }
+
+    private static String[] cmd(String serial) {
+        return new String[]{"adb", "-s", serial, "shell", "pm", "list", "packages"};
+    }
+
+    private static class StubCmdProvider implements CmdProvider {
+        final AtomicInteger calls = new AtomicInteger();
+        final Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        final Map<String, AtomicInteger> maxConcurrent = new ConcurrentHashMap<>();
+        volatile String timeoutSerial;
+        volatile long sleepMs;
+
+        @Override
+        public Result runCmd(String[] args) {
+            calls.incrementAndGet();
+            String serial = args.length > 2 && args[1].equals("-s") ? args[2] : "none";
+            running.putIfAbsent(serial, new AtomicInteger());
+            maxConcurrent.putIfAbsent(serial, new AtomicInteger());
+            int current = running.get(serial).incrementAndGet();
+            maxConcurrent.get(serial).accumulateAndGet(current, Math::max);
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                running.get(serial).decrementAndGet();
+            }
+            if (serial.equals(timeoutSerial)) {
+                return new Result("", null, args, -1, Result.State.TIMED_OUT);
+            }
+            return new Result("", null, args, 0);
+        }
+
+        @Override
+        public boolean canRunCmd(String[] cmd) {
+            return true;
+        }
+
+        @Override
+        public List<Result> getHistory() {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.parser.GetPropParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceSelectorTest {
+    private final AdbDevice pixel = new AdbDevice("8AAX1ABCD", AdbDevice.Status.OK, "Pixel_4", "flame", false)
+            .withProperties(new GetPropParser().parse("[ro.build.version.sdk]: [30]\n[ro.product.cpu.abilist]: [arm64-v8a,armeabi-v7a]\n[ro.build.type]: [user]\n"));
+    private final AdbDevice emulator = new AdbDevice("emulator-5554", AdbDevice.Status.OK, "Android_SDK_built_for_x86", "sdk_gphone_x86", true)
+            .withProperties(new GetPropParser().parse("[ro.build.version.sdk]: [28]\n[ro.product.cpu.abilist]: [x86]\n"));
+
+    @Test
+    public void testNoRestriction() throws Exception {
+        DeviceSelector selector = DeviceSelector.parse(null, null, null);
+        assertTrue(selector.matches(pixel));
+        assertTrue(selector.matches(emulator));
+        assertFalse(selector.isRestricted());
+    }
+
+    @Test
+    public void testSerial() throws Exception {
+        DeviceSelector selector = DeviceSelector.parse("emulator-5554", null, null);
+        assertFalse(selector.matches(pixel));
+        assertTrue(selector.matches(emulator));
+        assertTrue(selector.hasFilter());
+    }
+
+    @Test
+    public void testWildcardValueIsLiteral() throws Exception {
+        AdbDevice device = new AdbDevice("dev\\E.1", AdbDevice.Status.OK, "model", "product", false);
+        assertTrue(DeviceSelector.parse(null, "serial=dev\\E*", null).matches(device));
+        assertTrue(DeviceSelector.parse(null, "serial=*\\E.1", null).matches(device));
+        assertFalse(DeviceSelector.parse(null, "serial=dev\\E?1", null).matches(device));
+        assertFalse(DeviceSelector.parse(null, "serial=dev\\Ex*", null).matches(device));
+    }
+
+    @Test
+    public void testPredicates() throws Exception {
+        assertMatches("model=pixel*", true, false);
+        assertMatches("model!=Pixel*", false, true);
+        assertMatches("sdk>=29", true, false);
+        assertMatches("sdk<29", false, true);
+        assertMatches("sdk>28,sdk<=30", true, false);
+        assertMatches("abi=arm64*", true, false);
+        assertMatches("abi!=arm*", false, true);
+        assertMatches("emulator=true", false, true);
+        assertMatches("ro.build.type=user", true, false);
+        assertMatches("model=Pixel*,sdk>=29,abi=arm64*", true, false);
+        assertMatches("sdk>abc", false, false);
+    }
+
+    @Test
+    public void testMayMatchWithoutProperties() throws Exception {
+        DeviceSelector selector = DeviceSelector.parse(null, "model=Pixel*,sdk>=29", null);
+        AdbDevice pixelWithoutProperties = new AdbDevice("8AAX1ABCD", AdbDevice.Status.OK, "Pixel_4", "flame", false);
+        assertTrue(selector.needsProperties());
+        assertTrue(selector.mayMatch(pixelWithoutProperties));
+        assertFalse(selector.matches(pixelWithoutProperties));
+        assertFalse(selector.mayMatch(emulator));
+        assertFalse(DeviceSelector.parse(null, "model=Pixel*", null).needsProperties());
+    }
+
+    @Test
+    public void testShardsPartitionDevices() throws Exception {
+        List<String> serials = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            serials.add("serial-" + i);
+        }
+
+        int[] counts = new int[8];
+        for (String serial : serials) {
+            int matchingShards = 0;
+            for (int i = 1; i <= 8; i++) {
+                if (DeviceSelector.parse(null, null, i + "/8").isInShard(serial)) {
+                    matchingShards++;
+                    counts[i - 1]++;
+                }
+            }
+            assertEquals(1, matchingShards);
+        }
+        for (int count : counts) {
+            assertTrue("unbalanced shard with " + count + " devices", count > 10 && count < 45);
+        }
+    }
+
+    @Test
+    public void testShardsAreStableWhenCountGrows() throws Exception {
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            int before = DeviceSelector.getShard("serial-" + i, 8);
+            int after = DeviceSelector.getShard("serial-" + i, 9);
+            if (before != after) {
+                assertEquals(8, after);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 50 && moved < 200);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCondition() throws Exception {
+        DeviceSelector.parse(null, "model", null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidShard() throws Exception {
+        DeviceSelector.parse(null, null, "9/8");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidShardFormat() throws Exception {
+        DeviceSelector.parse(null, null, "3-8");
+    }
+
+    private void assertMatches(String select, boolean pixelExpected, boolean emulatorExpected) {
+        DeviceSelector selector = DeviceSelector.parse(null, select, null);
+        assertEquals(select, pixelExpected, selector.matches(pixel));
+        assertEquals(select, emulatorExpected, selector.matches(emulator));
+    }
+}
@@ -0,0 +1,175 @@
+package at.favre.tools.uberadb;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Minimal adb server speaking the host protocol on a random local port
+ */
+public class FakeAdbServer implements Closeable {
+    private final ServerSocket serverSocket;
+    private final Map<String, String> deviceServices = new HashMap<>();
+    private final Map<String, Integer> shellExitCodes = new HashMap<>();
+    private boolean shellV2 = true;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private String devicesOutput = "";
+    private String[] trackMessages = new String[0];
+
+    public FakeAdbServer() throws IOException {
+        serverSocket = new ServerSocket(0);
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        handle(serverSocket.accept());
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        });
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public FakeAdbServer devices(String devicesOutput) {
+        this.devicesOutput = devicesOutput;
+        return this;
+    }
+
+    /**
+     * @param messages device lists sent one after another on 'host:track-devices-l', then the connection is closed
+     */
+    public FakeAdbServer trackDevices(String... messages) {
+        this.trackMessages = messages;
+        return this;
+    }
+
+    public FakeAdbServer service(String service, String output) {
+        deviceServices.put(service, output);
+        return this;
+    }
+
+    /**
+     * Registers a shell command; answered with shell v2 packets, or as plain 'shell:' service if shell v2 is disabled
+     */
+    public FakeAdbServer shell(String command, String output, int exitCode) {
+        deviceServices.put("shell:" + command, output);
+        shellExitCodes.put(command, exitCode);
+        return this;
+    }
+
+    /**
+     * Behave like an old device which does not know the shell v2 protocol
+     */
+    public FakeAdbServer withoutShellV2() {
+        this.shellV2 = false;
+        return this;
+    }
+
+    public List<String> getRequests() {
+        return requests;
+    }
+
+    private void handle(Socket socket) throws IOException {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            String serial = null;
+
+            while (true) {
+                String request = readRequest(in);
+                requests.add(request);
+
+                if (request.equals("host:devices") || request.equals("host:devices-l")) {
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                    writeLengthPrefixed(out, devicesOutput);
+                    return;
+                } else if (request.equals("host:track-devices-l")) {
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                    for (String message : trackMessages) {
+                        writeLengthPrefixed(out, message);
+                        out.flush();
+                    }
+                    return;
+                } else if (request.equals("host:version")) {
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                    writeLengthPrefixed(out, "0029");
+                    return;
+                } else if (request.startsWith("host:transport:")) {
+                    serial = request.substring("host:transport:".length());
+                    if (!devicesOutput.contains(serial)) {
+                        fail(out, "device '" + serial + "' not found");
+                        return;
+                    }
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                } else if (request.equals("host:transport-any")) {
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                } else if (shellV2 && request.startsWith("shell,v2,raw:") && deviceServices.containsKey("shell:" + request.substring("shell,v2,raw:".length()))) {
+                    String command = request.substring("shell,v2,raw:".length());
+                    Integer exitCode = shellExitCodes.get(command);
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                    writeShellPacket(out, 1, deviceServices.get("shell:" + command).getBytes(StandardCharsets.UTF_8));
+                    writeShellPacket(out, 3, new byte[]{(byte) (exitCode != null ? exitCode : 0)});
+                    return;
+                } else if (deviceServices.containsKey(request)) {
+                    out.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                    out.write(deviceServices.get(request).getBytes(StandardCharsets.UTF_8));
+                    return;
+                } else {
+                    fail(out, "unknown service " + request + " for " + serial);
+                    return;
+                }
+                out.flush();
+            }
+        }
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        in.readFully(length);
+        byte[] payload = new byte[Integer.parseInt(new String(length, StandardCharsets.US_ASCII), 16)];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private static void writeShellPacket(OutputStream out, int id, byte[] payload) throws IOException {
+        out.write(id);
+        out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(payload.length).array());
+        out.write(payload);
+    }
+
+    private static void fail(OutputStream out, String message) throws IOException {
+        out.write("FAIL".getBytes(StandardCharsets.US_ASCII));
+        writeLengthPrefixed(out, message);
+    }
+
+    private static void writeLengthPrefixed(OutputStream out, String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        out.write(String.format(Locale.US, "%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        out.write(payload);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
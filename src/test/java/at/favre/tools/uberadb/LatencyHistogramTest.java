@@ -0,0 +1,57 @@
+package at.favre.tools.uberadb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMs(0.5));
+        assertEquals(0, histogram.getMaxMs());
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getSumMs());
+        assertEquals(1000, histogram.getMaxMs());
+        assertWithin(500, histogram.getPercentileMs(0.5));
+        assertWithin(900, histogram.getPercentileMs(0.9));
+        assertWithin(990, histogram.getPercentileMs(0.99));
+        assertEquals(1000, histogram.getPercentileMs(1));
+    }
+
+    @Test
+    public void testSingleValue() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(123456);
+        assertEquals(123456, histogram.getPercentileMs(0.5));
+        histogram.record(-5);
+        assertEquals(1, histogram.getPercentileMs(0.5));
+        assertEquals(123456, histogram.getPercentileMs(0.99));
+    }
+
+    @Test
+    public void testBuckets() throws Exception {
+        for (long value = 0; value < 100000; value += 7) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(value + " <= " + LatencyHistogram.upperBound(index), value <= LatencyHistogram.upperBound(index) || index == 0);
+            assertTrue(index == 0 || value > LatencyHistogram.upperBound(index - 1));
+        }
+        assertEquals(LatencyHistogram.bucketIndex(Long.MAX_VALUE), LatencyHistogram.bucketIndex(Long.MAX_VALUE / 2));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected * 1.2);
+    }
+}
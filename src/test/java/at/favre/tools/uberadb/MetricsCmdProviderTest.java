@@ -0,0 +1,79 @@
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.parser.AdbDevice;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsCmdProviderTest {
+
+    @Test
+    public void testClassify() throws Exception {
+        assertEquals("install", classify("adb", "-s", "s", "install", "-r", "a.apk"));
+        assertEquals("install", classify("adb", "install-multiple", "a.apk", "b.apk"));
+        assertEquals("uninstall", classify("adb", "uninstall", "com.a"));
+        assertEquals("uninstall", classify("adb", "-s", "s", "shell", "pm", "uninstall", "com.a"));
+        assertEquals("uninstall", classify("adb", "-s", "s", "shell", "cmd", "package", "uninstall", "-k", "com.a"));
+        assertEquals("shell_pm", classify("adb", "-s", "s", "shell", "pm list packages -f"));
+        assertEquals("shell_am", classify("adb", "-s", "s", "shell", "am", "force-stop", "com.a"));
+        assertEquals("dumpsys", classify("adb", "-s", "s", "shell", "dumpsys", "package", "com.a"));
+        assertEquals("screencap", classify("adb", "-s", "s", "shell", "screencap", "/sdcard/a.png"));
+        assertEquals("screencap", classify("adb", "-s", "s", "exec-out", "screencap", "-p"));
+        assertEquals("logcat", classify("adb", "-s", "s", "logcat", "-d"));
+        assertEquals("pull", classify("adb", "-s", "s", "pull", "/sdcard/a", "/tmp/a"));
+        assertEquals("devices", classify("adb", "devices", "-l"));
+        assertEquals("shell_other", classify("adb", "-s", "s", "shell", "input", "keyevent", "KEYCODE_WAKEUP"));
+        assertEquals("other", classify("adb", "start-server"));
+        assertEquals("other", classify("adb"));
+    }
+
+    @Test
+    public void testRecordAndWrite() throws Exception {
+        MockAdbCmdProvider delegate = new MockAdbCmdProvider(Collections.<AdbDevice>emptyList(), Arrays.asList("com.a", "com.b"), true);
+        MetricsCmdProvider cmdProvider = new MetricsCmdProvider(delegate);
+
+        cmdProvider.runCmd(new String[]{"adb", "-s", "serial1", "shell", "pm", "list", "packages", "-f"});
+        cmdProvider.runCmd(new String[]{"adb", "-s", "serial2", "shell", "pm", "list", "packages", "-f"});
+        cmdProvider.runCmd(new String[]{"adb", "-s", "serial1", "uninstall", "com.a"});
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cmdProvider.runCmd(new String[]{"adb", "-s", "serial1", "shell", "pm", "list", "packages", "-f"}, out);
+        assertEquals(4, delegate.getHistory().size());
+
+        StringWriter json = new StringWriter();
+        cmdProvider.writeJson(json);
+        long listBytes = 3L * "package:/data/app/com.a/base.apk=com.a\n".length() * 2;
+        assertTrue(json.toString(), json.toString().contains("\"shell_pm\": {\"count\": 3, \"failures\": 0, \"outputBytes\": " + listBytes + ","));
+        assertTrue(json.toString(), json.toString().contains("\"uninstall\": {\"count\": 1, \"failures\": 0, \"outputBytes\": 7,"));
+        assertTrue(json.toString(), json.toString().contains("\"serial1\": {\"count\": 3,"));
+        assertTrue(json.toString(), json.toString().contains("\"serial2\": {\"count\": 1,"));
+
+        StringWriter prom = new StringWriter();
+        cmdProvider.writePrometheus(prom);
+        assertTrue(prom.toString().contains("# TYPE uberadb_cmd_duration_seconds summary\n"));
+        assertTrue(prom.toString().contains("uberadb_cmd_duration_seconds_count{type=\"shell_pm\"} 3\n"));
+        assertTrue(prom.toString().contains("uberadb_cmd_duration_seconds{type=\"uninstall\",quantile=\"0.99\"} "));
+        assertTrue(prom.toString().contains("uberadb_device_cmd_output_bytes_total{serial=\"serial2\"} " + listBytes / 3 + "\n"));
+    }
+
+    @Test
+    public void testSameSerialOnOtherServerIsOtherDevice() throws Exception {
+        MetricsCmdProvider cmdProvider = new MetricsCmdProvider(new MockAdbCmdProvider(Collections.<AdbDevice>emptyList(), Arrays.asList("com.a"), true));
+        cmdProvider.runCmd(new String[]{"adb", "-s", "serial1", "shell", "pm", "list", "packages", "-f"});
+        cmdProvider.runCmd(new String[]{"adb", "-H", "remote", "-P", "5038", "-s", "serial1", "shell", "pm", "list", "packages", "-f"});
+
+        StringWriter json = new StringWriter();
+        cmdProvider.writeJson(json);
+        assertTrue(json.toString(), json.toString().contains("\"serial1\": {\"count\": 1,"));
+        assertTrue(json.toString(), json.toString().contains("\"serial1@remote:5038\": {\"count\": 1,"));
+    }
+
+    private static String classify(String... args) {
+        return MetricsCmdProvider.classify(AdbCommand.parse(args));
+    }
+}
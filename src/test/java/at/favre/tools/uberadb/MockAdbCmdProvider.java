@@ -6,13 +6,19 @@ import at.favre.tools.uberadb.util.CmdUtil;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class MockAdbCmdProvider implements CmdProvider {
     private List<AdbDevice> devices = Collections.emptyList();
     private List<String> installedPackages = Collections.emptyList();
     private boolean returnsSuccess = true;
     private boolean canRunCmd = true;
-    private List<Result> history = new ArrayList<>();
+    private String getPropOutput = "[ro.build.version.sdk]: [28]\n[ro.product.cpu.abilist]: [x86_64,x86]\n[ro.build.fingerprint]: [mock/sdk/generic:9/PSR1/1:userdebug/test-keys]\n";
+    private static final Pattern BATCH_PATTERN = Pattern.compile("(?:shell|;) (.+?); __x=\\$\\?; echo; echo (\\S+):(\\d+):\\$__x");
+
+    private List<Result> history = Collections.synchronizedList(new ArrayList<Result>());
 
     public MockAdbCmdProvider(List<AdbDevice> devices, List<String> installedPackages, boolean returnsSuccess) {
         this.devices = devices;
@@ -24,20 +30,68 @@ public class MockAdbCmdProvider implements CmdProvider {
         this.canRunCmd = canRunCmd;
     }
 
+    public MockAdbCmdProvider setGetPropOutput(String getPropOutput) {
+        this.getPropOutput = getPropOutput;
+        return this;
+    }
+
     @Override
     public Result runCmd(String[] args) {
         String flatCmd = CmdUtil.concat(args, " ");
+        String out;
+
+        Matcher batchMatcher = BATCH_PATTERN.matcher(flatCmd);
+        if (flatCmd.contains(" shell ") && batchMatcher.find()) {
+            // emulate the device shell running a ShellCommandBatch script
+            StringBuilder sb = new StringBuilder();
+            do {
+                sb.append(createOutput(batchMatcher.group(1))).append("\n")
+                        .append(batchMatcher.group(2)).append(':').append(batchMatcher.group(3)).append(":0\n");
+            } while (batchMatcher.find());
+            out = sb.toString().replaceAll("\n+", "\n");
+        } else {
+            out = createOutput(flatCmd);
+        }
+
+        Result r = new Result(out, null, args, 0);
+        history.add(r);
+        return r;
+    }
+
+    private String createOutput(String flatCmd) {
         StringBuilder out = new StringBuilder();
 
-        if (flatCmd.contains("devices -l")) {
+        if (flatCmd.contains("track-devices")) {
+            // first every device is offline, then all of them are ready
+            StringBuilder offline = new StringBuilder();
+            StringBuilder ready = new StringBuilder();
+            for (AdbDevice device : devices) {
+                offline.append(device.serial).append("\toffline\n");
+                ready.append(device.serial).append("\tdevice product:").append(device.product).append(" model:").append(device.model).append("\n");
+            }
+            out.append(String.format(Locale.US, "%04x", offline.length())).append(offline)
+                    .append(String.format(Locale.US, "%04x", ready.length())).append(ready);
+        } else if (flatCmd.contains("devices -l")) {
             out.append("List of devices attached\n");
             for (AdbDevice device : devices) {
                 out.append(device.serial).append("\tdevice product:").append(device.product).append(" model:").append(device.model).append(" device:").append(device.product).append("\n");
             }
+        } else if (flatCmd.endsWith("shell getprop")) {
+            out.append(getPropOutput);
         } else if (flatCmd.contains("pm list packages")) {
             for (String installedPackage : installedPackages) {
                 out.append("package:/data/app/").append(installedPackage).append("/base.apk=").append(installedPackage).append("\n");
             }
+        } else if (flatCmd.contains("dumpsys package")) {
+            out.append("Packages:\n");
+            for (String installedPackage : installedPackages) {
+                if (flatCmd.endsWith("dumpsys package packages") || flatCmd.endsWith("dumpsys package " + installedPackage)) {
+                    out.append("  Package [").append(installedPackage).append("] (").append(Integer.toHexString(installedPackage.hashCode())).append("):\n")
+                            .append("    codePath=/data/app/").append(installedPackage).append("-1\n")
+                            .append("    versionCode=1 minSdk=21 targetSdk=28\n")
+                            .append("    versionName=1.0\n");
+                }
+            }
         } else if (flatCmd.contains("uninstall")) {
             if (returnsSuccess) {
                 out.append("Success");
@@ -51,9 +105,7 @@ public class MockAdbCmdProvider implements CmdProvider {
                 out.append("Failure [MOCK-ERROR-INSTALL]");
             }
         }
-        Result r = new Result(out.toString(), null, args, 0);
-        history.add(r);
-        return r;
+        return out.toString();
     }
 
     @Override
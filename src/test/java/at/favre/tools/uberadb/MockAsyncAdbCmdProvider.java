@@ -0,0 +1,70 @@
+package at.favre.tools.uberadb;
+
+import at.favre.tools.uberadb.parser.AdbDevice;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Same answers as {@link MockAdbCmdProvider} but every command takes the given latency. Async commands do not block
+ * a thread while "running" and the max. number of commands in flight is recorded.
+ */
+public class MockAsyncAdbCmdProvider extends MockAdbCmdProvider {
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "mock-adb-latency");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final long latencyMs;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    public MockAsyncAdbCmdProvider(List<AdbDevice> devices, List<String> installedPackages, boolean returnsSuccess, long latencyMs) {
+        super(devices, installedPackages, returnsSuccess);
+        this.latencyMs = latencyMs;
+    }
+
+    @Override
+    public Result runCmd(String[] args) {
+        start();
+        try {
+            Thread.sleep(latencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        inFlight.decrementAndGet();
+        return super.runCmd(args);
+    }
+
+    @Override
+    public CompletableFuture<Result> runCmdAsync(final String[] args) {
+        start();
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        SCHEDULER.schedule(() -> {
+            inFlight.decrementAndGet();
+            future.complete(MockAsyncAdbCmdProvider.super.runCmd(args));
+        }, latencyMs, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private void start() {
+        int current = inFlight.incrementAndGet();
+        int max;
+        while ((max = maxInFlight.get()) < current && !maxInFlight.compareAndSet(max, current)) {
+            // retry
+        }
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+}
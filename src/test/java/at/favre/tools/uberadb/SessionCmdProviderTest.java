@@ -0,0 +1,131 @@
+package at.favre.tools.uberadb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uses 'sh -s serial shell' as stand-in for 'adb -s serial shell', which reads the commands from stdin the same way
+ */
+public class SessionCmdProviderTest {
+    private MockAdbCmdProvider delegate;
+    private SessionCmdProvider cmdProvider;
+
+    @Before
+    public void setup() {
+        delegate = new MockAdbCmdProvider(true);
+        cmdProvider = new SessionCmdProvider(delegate, new CmdTimeouts().set(CmdTimeouts.Type.SHELL, 2000), new CancellationToken());
+    }
+
+    @After
+    public void tearDown() {
+        cmdProvider.close();
+    }
+
+    @Test
+    public void testRunCommand() throws Exception {
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo", "hello"});
+        assertEquals("hello\n", result.getOut());
+        assertTrue(result.isSuccess());
+
+        result = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo error >&2; false"});
+        assertEquals("error\n", result.getOut());
+        assertEquals(1, result.exitValue);
+
+        result = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "printf", "no-newline"});
+        assertEquals("no-newline\n", result.getOut());
+
+        assertEquals(3, cmdProvider.getHistory().size());
+        assertEquals(0, delegate.getHistory().size());
+    }
+
+    @Test
+    public void testSessionReused() throws Exception {
+        String pid = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo", "$$"}).getOut();
+        assertEquals(pid, cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo", "$$"}).getOut());
+        assertNotEquals(pid, cmdProvider.runCmd(new String[]{"sh", "-s", "serial2", "shell", "echo", "$$"}).getOut());
+    }
+
+    @Test
+    public void testReconnect() throws Exception {
+        String pid = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo", "$$"}).getOut();
+
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo", "bye;", "exit", "0"});
+        assertEquals("bye\n", result.getOut());
+        assertNotNull(result.exception);
+        assertFalse(result.isSuccess());
+
+        result = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo", "$$"});
+        assertTrue(result.isSuccess());
+        assertNotEquals(pid, result.getOut());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "while true; do :; done"});
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        assertTrue(result.isTimedOut());
+
+        assertEquals("ok\n", cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo", "ok"}).getOut());
+    }
+
+    @Test
+    public void testTimeoutStartsAfterWaitingForSession() throws Exception {
+        cmdProvider = new SessionCmdProvider(delegate, new CmdTimeouts().set(CmdTimeouts.Type.SHELL, 5000).set(CmdTimeouts.Type.DUMPSYS, 700),
+                new CancellationToken());
+        final CmdProvider.Result[] slow = new CmdProvider.Result[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                slow[0] = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "sleep 1; echo slow"});
+            }
+        });
+        thread.start();
+        Thread.sleep(200);
+
+        // waits about a second for the session, longer than its own timeout
+        CmdProvider.Result waiting = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "dumpsys=1; echo fast"});
+        thread.join();
+
+        assertTrue(slow[0].isSuccess());
+        assertEquals("slow\n", slow[0].getOut());
+        assertTrue(waiting.isSuccess());
+        assertEquals("fast\n", waiting.getOut());
+    }
+
+    @Test
+    public void testSentinelInOutput() throws Exception {
+        CmdProvider.Result result = cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo __UBERADB_SESSION_0:0; echo __UBERADB_1:0; false"});
+        assertEquals("__UBERADB_SESSION_0:0\n__UBERADB_1:0\n", result.getOut());
+        assertEquals(1, result.exitValue);
+    }
+
+    @Test
+    public void testOtherCommandsDelegated() throws Exception {
+        cmdProvider.runCmd(new String[]{"adb", "devices", "-l"});
+        cmdProvider.runCmd(new String[]{"adb", "shell", "echo", "no serial"});
+        cmdProvider.runCmd(new String[]{"adb", "-s", "serial1", "install", "a.apk"});
+        assertEquals(3, delegate.getHistory().size());
+        assertEquals(3, cmdProvider.getHistory().size());
+    }
+
+    @Test
+    public void testSharedHistoryRecordsOnlySessionCommands() throws Exception {
+        cmdProvider.close();
+        CmdHistory history = new CmdHistory();
+        cmdProvider = new SessionCmdProvider(delegate, new CmdTimeouts().set(CmdTimeouts.Type.SHELL, 2000), new CancellationToken(), history);
+
+        cmdProvider.runCmd(new String[]{"sh", "-s", "serial1", "shell", "echo", "in session"});
+        cmdProvider.runCmd(new String[]{"adb", "devices", "-l"});
+        assertEquals(1, delegate.getHistory().size());
+        assertEquals(1, history.size());
+        assertEquals(1, cmdProvider.getHistory().size());
+    }
+}
@@ -0,0 +1,86 @@
+package at.favre.tools.uberadb;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceRecorderTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        String json = write(new TraceRecorder());
+        assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(json.contains("\"process_name\",\"ph\":\"M\",\"pid\":0,\"tid\":0,\"args\":{\"name\":\"adb tools\"}"));
+        assertFalse(json.contains("\"ph\":\"X\""));
+    }
+
+    @Test
+    public void testOneProcessPerDevice() throws Exception {
+        TraceRecorder recorder = new TraceRecorder();
+        recorder.record("preview", TraceRecorder.CATEGORY_PHASE, null, 0, 100);
+        recorder.record("shell", TraceRecorder.CATEGORY_CMD, "S1", 10, 20);
+        recorder.record("shell", TraceRecorder.CATEGORY_CMD, "S2", 10, 20);
+        String json = write(recorder);
+
+        assertTrue(json.contains("{\"name\":\"preview\",\"cat\":\"phase\",\"ph\":\"X\",\"ts\":0,\"dur\":100,\"pid\":0,\"tid\":1}"));
+        assertTrue(json.contains("\"pid\":1,\"tid\":0,\"args\":{\"name\":\"device S1\"}"));
+        assertTrue(json.contains("\"pid\":2,\"tid\":0,\"args\":{\"name\":\"device S2\"}"));
+        assertTrue(json.contains("\"cat\":\"cmd\",\"ph\":\"X\",\"ts\":10,\"dur\":10,\"pid\":1,\"tid\":100}"));
+        assertTrue(json.contains("\"cat\":\"cmd\",\"ph\":\"X\",\"ts\":10,\"dur\":10,\"pid\":2,\"tid\":100}"));
+    }
+
+    @Test
+    public void testNestedSpansShareLane() throws Exception {
+        TraceRecorder recorder = new TraceRecorder();
+        recorder.record("execute", TraceRecorder.CATEGORY_PHASE, "S1", 0, 100);
+        recorder.record("install a.apk", TraceRecorder.CATEGORY_PHASE, "S1", 10, 40);
+        recorder.record("install b.apk", TraceRecorder.CATEGORY_PHASE, "S1", 40, 90);
+        String json = write(recorder);
+
+        assertEquals(3, count(json, "\"pid\":1,\"tid\":1}"));
+        assertFalse(json.contains("\"tid\":2"));
+    }
+
+    @Test
+    public void testOverlappingSpansUseOwnLane() throws Exception {
+        TraceRecorder recorder = new TraceRecorder();
+        recorder.record("shell", TraceRecorder.CATEGORY_CMD, "S1", 0, 50);
+        recorder.record("shell", TraceRecorder.CATEGORY_CMD, "S1", 20, 70);
+        recorder.record("shell", TraceRecorder.CATEGORY_CMD, "S1", 60, 80);
+        String json = write(recorder);
+
+        assertEquals(2, count(json, "\"pid\":1,\"tid\":100}"));
+        assertEquals(1, count(json, "\"pid\":1,\"tid\":101}"));
+        assertTrue(json.contains("\"tid\":101,\"args\":{\"name\":\"adb commands #2\"}"));
+    }
+
+    @Test
+    public void testSpanAndEscaping() throws Exception {
+        TraceRecorder recorder = new TraceRecorder();
+        try (TraceRecorder.Span ignored = recorder.begin("start \"app\"\n", TraceRecorder.CATEGORY_PHASE, "S1")) {
+            Thread.sleep(1);
+        }
+        TraceRecorder.Span.noop().close();
+        String json = write(recorder);
+        assertTrue(json.contains("\"name\":\"start \\\"app\\\"\\u000a\""));
+        assertEquals(1, count(json, "\"ph\":\"X\""));
+    }
+
+    private static String write(TraceRecorder recorder) throws Exception {
+        StringWriter writer = new StringWriter();
+        recorder.writeJson(writer);
+        return writer.toString();
+    }
+
+    private static int count(String s, String part) {
+        int count = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,34 @@
+package at.favre.tools.uberadb.actions;
+
+import at.favre.tools.uberadb.AdbLocationFinder;
+import at.favre.tools.uberadb.MockAsyncAdbCmdProvider;
+import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.ui.Arg;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+
+public class CommonsTest {
+    private static final AdbLocationFinder.LocationResult LOCATION = new AdbLocationFinder.LocationResult(AdbLocationFinder.Location.PATH, new String[]{"adb"});
+
+    @Test
+    public void testBufferedLogIncludesAsyncCallbacks() throws Exception {
+        final Arg arg = new Arg();
+        MockAsyncAdbCmdProvider cmdProvider = new MockAsyncAdbCmdProvider(Collections.<AdbDevice>emptyList(), Collections.<String>emptyList(), true, 20);
+
+        Commons.startBufferedLog();
+        Commons.log("before", arg);
+        CompletableFuture<Void> future = Commons.runAdbCommandAsync(new String[]{"-s", "serial", "shell", "getprop"}, cmdProvider, LOCATION)
+                .thenCompose(result -> {
+                    Commons.log("first", arg);
+                    return Commons.runAdbCommandAsync(new String[]{"-s", "serial", "shell", "getprop"}, cmdProvider, LOCATION);
+                })
+                .thenAccept(result -> Commons.log("second", arg));
+        future.join();
+
+        assertEquals("before\nfirst\nsecond\n", Commons.endBufferedLog());
+    }
+}
@@ -0,0 +1,53 @@
+package at.favre.tools.uberadb.actions;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class InstallTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testGetNativeAbis() throws Exception {
+        File apk = createApk("native.apk", "AndroidManifest.xml", "lib/x86/libnative.so", "lib/arm64-v8a/libnative.so", "lib/readme.txt");
+        assertEquals(new TreeSet<>(Arrays.asList("arm64-v8a", "x86")), Install.getNativeAbis(apk));
+        assertTrue(Install.getNativeAbis(createApk("java-only.apk", "AndroidManifest.xml")).isEmpty());
+    }
+
+    @Test
+    public void testGetNativeAbisReadsApkOnce() throws Exception {
+        File apk = createApk("native-x86.apk", "lib/x86/libnative.so");
+        Set<String> abis = Install.getNativeAbis(apk);
+        assertEquals(Collections.singleton("x86"), abis);
+        assertSame(abis, Install.getNativeAbis(apk));
+
+        // a changed apk is read again
+        assertTrue(apk.setLastModified(apk.lastModified() - 10_000));
+        assertNotSame(abis, Install.getNativeAbis(apk));
+    }
+
+    private File createApk(String name, String... entries) throws Exception {
+        File apk = temporaryFolder.newFile(name);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(apk))) {
+            for (String entry : entries) {
+                zip.putNextEntry(new ZipEntry(entry));
+            }
+        }
+        return apk;
+    }
+}
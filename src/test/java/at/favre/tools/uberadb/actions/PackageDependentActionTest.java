@@ -0,0 +1,75 @@
+package at.favre.tools.uberadb.actions;
+
+import at.favre.tools.uberadb.AdbLocationFinder;
+import at.favre.tools.uberadb.CmdProvider;
+import at.favre.tools.uberadb.MockAsyncAdbCmdProvider;
+import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.ui.Arg;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PackageDependentActionTest {
+    private static final long LATENCY_MS = 200;
+    private static final AdbDevice DEVICE = new AdbDevice("serial1", AdbDevice.Status.OK, "model", "product", false);
+    private static final AdbLocationFinder.LocationResult LOCATION = new AdbLocationFinder.LocationResult(AdbLocationFinder.Location.PATH, new String[]{"adb"});
+    private static final List<String> PACKAGES = Arrays.asList("com.example.a", "com.example.b", "com.example.c", "org.other");
+
+    @Test
+    public void testForceStopOverlapsCommands() throws Exception {
+        MockAsyncAdbCmdProvider cmdProvider = new MockAsyncAdbCmdProvider(Collections.singletonList(DEVICE), PACKAGES, true, LATENCY_MS);
+        Commons.ActionResult actionResult = new Commons.ActionResult();
+
+        long start = System.currentTimeMillis();
+        PackageDependentAction.execute(LOCATION, createArg(Arg.Mode.FORCE_STOP), cmdProvider, false, actionResult, DEVICE, PACKAGES);
+        long durationMs = System.currentTimeMillis() - start;
+
+        assertEquals(3, actionResult.successCount);
+        assertEquals(3, cmdProvider.getHistory().size());
+        // wake up, dumpsys and force-stop batch are independent and run at the same time
+        assertEquals(3, cmdProvider.getMaxInFlight());
+        assertTrue("took " + durationMs + "ms", durationMs < 3 * LATENCY_MS);
+    }
+
+    @Test
+    public void testUninstallReadsInfoFirst() throws Exception {
+        MockAsyncAdbCmdProvider cmdProvider = new MockAsyncAdbCmdProvider(Collections.singletonList(DEVICE), PACKAGES, true, LATENCY_MS);
+        Commons.ActionResult actionResult = new Commons.ActionResult();
+
+        PackageDependentAction.execute(LOCATION, createArg(Arg.Mode.UNINSTALL), cmdProvider, false, actionResult, DEVICE, PACKAGES);
+
+        assertEquals(3, actionResult.successCount);
+        assertEquals(0, actionResult.failureCount);
+        List<CmdProvider.Result> history = cmdProvider.getHistory();
+        assertEquals(2, history.size());
+        assertTrue(history.get(0).cmd.contains("dumpsys package"));
+        assertTrue(history.get(1).cmd.contains("pm uninstall"));
+        assertEquals(1, cmdProvider.getMaxInFlight());
+    }
+
+    @Test
+    public void testSyncProviderStillWorks() throws Exception {
+        MockAsyncAdbCmdProvider cmdProvider = new MockAsyncAdbCmdProvider(Collections.singletonList(DEVICE), PACKAGES, false, 0) {
+            @Override
+            public CompletableFuture<Result> runCmdAsync(String[] args) {
+                return CompletableFuture.completedFuture(runCmd(args));
+            }
+        };
+        Commons.ActionResult actionResult = new Commons.ActionResult();
+
+        PackageDependentAction.execute(LOCATION, createArg(Arg.Mode.UNINSTALL), cmdProvider, false, actionResult, DEVICE, PACKAGES);
+
+        assertEquals(0, actionResult.successCount);
+        assertEquals(3, actionResult.failureCount);
+    }
+
+    private static Arg createArg(Arg.Mode mode) {
+        return new Arg(new String[]{"com.example.*"}, null, null, null, null, 0, false, false, false, true, false, true, false, false, false, mode);
+    }
+}
@@ -0,0 +1,155 @@
+package at.favre.tools.uberadb.actions;
+
+import at.favre.tools.uberadb.AdbLocationFinder;
+import at.favre.tools.uberadb.CmdProvider;
+import at.favre.tools.uberadb.parser.AdbDevice;
+import at.favre.tools.uberadb.parser.InstalledPackagesParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShellCommandBatchTest {
+    private static final AdbDevice DEVICE = new AdbDevice("serial1", AdbDevice.Status.OK, "model", "product", false);
+    private static final AdbLocationFinder.LocationResult LOCATION = new AdbLocationFinder.LocationResult(AdbLocationFinder.Location.PATH, new String[]{"adb"});
+
+    @Test
+    public void testSentinelRandom() throws Exception {
+        String sentinel = ShellCommandBatch.createSentinel();
+        assertTrue(sentinel.matches("__UBERADB_\\w+"));
+        assertNotEquals(sentinel, ShellCommandBatch.createSentinel());
+    }
+
+    @Test
+    public void testCreateScript() throws Exception {
+        List<String[]> chunk = Arrays.asList(new String[]{"pm", "clear", "a"}, new String[]{"pm", "clear", "b"});
+        assertEquals("pm clear a; __x=$?; echo; echo S:0:$__x; pm clear b; __x=$?; echo; echo S:1:$__x",
+                ShellCommandBatch.createScript(chunk, "S"));
+    }
+
+    @Test
+    public void testParseScript() throws Exception {
+        List<String[]> chunk = Arrays.asList(new String[]{"dumpsys", "package", "a"}, new String[]{"pm", "clear", "b"});
+        ShellCommandBatch.Script script = ShellCommandBatch.parseScript(ShellCommandBatch.createScript(chunk, "__UBERADB_1"));
+
+        assertEquals("__UBERADB_1", script.sentinel);
+        assertEquals(Arrays.asList("dumpsys package a", "pm clear b"), script.commands);
+        assertTrue(script.allSucceeded("x\n__UBERADB_1:0:0\n\n__UBERADB_1:1:0\n"));
+        assertFalse(script.allSucceeded("x\n__UBERADB_1:0:0\n\n__UBERADB_1:1:1\n"));
+        assertNull(ShellCommandBatch.parseScript("dumpsys package a"));
+        assertNull(ShellCommandBatch.parseScript("pm clear a; __x=$?; echo; echo __UBERADB_1:1:$__x"));
+    }
+
+    @Test
+    public void testDemultiplex() throws Exception {
+        String out = "Success\nS:0:0\nFailure [DELETE_FAILED_INTERNAL_ERROR]\nS:1:1\nS:2:0\n";
+        List<String[]> cmds = Arrays.asList(new String[]{"a"}, new String[]{"b"}, new String[]{"c"});
+
+        List<CmdProvider.Result> results = ShellCommandBatch.demultiplex(new CmdProvider.Result(out, null, new String[]{"batch"}, 0), "S", cmds);
+
+        assertEquals(3, results.size());
+        assertEquals("Success\n", results.get(0).getOut());
+        assertEquals(0, results.get(0).exitValue);
+        assertEquals("a", results.get(0).cmd);
+        assertTrue(InstalledPackagesParser.wasSuccessfulUninstalled(results.get(0).getOut()));
+        assertEquals("Failure [DELETE_FAILED_INTERNAL_ERROR]\n", results.get(1).getOut());
+        assertEquals(1, results.get(1).exitValue);
+        assertFalse(InstalledPackagesParser.wasSuccessfulUninstalled(results.get(1).getOut()));
+        assertEquals("", results.get(2).getOut());
+        assertEquals(0, results.get(2).exitValue);
+    }
+
+    @Test
+    public void testDemultiplexAborted() throws Exception {
+        String out = "Success\nS:0:0\npartial\n";
+        List<String[]> cmds = Arrays.asList(new String[]{"a"}, new String[]{"b"}, new String[]{"c"});
+        CmdProvider.Result batchResult = new CmdProvider.Result(out, null, new String[]{"batch"}, -1, CmdProvider.Result.State.TIMED_OUT);
+
+        List<CmdProvider.Result> results = ShellCommandBatch.demultiplex(batchResult, "S", cmds);
+
+        assertEquals(3, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals("partial\n", results.get(1).getOut());
+        assertEquals(-1, results.get(1).exitValue);
+        assertTrue(results.get(1).isTimedOut());
+        assertTrue(results.get(2).isTimedOut());
+    }
+
+    @Test
+    public void testExecuteBatchesAndChunks() throws Exception {
+        RecordingCmdProvider cmdProvider = new RecordingCmdProvider();
+        ShellCommandBatch batch = new ShellCommandBatch(DEVICE);
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            batch.add("pm", "clear", "com.example.package" + i);
+        }
+
+        List<CmdProvider.Result> results = batch.execute(cmdProvider, LOCATION);
+
+        assertEquals(count, results.size());
+        assertTrue(cmdProvider.calls.size() > 1);
+        assertTrue(cmdProvider.calls.size() < count / 10);
+        for (String[] call : cmdProvider.calls) {
+            assertTrue(call[call.length - 1].length() <= ShellCommandBatch.MAX_SCRIPT_LENGTH);
+        }
+        for (int i = 0; i < count; i++) {
+            assertEquals("cleared com.example.package" + i + "\n", results.get(i).getOut());
+            assertEquals("adb -s serial1 shell pm clear com.example.package" + i, results.get(i).cmd);
+            assertTrue(results.get(i).isSuccess());
+        }
+    }
+
+    @Test
+    public void testExecuteSingleNotBatched() throws Exception {
+        RecordingCmdProvider cmdProvider = new RecordingCmdProvider();
+        List<CmdProvider.Result> results = new ShellCommandBatch(DEVICE).add("pm", "clear", "a").execute(cmdProvider, LOCATION);
+
+        assertEquals(1, results.size());
+        assertEquals(1, cmdProvider.calls.size());
+        assertEquals(Arrays.asList("adb", "-s", "serial1", "shell", "pm", "clear", "a"), Arrays.asList(cmdProvider.calls.get(0)));
+    }
+
+    /**
+     * Answers every 'pm clear' with 'cleared pkg', also inside batch scripts
+     */
+    private static class RecordingCmdProvider implements CmdProvider {
+        final List<String[]> calls = new ArrayList<>();
+
+        @Override
+        public Result runCmd(String[] args) {
+            calls.add(args);
+            String script = args[args.length - 1];
+            StringBuilder out = new StringBuilder();
+            if (script.contains("__x=$?")) {
+                for (String part : script.split("; ")) {
+                    if (part.startsWith("pm clear ")) {
+                        out.append("cleared ").append(part.substring("pm clear ".length())).append("\n");
+                    } else if (part.startsWith("echo __")) {
+                        out.append(part.substring("echo ".length()).replace("$__x", "0")).append("\n");
+                    }
+                }
+            } else {
+                out.append("cleared ").append(script).append("\n");
+            }
+            return new Result(out.toString(), null, args, 0);
+        }
+
+        @Override
+        public boolean canRunCmd(String[] cmd) {
+            return true;
+        }
+
+        @Override
+        public List<Result> getHistory() {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package at.favre.tools.uberadb.jmh;
+
+import at.favre.tools.uberadb.parser.DumpsysPackageParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the regex per field 'dumpsys package' parser with the single pass parser on the dumpsys test files.
+ * Real devices print a permission section after the package which can be much longer than the package itself,
+ * this is simulated with additional permission lines.
+ * <p>
+ * Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=at.favre.tools.uberadb.jmh.DumpsysPackageParserBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DumpsysPackageParserBenchmark {
+    private static final String PACKAGE_NAME = "com.example.testapp.first";
+
+    @Param({"nexus6p", "emu-android18", "emu-android23", "moto-g1"})
+    public String device;
+
+    @Param({"0", "2000"})
+    public int permissionLines;
+
+    private String output;
+    private DumpsysPackageParser parser;
+
+    @Setup
+    public void setup() throws Exception {
+        File file = new File(getClass().getClassLoader().getResource("test-files/dumpsys-packages-" + device + ".txt").toURI().getPath());
+        StringBuilder sb = new StringBuilder(new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+        sb.append("\nPermissions:\n");
+        for (int i = 0; i < permissionLines; i++) {
+            sb.append("  Permission [android.permission.EXAMPLE_").append(i).append("] (").append(Integer.toHexString(i)).append("):\n")
+                    .append("    sourcePackage=android\n");
+        }
+        output = sb.toString();
+        parser = new DumpsysPackageParser();
+    }
+
+    @Benchmark
+    public Object legacyRegexPerField() {
+        return parseLegacy(PACKAGE_NAME, output);
+    }
+
+    @Benchmark
+    public Object singlePass() {
+        return parser.parseSingleDumpsysPackage(PACKAGE_NAME, output);
+    }
+
+    /**
+     * The parser before the single pass implementation: compile a pattern and scan the whole output per field
+     */
+    private static DumpsysPackageParser.PackageInfo parseLegacy(String packageName, String dumpsysOut) {
+        try {
+            String versionName, codePath, installTime, updateTime, pkgHash;
+            int versionCode;
+
+            versionCode = Integer.valueOf(find("versionCode=(\\d+?)\\s", dumpsysOut));
+            versionName = find("versionName=(.+?)\\s", dumpsysOut);
+            codePath = find("codePath=(.+?)\\s", dumpsysOut);
+            installTime = find("firstInstallTime=(\\d{4}-\\d{2}-\\d{2}\\s\\d{2}:\\d{2}:\\d{2})\\s", dumpsysOut);
+            updateTime = find("lastUpdateTime=(\\d{4}-\\d{2}-\\d{2}\\s\\d{2}:\\d{2}:\\d{2})\\s", dumpsysOut);
+            pkgHash = find("\\s+Package \\[" + Pattern.quote(packageName) + "\\] \\((.+?)\\):\\s", dumpsysOut);
+            return new DumpsysPackageParser.PackageInfo(packageName, versionCode, versionName.trim(), codePath, installTime, updateTime, pkgHash);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static String find(String pattern, String haystack) {
+        Matcher matcher = Pattern.compile(pattern).matcher(haystack);
+        matcher.find();
+        return matcher.group(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[]{DumpsysPackageParserBenchmark.class.getSimpleName()});
+    }
+}
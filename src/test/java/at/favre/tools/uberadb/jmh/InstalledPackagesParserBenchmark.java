@@ -0,0 +1,128 @@
+package at.favre.tools.uberadb.jmh;
+
+import at.favre.tools.uberadb.parser.InstalledPackagesParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the line splitting 'pm list packages -f' parser with the single pass scanner.
+ * <p>
+ * Run with (add -prof gc to see the allocation rate):
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=at.favre.tools.uberadb.jmh.InstalledPackagesParserBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class InstalledPackagesParserBenchmark {
+
+    /**
+     * A stock device has about 300-600 packages, a heavily used test device a few thousand
+     */
+    @Param({"600", "5000"})
+    public int packageCount;
+
+    private String output;
+    private ByteBuffer rawOutput;
+    private InstalledPackagesParser parser;
+
+    @Setup
+    public void setup() {
+        output = createOutput(packageCount, new Random(42));
+        rawOutput = ByteBuffer.wrap(output.getBytes(StandardCharsets.UTF_8));
+        parser = new InstalledPackagesParser();
+    }
+
+    @Benchmark
+    public List<String> legacySplit() {
+        return parseLegacy(output);
+    }
+
+    @Benchmark
+    public List<String> scanString() {
+        return parser.parse(output);
+    }
+
+    @Benchmark
+    public List<String> scanBytes() {
+        return parser.parse(rawOutput);
+    }
+
+    @Benchmark
+    public Map<String, String> scanBytesWithPaths() {
+        return parser.parseApkPaths(rawOutput);
+    }
+
+    static String createOutput(int packageCount, Random random) {
+        String[] vendors = {"com.google.android", "com.android", "com.samsung.android", "org.example", "at.favre.app"};
+        StringBuilder sb = new StringBuilder(packageCount * 80);
+        for (int i = 0; i < packageCount; i++) {
+            String packageName = vendors[random.nextInt(vendors.length)] + ".module" + i;
+            if (i % 4 == 0) {
+                sb.append("package:/system/priv-app/Module").append(i).append("/Module").append(i).append(".apk=");
+            } else {
+                sb.append("package:/data/app/").append(packageName).append('-').append(random.nextInt(3) + 1).append("/base.apk=");
+            }
+            sb.append(packageName).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The parser before the single pass scanner: split lines, then parse every line twice
+     */
+    private static List<String> parseLegacy(String shellOutput) {
+        List<String> packages = new ArrayList<>();
+
+        if (shellOutput != null && !shellOutput.isEmpty()) {
+            for (String line : shellOutput.split("\\n")) {
+                if (line != null) {
+                    String parsedPackage = parsePackageLegacy(line);
+                    if (parsedPackage != null) {
+                        packages.add(parsePackageLegacy(line));
+                    }
+                }
+            }
+        }
+        return packages;
+    }
+
+    private static String parsePackageLegacy(String line) {
+        if (line.contains("=")) {
+            String packageName = line.trim().substring(line.lastIndexOf("=") + 1, line.length());
+
+            int dotCount = packageName.length() - packageName.replace(".", "").length();
+            if (dotCount >= 1) {
+                return packageName;
+            } else {
+                return null;
+            }
+        }
+        throw new IllegalArgumentException("unexpected installed app syntax: " + line + " expect to have one '='");
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[]{InstalledPackagesParserBenchmark.class.getSimpleName()});
+    }
+}
@@ -0,0 +1,106 @@
+package at.favre.tools.uberadb.jmh;
+
+import at.favre.tools.uberadb.parser.PackageMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the regex per (package, filter) matcher with the compiled filters and the prefix index.
+ * <p>
+ * Run with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=at.favre.tools.uberadb.jmh.PackageMatcherBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PackageMatcherBenchmark {
+    private static final String[] VENDORS = {"com.google.android", "com.android", "com.samsung.android", "org.example", "at.favre", "com.ourco"};
+
+    @Param({"10000"})
+    public int packageCount;
+
+    @Param({"50"})
+    public int filterCount;
+
+    private List<String> packages;
+    private String[] filters;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        packages = new ArrayList<>(packageCount);
+        for (int i = 0; i < packageCount; i++) {
+            packages.add(VENDORS[random.nextInt(VENDORS.length)] + ".module" + random.nextInt(packageCount / 10) + ".app" + i);
+        }
+
+        // mostly prefix filters like they are used on the command line, some with leading or inner wildcards
+        filters = new String[filterCount];
+        for (int i = 0; i < filterCount; i++) {
+            String vendor = VENDORS[random.nextInt(VENDORS.length)];
+            switch (i % 5) {
+                case 0:
+                    filters[i] = "*.app" + random.nextInt(packageCount);
+                    break;
+                case 1:
+                    filters[i] = vendor + ".*.app1*";
+                    break;
+                default:
+                    filters[i] = vendor + ".module" + random.nextInt(packageCount / 10) + ".*";
+            }
+        }
+    }
+
+    @Benchmark
+    public List<String> legacyRegex() {
+        return findMatchesLegacy(packages, filters);
+    }
+
+    @Benchmark
+    public List<String> compiledWithPrefixIndex() {
+        return new PackageMatcher(packages).findMatches(filters);
+    }
+
+    /**
+     * The matcher before compiled filters: builds and compiles a regex per package and filter
+     */
+    private static List<String> findMatchesLegacy(List<String> packages, String... filters) {
+        Set<String> matchedPackages = new HashSet<>();
+        for (String aPackage : packages) {
+            for (String filter : Arrays.asList(filters)) {
+                if (filter != null && !filter.isEmpty() && aPackage.matches("^" + filter.replace(".", "\\Q.\\E").replace("*", ".*"))) {
+                    matchedPackages.add(aPackage);
+                }
+            }
+        }
+        List<String> list = new ArrayList<>(matchedPackages);
+        Collections.sort(list);
+        return list;
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[]{PackageMatcherBenchmark.class.getSimpleName()});
+    }
+}
@@ -2,7 +2,11 @@ package at.favre.tools.uberadb.parser;
 
 import org.junit.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 import static org.junit.Assert.*;
 
@@ -60,6 +64,61 @@ public class AdbDeviceParserTest {
         assertTrue(devices.isEmpty());
     }
 
+    @Test
+    public void testParseDeviceListWithoutHeader() throws Exception {
+        List<AdbDevice> devices = new AdbDevicesParser().parseDeviceList("S1\tdevice product:p model:m device:d\nemulator-5554\toffline\n");
+        assertEquals(2, devices.size());
+        assertEquals(new AdbDevice("S1", AdbDevice.Status.OK, "m", "p", false), devices.get(0));
+        assertEquals(AdbDevice.Status.OFFLINE, devices.get(1).status);
+        assertTrue(new AdbDevicesParser().parseDeviceList("").isEmpty());
+    }
+
+    @Test
+    public void testTrackingParserChunks() throws Exception {
+        AdbDevicesParser.TrackingParser parser = new AdbDevicesParser.TrackingParser();
+        byte[] data = (message("S1\toffline\n") + message("S1\tdevice model:m\nS2\tunauthorized\n")).getBytes(StandardCharsets.UTF_8);
+
+        List<AdbDevice> changed = new ArrayList<>();
+        for (int i = 0; i < data.length; i++) {
+            List<AdbDevice> result = parser.feed(data, i, 1);
+            changed.addAll(result);
+            if (i < 3 + "S1\toffline\n".length()) {
+                assertTrue(result.isEmpty());
+            }
+        }
+        assertEquals(Arrays.asList(
+                new AdbDevice("S1", AdbDevice.Status.OFFLINE, null, null, false),
+                new AdbDevice("S1", AdbDevice.Status.OK, "m", null, false),
+                new AdbDevice("S2", AdbDevice.Status.UNAUTHORIZED, null, null, false)), changed);
+        assertEquals(2, parser.getDevices().size());
+    }
+
+    @Test
+    public void testTrackingParserOnlyReportsChanges() throws Exception {
+        AdbDevicesParser.TrackingParser parser = new AdbDevicesParser.TrackingParser();
+        assertEquals(1, feed(parser, message("S1\tdevice\n")).size());
+        assertEquals(1, feed(parser, message("S1\tdevice\nS2\tdevice\n")).size());
+        assertEquals(0, feed(parser, message("S2\tdevice\n")).size());
+        assertEquals(1, parser.getDevices().size());
+        assertEquals("S1", feed(parser, message("S1\tdevice\nS2\tdevice\n")).get(0).serial);
+        assertTrue(feed(parser, message("")).isEmpty());
+        assertTrue(parser.getDevices().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrackingParserInvalidLength() throws Exception {
+        feed(new AdbDevicesParser.TrackingParser(), "xyz0S1\tdevice\n");
+    }
+
+    private static List<AdbDevice> feed(AdbDevicesParser.TrackingParser parser, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        return parser.feed(bytes, 0, bytes.length);
+    }
+
+    private static String message(String deviceList) {
+        return String.format(Locale.US, "%04x", deviceList.length()) + deviceList;
+    }
+
     @Test
     public void testDeviceToStringAndHashCode() {
         AdbDevice device = new AdbDevice("emulator-5154", AdbDevice.Status.OFFLINE, null, null, true);
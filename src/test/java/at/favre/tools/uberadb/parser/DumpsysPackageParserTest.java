@@ -5,6 +5,9 @@ import org.junit.Test;
 
 import java.io.File;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 
 import static junit.framework.TestCase.*;
 
@@ -72,4 +75,80 @@ public class DumpsysPackageParserTest {
         assertTrue(info.hashCode() != 0);
         assertNotNull(info.toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testAdditionalFields() throws Exception {
+        DumpsysPackageParser.PackageInfo info = new DumpsysPackageParser().parseSingleDumpsysPackage(testPackage, dumpsysExample1Content);
+        assertEquals(24, info.targetSdk);
+        assertNull(info.installer);
+        assertEquals(Arrays.asList("HAS_CODE", "ALLOW_CLEAR_USER_DATA", "ALLOW_BACKUP"), info.flags);
+
+        info = new DumpsysPackageParser().parseSingleDumpsysPackage(testPackage, dumpsysExample2Content);
+        assertEquals(24, info.targetSdk);
+        assertTrue(info.flags.contains("DEBUGGABLE"));
+    }
+
+    @Test
+    public void testInstallerAndOtherPackages() throws Exception {
+        String out = "Packages:\r\n" +
+                "  Package [com.example.other] (1111):\r\n" +
+                "    versionCode=99 targetSdk=30\r\n" +
+                "    versionName=9.9\r\n" +
+                "  Package [com.example.app] (abcd):\r\n" +
+                "    codePath=/data/app/com.example.app-2\r\n" +
+                "    versionCode=12 minSdk=21 targetSdk=28\r\n" +
+                "    versionName=1.2 beta\r\n" +
+                "    installerPackageName=com.android.vending\r\n" +
+                "    firstInstallTime=2018-01-02 03:04:05\r\n" +
+                "    User 0: installed=true firstInstallTime=2019-01-01 00:00:00\r\n" +
+                "\r\n" +
+                "Shared users:\r\n" +
+                "  SharedUser [android.uid.system] (2222):\r\n" +
+                "    versionName=wrong\r\n";
+        DumpsysPackageParser.PackageInfo info = new DumpsysPackageParser().parseSingleDumpsysPackage("com.example.app", out);
+        assertEquals(12, info.versionCode);
+        assertEquals(28, info.targetSdk);
+        assertEquals("1.2 beta", info.versionName);
+        assertEquals("/data/app/com.example.app-2", info.codePath);
+        assertEquals("com.android.vending", info.installer);
+        assertEquals("2018-01-02 03:04:05", info.firstInstallTime);
+        assertEquals("abcd", info.pkgHash);
+    }
+
+    @Test
+    public void testPartialResult() throws Exception {
+        DumpsysPackageParser.PackageInfo info = new DumpsysPackageParser().parseSingleDumpsysPackage("com.example.app",
+                "Packages:\n  Package [com.example.app] (abcd):\n    versionName=2.0\n");
+        assertEquals(new DumpsysPackageParser.PackageInfo("com.example.app", DumpsysPackageParser.UNKNOWN, "2.0", null, null, null, "abcd"), info);
+        assertTrue(info.flags.isEmpty());
+    }
+
+    @Test
+    public void testPackageNotFound() throws Exception {
+        assertNull(new DumpsysPackageParser().parseSingleDumpsysPackage("com.example.missing", dumpsysExample1Content));
+        assertNull(new DumpsysPackageParser().parseSingleDumpsysPackage("com.example.missing", ""));
+    }
+
+    @Test
+    public void testParseAll() throws Exception {
+        String out = "Packages:\n" +
+                "  Package [com.example.first] (1111):\n" +
+                "    versionCode=3 targetSdk=30\n" +
+                "    versionName=3.0\n" +
+                "  Package [com.android.updated] (2222):\n" +
+                "    versionCode=20 targetSdk=29\n" +
+                "\n" +
+                "Hidden system packages:\n" +
+                "  Package [com.android.updated] (3333):\n" +
+                "    versionCode=10 targetSdk=29\n";
+        Map<String, DumpsysPackageParser.PackageInfo> all = new DumpsysPackageParser().parseAll(out);
+        assertEquals(Arrays.asList("com.example.first", "com.android.updated"), new ArrayList<>(all.keySet()));
+        assertEquals(3, all.get("com.example.first").versionCode);
+        assertEquals("3.0", all.get("com.example.first").versionName);
+        assertEquals(20, all.get("com.android.updated").versionCode);
+        assertEquals("2222", all.get("com.android.updated").pkgHash);
+
+        assertEquals(new DumpsysPackageParser().parseSingleDumpsysPackage(testPackage, dumpsysExample4Content),
+                new DumpsysPackageParser().parseAll(dumpsysExample4Content).get(testPackage));
+    }
+}
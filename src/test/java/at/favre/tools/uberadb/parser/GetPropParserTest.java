@@ -0,0 +1,51 @@
+package at.favre.tools.uberadb.parser;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GetPropParserTest {
+
+    @Test
+    public void testParse() throws Exception {
+        Map<String, String> properties = new GetPropParser().parse("[dalvik.vm.heapsize]: [512m]\r\n" +
+                "[ro.build.version.sdk]: [28]\n" +
+                "[ro.product.cpu.abilist]: [arm64-v8a,armeabi-v7a,armeabi]\n" +
+                "[persist.sys.empty]: []\n" +
+                "[ro.multiline]: [first\n" +
+                "second]\n" +
+                "not a property line\n");
+
+        assertEquals(5, properties.size());
+        assertEquals("512m", properties.get("dalvik.vm.heapsize"));
+        assertEquals("28", properties.get("ro.build.version.sdk"));
+        assertEquals("", properties.get("persist.sys.empty"));
+        assertEquals("first\nsecond", properties.get("ro.multiline"));
+    }
+
+    @Test
+    public void testParseEmpty() throws Exception {
+        assertTrue(new GetPropParser().parse("").isEmpty());
+        assertTrue(new GetPropParser().parse("/system/bin/sh: getprop: not found").isEmpty());
+    }
+
+    @Test
+    public void testDeviceProperties() throws Exception {
+        AdbDevice device = new AdbDevice("S1", AdbDevice.Status.OK, "model", "product", false)
+                .withProperties(new GetPropParser().parse("[ro.build.version.sdk]: [28]\n[ro.product.cpu.abilist]: [arm64-v8a, armeabi-v7a]\n"));
+        assertEquals(28, device.getSdkVersion());
+        assertEquals(Arrays.asList("arm64-v8a", "armeabi-v7a"), device.getAbis());
+        assertNull(device.getProperty(AdbDevice.PROP_FINGERPRINT));
+        assertEquals(device, new AdbDevice("S1", AdbDevice.Status.OK, "model", "product", false));
+
+        AdbDevice oldDevice = device.withProperties(new GetPropParser().parse("[ro.product.cpu.abi]: [armeabi]\n"));
+        assertEquals(-1, oldDevice.getSdkVersion());
+        assertEquals(Collections.singletonList("armeabi"), oldDevice.getAbis());
+    }
+}
@@ -20,7 +20,11 @@ package at.favre.tools.uberadb.parser;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
@@ -46,6 +50,43 @@ public class InstalledPackagesParserTest {
         assertTrue(packages.isEmpty());
     }
 
+    @Test
+    public void testParseWindowsLineEndingsAndBlankLines() throws Exception {
+        List<String> packages = new InstalledPackagesParser().parse("package:/data/app/com.skype.raider-1/base.apk=com.skype.raider\r\n" +
+                "\r\n" +
+                "  package:/data/app/com.whatsapp-1/base.apk=com.whatsapp  \r\n" +
+                "package:/system/app/Test/Test.apk=android\n");
+        assertEquals(Arrays.asList("com.skype.raider", "com.whatsapp"), packages);
+    }
+
+    @Test
+    public void testParseRawOutput() throws Exception {
+        byte[] raw = ("garbage" + "package:/data/app/com.skype.raider-1/base.apk=com.skype.raider\n" +
+                "package:/data/app/com.google.android.youtube-2/base.apk=com.google.android.youtube\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(raw, 7, raw.length - 7).slice();
+        List<String> packages = new InstalledPackagesParser().parse(buffer);
+        assertEquals(Arrays.asList("com.skype.raider", "com.google.android.youtube"), packages);
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testParseApkPaths() throws Exception {
+        String output = "package:/data/app/com.skype.raider-1/base.apk=com.skype.raider\n" +
+                "package:/data/app/ünïcode/base=1.apk=com.example.app\n";
+        Map<String, String> fromString = new InstalledPackagesParser().parseApkPaths(output);
+        Map<String, String> fromBytes = new InstalledPackagesParser().parseApkPaths(ByteBuffer.wrap(output.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(Arrays.asList("com.skype.raider", "com.example.app"), Arrays.asList(fromString.keySet().toArray()));
+        assertEquals("/data/app/com.skype.raider-1/base.apk", fromString.get("com.skype.raider"));
+        assertEquals("/data/app/ünïcode/base=1.apk", fromString.get("com.example.app"));
+        assertEquals(fromString, fromBytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidSyntax() throws Exception {
+        new InstalledPackagesParser().parse("package:/data/app/com.skype.raider-1/base.apk=com.skype.raider\nError: unknown\n");
+    }
+
     @Test
     public void testParseSingleLines() throws Exception {
         assertEquals(
@@ -20,6 +20,10 @@ package at.favre.tools.uberadb.parser;
 
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class PackageMatcherTest {
@@ -49,4 +53,66 @@ public class PackageMatcherTest {
         assertEquals("com.android.*", filters2[0]);
         assertEquals("at.test.*", filters2[1]);
     }
+
+    @Test
+    public void testMatchesWithoutWildcardAndMultipleWildcards() throws Exception {
+        assertTrue(PackageMatcher.match("com.example.app", "com.example.app"));
+        assertFalse(PackageMatcher.match("com.example.app", "com.example.app2"));
+        assertTrue(PackageMatcher.match("*", "com.example.app"));
+        assertTrue(PackageMatcher.match("*.example.*app", "com.example.myapp"));
+        assertTrue(PackageMatcher.match("com.*a*a*", "com.aa"));
+        assertFalse(PackageMatcher.match("com.*a*a*", "com.a"));
+        assertFalse(PackageMatcher.match("com.*.app*.app", "com.x.app"));
+        assertFalse(PackageMatcher.match("", "com.example.app"));
+        assertFalse(PackageMatcher.match(null, "com.example.app"));
+    }
+
+    @Test
+    public void testMatchesSameAsRegex() throws Exception {
+        List<String> packages = Arrays.asList("com.example.app", "com.example.app.test", "com.example", "com.android.chrome",
+                "com.google.android.gms", "org.example.appx", "a.b", "com.examplea");
+        String[] filters = {"com.*", "com.example*", "com.example.*", "*.app", "*example*", "com.*.a*", "org.*x", "*a*b*", "a.b", "c*m.*"};
+        for (String filter : filters) {
+            for (String aPackage : packages) {
+                boolean expected = aPackage.matches("^" + filter.replace(".", "\\Q.\\E").replace("*", ".*"));
+                assertEquals(filter + " / " + aPackage, expected, PackageMatcher.match(filter, aPackage));
+            }
+        }
+    }
+
+    @Test
+    public void testRegexCharactersAreLiteral() throws Exception {
+        assertFalse(PackageMatcher.match("com.example.[ab]", "com.example.a"));
+        assertTrue(PackageMatcher.match("com.example.[ab]", "com.example.[ab]"));
+        assertFalse(PackageMatcher.match("com.exampl?", "com.exampl"));
+        assertFalse(PackageMatcher.match("com.example+", "com.exampleee"));
+    }
+
+    @Test
+    public void testFindMatches() throws Exception {
+        PackageMatcher matcher = new PackageMatcher(Arrays.asList("com.example.b", "org.other", "com.example.a", "com.examplea", "com.example.a", "com.exampl"));
+        assertEquals(Arrays.asList("com.example.a", "com.example.b"), matcher.findMatches("com.example.*"));
+        assertEquals(Arrays.asList("com.example.a", "com.example.b", "com.examplea"), matcher.findMatches("com.example*", "com.example.*"));
+        assertEquals(Arrays.asList("com.example.a", "org.other"), matcher.findMatches("*.a", "org.other"));
+        assertTrue(matcher.findMatches("net.*").isEmpty());
+        assertTrue(matcher.findMatches().isEmpty());
+    }
+
+    @Test
+    public void testFindMatchesWithExclusions() throws Exception {
+        PackageMatcher matcher = new PackageMatcher(Arrays.asList("com.example.app", "com.example.test", "com.example.testapp", "org.other"));
+        assertEquals(Collections.singletonList("com.example.app"), matcher.findMatches("com.example.*", "!com.example.test*"));
+        assertEquals(Arrays.asList("com.example.app", "org.other"), matcher.findMatches("*", "!*test*"));
+        assertTrue(matcher.findMatches("!com.example.test*").isEmpty());
+    }
+
+    @Test
+    public void testPrefixRange() throws Exception {
+        String[] sorted = {"a.b", "com.a", "com.b", "com.b.c", "comx", "org.a"};
+        assertEquals(1, PackageMatcher.startOfPrefixRange(sorted, "com."));
+        assertEquals(4, PackageMatcher.endOfPrefixRange(sorted, "com."));
+        assertEquals(2, PackageMatcher.startOfPrefixRange(sorted, "com.b"));
+        assertEquals(4, PackageMatcher.endOfPrefixRange(sorted, "com.b"));
+        assertEquals(6, PackageMatcher.startOfPrefixRange(sorted, "z"));
+    }
 }
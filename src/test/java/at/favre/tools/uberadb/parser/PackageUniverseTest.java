@@ -0,0 +1,54 @@
+package at.favre.tools.uberadb.parser;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PackageUniverseTest {
+
+    @Test
+    public void testSetsShareNames() throws Exception {
+        PackageUniverse universe = new PackageUniverse();
+        PackageUniverse.PackageSet device1 = universe.add(Arrays.asList("com.example.b", "com.example.a", "com.example.a"));
+        PackageUniverse.PackageSet device2 = universe.add(Arrays.asList(new String("com.example.a"), "org.other"));
+
+        assertEquals(3, universe.size());
+        assertEquals(2, device1.size());
+        assertEquals(Arrays.asList("com.example.a", "com.example.b"), device1.toList());
+        assertEquals(Arrays.asList("com.example.a", "org.other"), device2.toList());
+        assertSame(device1.toList().get(0), device2.toList().get(0));
+    }
+
+    @Test
+    public void testFindMatchesSameAsPackageMatcher() throws Exception {
+        List<String> packages1 = Arrays.asList("com.example.app", "com.example.test", "org.other", "com.android.chrome");
+        List<String> packages2 = Arrays.asList("com.example.app", "com.example.app2", "com.example.testapp");
+        String[][] filters = {{"com.example.*"}, {"com.example.*", "!com.example.test*"}, {"*app*", "org.*"}, {"net.*"}, {}};
+
+        PackageUniverse universe = new PackageUniverse();
+        PackageUniverse.PackageSet set1 = universe.add(packages1);
+        for (String[] filter : filters) {
+            assertEquals(new PackageMatcher(packages1).findMatches(filter), set1.findMatches(filter));
+        }
+
+        // packages added after the filters were matched the first time
+        PackageUniverse.PackageSet set2 = universe.add(packages2);
+        for (String[] filter : filters) {
+            assertEquals(new PackageMatcher(packages1).findMatches(filter), set1.findMatches(filter));
+            assertEquals(new PackageMatcher(packages2).findMatches(filter), set2.findMatches(filter));
+        }
+    }
+
+    @Test
+    public void testEmptySet() throws Exception {
+        PackageUniverse.PackageSet set = new PackageUniverse().add(Collections.<String>emptyList());
+        assertEquals(0, set.size());
+        assertTrue(set.findMatches("*").isEmpty());
+    }
+}
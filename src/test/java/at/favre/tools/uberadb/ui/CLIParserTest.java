@@ -226,6 +226,78 @@ public class CLIParserTest {
         assertEquals(expectedArg, parsedArg);
     }
 
+    @Test
+    public void testParallel() throws Exception {
+        Arg parsedArg = CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --parallel 4"));
+        Arg expectedArg = new Arg(new String[]{"com.android.*"}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.UNINSTALL);
+        expectedArg.parallel = 4;
+        assertEquals(expectedArg, parsedArg);
+
+        assertNull(CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --parallel 0")));
+    }
+
+    @Test
+    public void testExpectDevices() throws Exception {
+        Arg parsedArg = CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --expectDevices 12"));
+        Arg expectedArg = new Arg(new String[]{"com.android.*"}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.UNINSTALL);
+        expectedArg.expectDevices = 12;
+        assertEquals(expectedArg, parsedArg);
+
+        assertNull(CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --expectDevices 0")));
+    }
+
+    @Test
+    public void testDeviceConcurrency() throws Exception {
+        Arg parsedArg = CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --deviceConcurrency 2"));
+        Arg expectedArg = new Arg(new String[]{"com.android.*"}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.UNINSTALL);
+        expectedArg.deviceConcurrency = 2;
+        assertEquals(expectedArg, parsedArg);
+
+        assertNull(CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --deviceConcurrency 0")));
+    }
+
+    @Test
+    public void testSelectAndShard() throws Exception {
+        Arg parsedArg = CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --select model=Pixel*,sdk>=29 --shard 3/8"));
+        Arg expectedArg = new Arg(new String[]{"com.android.*"}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.UNINSTALL);
+        expectedArg.select = "model=Pixel*,sdk>=29";
+        expectedArg.shard = "3/8";
+        assertEquals(expectedArg, parsedArg);
+
+        assertNull(CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --shard 0/8")));
+        assertNull(CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --select model")));
+    }
+
+    @Test
+    public void testAdbServers() throws Exception {
+        Arg parsedArg = CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --adbServer localhost:5037 --adbServer 10.0.0.2:5038"));
+        Arg expectedArg = new Arg(new String[]{"com.android.*"}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.UNINSTALL);
+        expectedArg.adbServers = new String[]{"localhost:5037", "10.0.0.2:5038"};
+        assertEquals(expectedArg, parsedArg);
+
+        assertNull(CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --adbServer localhost:abc")));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        Arg parsedArg = CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --timeout install=300 dumpsys=0"));
+        Arg expectedArg = new Arg(new String[]{"com.android.*"}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.UNINSTALL);
+        expectedArg.cmdTimeouts = new String[]{"install=300", "dumpsys=0"};
+        assertEquals(expectedArg, parsedArg);
+
+        assertNull(CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --timeout install")));
+        assertNull(CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --timeout foo=3")));
+        assertNull(CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --timeout shell=-1")));
+    }
+
+    @Test
+    public void testShellSession() throws Exception {
+        Arg parsedArg = CLIParser.parse(asArgArray("-" + CLIParser.ARG_UNINSTALL + " com.android.* --shellSession"));
+        Arg expectedArg = new Arg(new String[]{"com.android.*"}, null, null, null, null, 0, false, false, false, false, false, false, false, false, false, Arg.Mode.UNINSTALL);
+        expectedArg.shellSession = true;
+        assertEquals(expectedArg, parsedArg);
+    }
+
     @Test
     public void testHelp() throws Exception {
         Arg parsedArg = CLIParser.parse(asArgArray("--help"));
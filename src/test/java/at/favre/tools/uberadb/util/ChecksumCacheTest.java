@@ -0,0 +1,113 @@
+package at.favre.tools.uberadb.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChecksumCacheTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testChecksum() throws Exception {
+        File small = createFile("small.apk", 100);
+        File large = createFile("large.apk", 3 * 1024 * 1024 + 17);
+        ChecksumCache cache = new ChecksumCache(null);
+        cache.prefetch(Arrays.asList(small, large));
+        assertEquals(sha256(small), cache.checksum(small));
+        assertEquals(sha256(large), cache.checksum(large));
+    }
+
+    @Test
+    public void testHashedOnlyOnce() throws Exception {
+        File file = createFile("app.apk", 1024);
+        ChecksumCache cache = new ChecksumCache(null);
+        String checksum = cache.checksum(file);
+        assertEquals(checksum, cache.checksum(file));
+        assertEquals(checksum, cache.checksum(new File(file.getParentFile(), "./app.apk")));
+        assertEquals(1, cache.getHashedCount());
+    }
+
+    @Test
+    public void testPersistedBetweenRuns() throws Exception {
+        File file = createFile("app.apk", 1024);
+        File cacheFile = new File(temporaryFolder.getRoot(), "cache/checksums.properties");
+        ChecksumCache cache = new ChecksumCache(cacheFile);
+        String checksum = cache.checksum(file);
+        assertFalse(cacheFile.isFile());
+        cache.save();
+        assertTrue(cacheFile.isFile());
+
+        ChecksumCache nextRun = new ChecksumCache(cacheFile);
+        assertEquals(checksum, nextRun.checksum(file));
+        assertEquals(0, nextRun.getHashedCount());
+    }
+
+    @Test
+    public void testChangedFileIsHashedAgain() throws Exception {
+        File file = createFile("app.apk", 1024);
+        File cacheFile = new File(temporaryFolder.getRoot(), "checksums.properties");
+        ChecksumCache cache = new ChecksumCache(cacheFile);
+        String checksum = cache.checksum(file);
+        cache.save();
+
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        ChecksumCache nextRun = new ChecksumCache(cacheFile);
+        assertNotEquals(checksum, nextRun.checksum(file));
+        assertEquals(1, nextRun.getHashedCount());
+    }
+
+    @Test
+    public void testSaveMergesParallelRuns() throws Exception {
+        File fileA = createFile("a.apk", 1024);
+        File fileB = createFile("b.apk", 2048);
+        File cacheFile = new File(temporaryFolder.getRoot(), "checksums.properties");
+        ChecksumCache runA = new ChecksumCache(cacheFile);
+        ChecksumCache runB = new ChecksumCache(cacheFile);
+        runA.checksum(fileA);
+        runB.checksum(fileB);
+        runA.save();
+        runB.save();
+
+        ChecksumCache nextRun = new ChecksumCache(cacheFile);
+        nextRun.checksum(fileA);
+        nextRun.checksum(fileB);
+        assertEquals(0, nextRun.getHashedCount());
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        ChecksumCache cache = new ChecksumCache(null);
+        try {
+            cache.checksum(new File(temporaryFolder.getRoot(), "missing.apk"));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static String sha256(File file) throws Exception {
+        return new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath()))).toString(16);
+    }
+
+    private File createFile(String name, int length) throws Exception {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        File file = temporaryFolder.newFile(name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
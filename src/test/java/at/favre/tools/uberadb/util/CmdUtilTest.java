@@ -1,10 +1,12 @@
 package at.favre.tools.uberadb.util;
 
-import at.favre.tools.uberadb.MockAdbCmdProvider;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertNull;
 
 public class CmdUtilTest {
     @Test
@@ -13,9 +15,17 @@ public class CmdUtilTest {
     }
 
     @Test
-    public void testPathShouldBeNull() {
-        assertNull(CmdUtil.checkAndGetFromPATHEnvVar(
-                new MockAdbCmdProvider(false)
-                , "shouldNotExist"));
+    public void testCopyFlushesOnce() throws Exception {
+        final int[] flushes = new int[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushes[0]++;
+            }
+        };
+
+        assertEquals(100_000, CmdUtil.copy(new ByteArrayInputStream(new byte[100_000]), out));
+        assertEquals(100_000, out.size());
+        assertEquals(1, flushes[0]);
     }
 }
@@ -0,0 +1,13 @@
+package at.favre.tools.uberadb.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MiscUtilTest {
+    @Test
+    public void testEscapeJson() throws Exception {
+        assertEquals("a\\\"b\\\\c\\u000a", MiscUtil.escapeJson("a\"b\\c\n"));
+        assertEquals("serial@host:5037", MiscUtil.escapeJson("serial@host:5037"));
+    }
+}